@@ -0,0 +1,379 @@
+/**
+ * @(#) RCXAssembler.java 0.1 98/03/12
+ *
+ *  Copyright (C) 1998, Scott B. Lewis.  All Rights Reserved.
+ *
+ *  License to copy, use, and modify this software is granted provided that
+ *  this notice is retained in any copies of any part of this software.
+ *
+ *  The author makes no guarantee that this software will compile or
+ *  function correctly.  Also, if you use this software, you do so at your
+ *  own risk.
+ *
+ *  Scott B. Lewis.  slewis@teleport.com  http://www.slewis.com
+ */
+package rcxport;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.Vector;
+
+/**
+ * Assembles RCX byte code source into an RCXProgram.  A source file holds tasks and
+ * subroutines, each a list of instructions named by the opcodes in RCXCmd:
+ * <pre>
+ *     .const SPEED 7            ; constants may be used for any argument
+ *     task main                 ; tasks and subs may be named, and the names used
+ *         OutputPower 7, 2, SPEED   ; as task and sub numbers
+ *     loop:
+ *         PlaySound 3
+ *         GoSub beep
+ *         Jump loop             ; branches name a label as their last argument
+ *     sub beep
+ *         PlayTone 0x40, 0x01, 10
+ * </pre>
+ * Opcode names are not case sensitive.  Each argument is one byte, given as a
+ * number (decimal, or hex with 0x), a character ('a'), or a constant, and
+ * arguments may be combined with '|' and '+' (e.g. <code>Test 0x40|9, 2, 0, 5, 0,
+ * done</code>).  Everything from a '#', ';' or "//" to the end of the line is a
+ * comment.
+ * <p>
+ * Labels are local to their task or sub.  Jump and SJump both assemble to the short
+ * form where the target is in range and the long form where it is not, so code is
+ * as compact as it can be.  Source is read in one pass, with forward references to
+ * labels and constants resolved at the end, so assembly takes time linear in the
+ * size of the source.  Errors are reported as IOExceptions giving the line.
+ */
+public class RCXAssembler
+{
+    private static HashMap<String, Byte> theOpcodes;
+
+    // Constants, and task and sub names, for the whole source
+    private HashMap<String, Integer> myConstants = new HashMap<String, Integer>();
+    // Labels of the current task or sub, and the line each was first used on
+    private HashMap<String, Integer> myLabels = new HashMap<String, Integer>();
+    private HashMap<String, Integer> myLabelLines = new HashMap<String, Integer>();
+    // Arguments referring to constants not defined when they were read
+    private Vector<Fixup> myFixups = new Vector<Fixup>();
+
+    private Vector<RCXCode> myTasks = new Vector<RCXCode>();
+    private Vector<RCXCode> mySubs = new Vector<RCXCode>();
+    private RCXCode myCode;
+    private int myLine;
+    private String [] myTokens = new String[16];
+    private int myTokenCount;
+
+    /**
+     * Assemble source from a Reader.  The reader is read to the end but not closed.
+     *
+     * @param r the Reader to read from
+     * @param prog the program number (0..4)
+     * @return RCXProgram the program, with its tasks and subs in the order given
+     * @exception IOException thrown if the reader fails, or the source is not valid
+     */
+    public RCXProgram assemble(Reader r, byte prog) throws IOException
+    {
+        reset();
+        BufferedReader br = (r instanceof BufferedReader)?(BufferedReader) r:new BufferedReader(r);
+        String line;
+        while ((line = br.readLine()) != null) {
+            myLine++;
+            assembleLine(line);
+        }
+        endSection();
+        for(int i=0; i < myFixups.size(); i++) {
+            Fixup f = myFixups.elementAt(i);
+            myLine = f.myLine;
+            Integer v = evaluate(f.myExpr);
+            if (v == null) error("undefined symbol in '"+f.myExpr+"'");
+            f.myArgs[f.myIndex] = toByte(v.intValue());
+        }
+        RCXProgram res = new RCXProgram(prog);
+        for(int i=0; i < myTasks.size(); i++) res.addTask(new RCXTask(myTasks.elementAt(i).encode()));
+        for(int i=0; i < mySubs.size(); i++) res.addSub(new RCXSub(mySubs.elementAt(i).encode()));
+        return res;
+    }
+
+    public RCXProgram assemble(String source, byte prog) throws IOException
+    {
+        return assemble(new StringReader(source), prog);
+    }
+
+    public RCXProgram assembleFile(String fileName, byte prog) throws IOException
+    {
+        Reader r = new BufferedReader(new FileReader(fileName));
+        try {
+            return assemble(r, prog);
+        } finally {
+            r.close();
+        }
+    }
+    /**
+     * Get the opcode for a name.
+     *
+     * @param name an opcode name from RCXCmd, in any case
+     * @return int the opcode (0..255), or -1 if there is no such opcode
+     */
+    public static int getOpcode(String name)
+    {
+        Byte op = getOpcodes().get(name.toLowerCase());
+        return (op == null)?-1:op.byteValue() & 0xff;
+    }
+
+    private static synchronized HashMap<String, Byte> getOpcodes()
+    {
+        if (theOpcodes == null) {
+            HashMap<String, Byte> ops = new HashMap<String, Byte>();
+            // Opcodes are the byte constants of RCXCmd with mixed case names
+            Field [] fields = RCXCmd.class.getFields();
+            for(int i=0; i < fields.length; i++) {
+                Field f = fields[i];
+                int mod = f.getModifiers();
+                if (f.getType() != Byte.TYPE || !Modifier.isStatic(mod) || !Modifier.isFinal(mod) ||
+                    f.getName().indexOf('_') >= 0) continue;
+                try {
+                    ops.put(f.getName().toLowerCase(), Byte.valueOf(f.getByte(null)));
+                } catch (IllegalAccessException e) {
+                    // Public fields are always accessible
+                }
+            }
+            theOpcodes = ops;
+        }
+        return theOpcodes;
+    }
+
+    private void reset()
+    {
+        myConstants.clear();
+        myLabels.clear();
+        myLabelLines.clear();
+        myFixups.removeAllElements();
+        myTasks.removeAllElements();
+        mySubs.removeAllElements();
+        myCode = null;
+        myLine = 0;
+    }
+
+    private void assembleLine(String line) throws IOException
+    {
+        tokenize(line);
+        int t = 0;
+        // Labels
+        while (t < myTokenCount && myTokens[t].endsWith(":")) {
+            String name = myTokens[t].substring(0, myTokens[t].length()-1);
+            if (myCode == null) error("label outside task or sub");
+            int label = getLabel(name);
+            if (myCode.isPlaced(label)) error("label '"+name+"' defined twice");
+            myCode.placeLabel(label);
+            t++;
+        }
+        if (t == myTokenCount) return;
+        String word = myTokens[t].toLowerCase();
+        int nargs = myTokenCount - t - 1;
+        if (word.equals(".const") || word.equals("const")) {
+            if (nargs != 2) error("constant name and value expected");
+            String name = myTokens[t+1];
+            Integer v = evaluate(myTokens[t+2]);
+            if (v == null) error("undefined symbol in '"+myTokens[t+2]+"'");
+            define(name, v.intValue());
+        } else if (word.equals("task") || word.equals(".task")) {
+            startSection(true, (nargs > 0)?myTokens[t+1]:null, nargs);
+        } else if (word.equals("sub") || word.equals(".sub")) {
+            startSection(false, (nargs > 0)?myTokens[t+1]:null, nargs);
+        } else {
+            Byte b = getOpcodes().get(word);
+            if (b == null) error("unknown opcode '"+myTokens[t]+"'");
+            if (myCode == null) error("instruction outside task or sub");
+            assembleInstruction(b.byteValue(), t+1, nargs);
+        }
+    }
+
+    private void assembleInstruction(byte op, int first, int nargs) throws IOException
+    {
+        int argLength = RCXCmd.getArgLength(op);
+        if (!RCXCode.isBranch(op)) {
+            if (nargs != argLength) error(argLength+" arguments expected");
+            myCode.add(op, getArgs(first, nargs));
+            return;
+        }
+        // Branches have their offset replaced by a label
+        int count = (RCXCode.isJump(op))?0:argLength - 2;
+        if (nargs != count + 1) error((count + 1)+" arguments expected, the last a label");
+        byte [] args = getArgs(first, count);
+        myCode.addBranch(op, args, getLabel(myTokens[first + count]));
+    }
+
+    private byte [] getArgs(int first, int count) throws IOException
+    {
+        byte [] args = new byte[count];
+        for(int i=0; i < count; i++) {
+            String expr = myTokens[first + i];
+            Integer v = evaluate(expr);
+            if (v == null) myFixups.addElement(new Fixup(args, i, expr, myLine));
+            else args[i] = toByte(v.intValue());
+        }
+        return args;
+    }
+
+    private void startSection(boolean task, String name, int nargs) throws IOException
+    {
+        if (nargs > 1) error("one name expected");
+        endSection();
+        Vector<RCXCode> list = (task)?myTasks:mySubs;
+        int max = (task)?RCXProgram.MAX_TASKS:RCXProgram.MAX_SUBS;
+        if (list.size() == max) error("more than "+max+((task)?" tasks":" subs"));
+        if (name != null) define(name, list.size());
+        myCode = new RCXCode();
+        list.addElement(myCode);
+    }
+
+    private void endSection() throws IOException
+    {
+        if (myCode == null) return;
+        for(String name : myLabels.keySet()) {
+            if (!myCode.isPlaced(myLabels.get(name).intValue())) {
+                myLine = myLabelLines.get(name).intValue();
+                error("undefined label '"+name+"'");
+            }
+        }
+        myLabels.clear();
+        myLabelLines.clear();
+        myCode = null;
+    }
+
+    private int getLabel(String name) throws IOException
+    {
+        if (!isName(name)) error("invalid label '"+name+"'");
+        Integer label = myLabels.get(name);
+        if (label == null) {
+            label = Integer.valueOf(myCode.newLabel());
+            myLabels.put(name, label);
+            myLabelLines.put(name, Integer.valueOf(myLine));
+        }
+        return label.intValue();
+    }
+
+    private void define(String name, int value) throws IOException
+    {
+        if (!isName(name)) error("invalid name '"+name+"'");
+        if (myConstants.containsKey(name)) error("'"+name+"' defined twice");
+        myConstants.put(name, Integer.valueOf(value));
+    }
+    /**
+     * Evaluate an argument: numbers, characters and constants joined by '|' or '+'.
+     *
+     * @return Integer the value, or null if it uses a constant not yet defined
+     */
+    private Integer evaluate(String expr) throws IOException
+    {
+        int value = 0;
+        char join = '+';
+        int start = 0;
+        int len = expr.length();
+        for(int i=0; i <= len; i++) {
+            // A '+' or '|' after the first character of a term joins two terms
+            if (i < len && (i == start || (expr.charAt(i) != '|' && expr.charAt(i) != '+'))) continue;
+            Integer term = evaluateTerm(expr.substring(start, i));
+            if (term == null) return null;
+            value = (join == '|')?value | term.intValue():value + term.intValue();
+            if (i < len) join = expr.charAt(i);
+            start = i + 1;
+        }
+        return Integer.valueOf(value);
+    }
+
+    private Integer evaluateTerm(String term) throws IOException
+    {
+        if (term.length() == 0) error("value expected");
+        char c = term.charAt(0);
+        if (c == '\'') {
+            if (term.length() != 3 || term.charAt(2) != '\'') error("invalid character '"+term+"'");
+            return Integer.valueOf(term.charAt(1));
+        }
+        if (Character.isDigit(c) || c == '-') {
+            try {
+                if (term.startsWith("0x") || term.startsWith("0X")) return Integer.valueOf(Integer.parseInt(term.substring(2), 16));
+                if (term.startsWith("-0x") || term.startsWith("-0X")) return Integer.valueOf(-Integer.parseInt(term.substring(3), 16));
+                return Integer.valueOf(term);
+            } catch (NumberFormatException e) {
+                error("invalid number '"+term+"'");
+            }
+        }
+        if (!isName(term)) error("invalid value '"+term+"'");
+        return myConstants.get(term);
+    }
+
+    private byte toByte(int value) throws IOException
+    {
+        if (value < -128 || value > 0xff) error("value "+value+" out of range");
+        return (byte) value;
+    }
+
+    private static boolean isName(String s)
+    {
+        if (s.length() == 0 || !Character.isJavaIdentifierStart(s.charAt(0))) return false;
+        for(int i=1; i < s.length(); i++) {
+            if (!Character.isJavaIdentifierPart(s.charAt(i))) return false;
+        }
+        return true;
+    }
+    /**
+     * Split a line into tokens at white space and commas, up to any comment.
+     */
+    private void tokenize(String line)
+    {
+        myTokenCount = 0;
+        int len = line.length();
+        int start = -1;
+        for(int i=0; i <= len; i++) {
+            char c = (i < len)?line.charAt(i):'\n';
+            boolean comment = c == '#' || c == ';' || (c == '/' && i+1 < len && line.charAt(i+1) == '/');
+            // Characters in quotes are part of the token
+            if (start >= 0 && line.charAt(start) == '\'' && i - start < 3 && i < len) continue;
+            if (c == ',' || Character.isWhitespace(c) || comment) {
+                if (start >= 0) addToken(line.substring(start, i));
+                start = -1;
+                if (comment) return;
+            } else if (start < 0) {
+                start = i;
+            }
+        }
+    }
+
+    private void addToken(String token)
+    {
+        if (myTokenCount == myTokens.length) {
+            String [] nt = new String[myTokenCount*2];
+            System.arraycopy(myTokens, 0, nt, 0, myTokenCount);
+            myTokens = nt;
+        }
+        myTokens[myTokenCount++] = token;
+    }
+
+    private void error(String msg) throws IOException
+    {
+        throw new IOException("Line "+myLine+": "+msg);
+    }
+
+    static class Fixup
+    {
+        byte [] myArgs;
+        int myIndex;
+        String myExpr;
+        int myLine;
+
+        Fixup(byte [] args, int index, String expr, int line)
+        {
+            myArgs = args;
+            myIndex = index;
+            myExpr = expr;
+            myLine = line;
+        }
+    }
+}
@@ -0,0 +1,282 @@
+/**
+ * @(#) RCXAsyncPort.java 0.1 98/03/12
+ *
+ *  Copyright (C) 1998, Scott B. Lewis.  All Rights Reserved.
+ *
+ *  License to copy, use, and modify this software is granted provided that
+ *  this notice is retained in any copies of any part of this software.
+ *
+ *  The author makes no guarantee that this software will compile or
+ *  function correctly.  Also, if you use this software, you do so at your
+ *  own risk.
+ *
+ *  Scott B. Lewis.  slewis@teleport.com  http://www.slewis.com
+ */
+package rcxport;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Non-blocking interface to an RCXPort.  Commands are put on a bounded queue and
+ * sent by a dedicated I/O thread that owns the port, and each submit returns a
+ * CompletableFuture that is completed with the RCXResult (or the IOException) once
+ * the RCX has replied.  The results given to futures are copies, so they stay valid.
+ * <p>
+ * When the queue is full, submit() blocks until there is room and trySubmit()
+ * returns null, so a caller that issues commands faster than the 2400 baud link can
+ * carry them is held back.
+ * <p>
+ * Output commands (OutputPower, OutputDir and OutputMode) may be submitted with
+ * coalescing on.  If the last command waiting to be sent has the same opcode for
+ * exactly the same outputs, its data is replaced by the new command and its future is
+ * returned, so only the latest setting goes over the link.  Only the last command is
+ * replaced, so commands still reach the RCX in the order they were submitted.
+ * Otherwise the command is queued as usual.
+ * <p>
+ * While an RCXAsyncPort is running, the RCXPort should not be used directly.  If
+ * sending a command fails with an unexpected RuntimeException, its future is
+ * completed with that exception and the async port is closed.
+ */
+public class RCXAsyncPort
+{
+    public static final int DEFAULTQUEUESIZE = 32;
+    // Bits of the first argument of output commands that select the outputs
+    public static final int OUTPUTMASK = 0x07;
+
+    private RCXPort myPort;
+    private Thread myThread;
+    private boolean myClosed;
+    // Guards the queue.  The I/O thread waits on myNotEmpty for commands, and submitters
+    // on myNotFull for room.  A lock rather than wait(), which pins a virtual thread.
+    private final ReentrantLock myLock = new ReentrantLock();
+    private final Condition myNotEmpty = myLock.newCondition();
+    private final Condition myNotFull = myLock.newCondition();
+
+    // Queue of commands waiting to be sent
+    private Request [] myQueue;
+    private int myQueueStart;
+    private int myQueueCount;
+
+    /**
+     * Create an async port with the default queue size, and start its I/O thread.
+     *
+     * @param port the RCXPort to send commands on.  Must not be null.
+     */
+    public RCXAsyncPort(RCXPort port)
+    {
+        this(port, DEFAULTQUEUESIZE);
+    }
+    /**
+     * Create an async port, and start its I/O thread.
+     *
+     * @param port the RCXPort to send commands on.  Must not be null.
+     * @param queueSize the number of commands that may wait to be sent
+     */
+    public RCXAsyncPort(RCXPort port, int queueSize)
+    {
+        myPort = port;
+        myQueue = new Request[queueSize];
+        myThread = new Thread(new Runnable() {
+            public void run()
+            {
+                runQueue();
+            }
+        }, "RCXAsyncPort-"+port.getPortName());
+        myThread.setDaemon(true);
+        myThread.start();
+    }
+    /**
+     * Submit a command, waiting for room in the queue if it is full.
+     *
+     * @param data the command bytes.  Copied, so the array may be reused.
+     * @return CompletableFuture completed with a copy of the result
+     * @exception IOException thrown if the port is closed, or the wait is interrupted
+     */
+    public CompletableFuture<RCXResult> submit(byte [] data) throws IOException
+    {
+        return submit(data, false);
+    }
+    /**
+     * Submit a command, waiting for room in the queue if it is full.
+     *
+     * @param data the command bytes.  Copied, so the array may be reused.
+     * @param coalesce if true and data is an output command, replace a waiting command
+     * for the same outputs instead of queuing another
+     * @return CompletableFuture completed with a copy of the result
+     * @exception IOException thrown if the port is closed, or the wait is interrupted
+     */
+    public CompletableFuture<RCXResult> submit(byte [] data, boolean coalesce) throws IOException
+    {
+        myLock.lock();
+        try {
+            CompletableFuture<RCXResult> res = trySubmit(data, coalesce);
+            while (res == null) {
+                try {
+                    myNotFull.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted");
+                }
+                res = trySubmit(data, coalesce);
+            }
+            return res;
+        } finally {
+            myLock.unlock();
+        }
+    }
+    /**
+     * Submit a command if there is room in the queue.
+     *
+     * @param data the command bytes.  Copied, so the array may be reused.
+     * @param coalesce if true and data is an output command, replace a waiting command
+     * for the same outputs instead of queuing another
+     * @return CompletableFuture completed with a copy of the result, or null if the
+     * queue is full
+     * @exception IOException thrown if the port is closed, or data is empty
+     */
+    public CompletableFuture<RCXResult> trySubmit(byte [] data, boolean coalesce) throws IOException
+    {
+        myLock.lock();
+        try {
+            if (myClosed) throw new IOException("Port closed");
+            if (data == null || data.length == 0) throw new IOException("Null data");
+            if (coalesce && isOutputCommand(data)) {
+                Request r = findCoalescable(data);
+                if (r != null) {
+                    r.myData = RCXCmd.copy(data, 0, data.length);
+                    return r.myFuture;
+                }
+            }
+            if (myQueueCount == myQueue.length) return null;
+            Request r = new Request(RCXCmd.copy(data, 0, data.length));
+            myQueue[(myQueueStart + myQueueCount) % myQueue.length] = r;
+            myQueueCount++;
+            myNotEmpty.signal();
+            return r.myFuture;
+        } finally {
+            myLock.unlock();
+        }
+    }
+    /**
+     * Get number of commands waiting to be sent.
+     */
+    public int getQueued()
+    {
+        myLock.lock();
+        try {
+            return myQueueCount;
+        } finally {
+            myLock.unlock();
+        }
+    }
+
+    public RCXPort getPort()
+    {
+        return myPort;
+    }
+    /**
+     * Stop the I/O thread.  Commands still waiting are failed with an IOException.  The
+     * RCXPort is not closed.
+     */
+    public void close()
+    {
+        myLock.lock();
+        try {
+            if (myClosed) return;
+            myClosed = true;
+            while (myQueueCount > 0) {
+                take().myFuture.completeExceptionally(new IOException("Port closed"));
+            }
+            myNotEmpty.signalAll();
+            myNotFull.signalAll();
+        } finally {
+            myLock.unlock();
+        }
+        myThread.interrupt();
+    }
+    /**
+     * Find whether the last waiting command sets the same outputs with the same opcode.
+     * Earlier commands are never replaced, as that would send the new setting before
+     * the commands that follow them.
+     *
+     * @return Request the waiting command to replace, or null if there is none
+     */
+    private Request findCoalescable(byte [] data)
+    {
+        if (myQueueCount == 0) return null;
+        Request r = myQueue[(myQueueStart + myQueueCount - 1) % myQueue.length];
+        if ((r.myData[0] & 0xf7) != (data[0] & 0xf7) || r.myData.length != data.length) return null;
+        return ((r.myData[1] & OUTPUTMASK) == (data[1] & OUTPUTMASK))?r:null;
+    }
+
+    private static boolean isOutputCommand(byte [] data)
+    {
+        if (data.length < 2) return false;
+        int op = data[0] & 0xf7;
+        return op == (RCXCmd.OutputPower & 0xf7) || op == (RCXCmd.OutputDir & 0xf7) ||
+            op == (RCXCmd.OutputMode & 0xf7);
+    }
+
+    private Request take()
+    {
+        Request r = myQueue[myQueueStart];
+        myQueue[myQueueStart] = null;
+        myQueueStart = (myQueueStart + 1) % myQueue.length;
+        myQueueCount--;
+        return r;
+    }
+
+    private Request next() throws InterruptedException
+    {
+        myLock.lock();
+        try {
+            while (myQueueCount == 0 && !myClosed) myNotEmpty.await();
+            if (myClosed) return null;
+            Request r = take();
+            // Wake up submitters waiting for room
+            myNotFull.signalAll();
+            return r;
+        } finally {
+            myLock.unlock();
+        }
+    }
+
+    private void runQueue()
+    {
+        while (true) {
+            Request r;
+            try {
+                r = next();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (r == null) return;
+            try {
+                r.myFuture.complete(myPort.sendData(r.myData));
+            } catch (IOException e) {
+                r.myFuture.completeExceptionally(e);
+            } catch (RuntimeException e) {
+                // The port's state is unknown.  Fail this command and those waiting,
+                // rather than leave their futures pending with no thread to send them.
+                r.myFuture.completeExceptionally(e);
+                close();
+                return;
+            }
+        }
+    }
+
+    static class Request
+    {
+        byte [] myData;
+        CompletableFuture<RCXResult> myFuture = new CompletableFuture<RCXResult>();
+
+        Request(byte [] data)
+        {
+            myData = data;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * @(#) RCXBatch.java 0.1 98/03/12
+ *
+ *  Copyright (C) 1998, Scott B. Lewis.  All Rights Reserved.
+ *
+ *  License to copy, use, and modify this software is granted provided that
+ *  this notice is retained in any copies of any part of this software.
+ *
+ *  The author makes no guarantee that this software will compile or
+ *  function correctly.  Also, if you use this software, you do so at your
+ *  own risk.
+ *
+ *  Scott B. Lewis.  slewis@teleport.com  http://www.slewis.com
+ */
+package rcxport;
+
+/**
+ * A sequence of commands sent together by RCXPort.sendBatch().  The port is held
+ * for the whole sequence, so no other thread's commands come between them.
+ * <p>
+ * A batch can be sent again and again; its packets and results are reused, so
+ * sending it allocates nothing.  The results of the commands are kept until it is
+ * next sent.
+ * <p>
+ * The commands are not written back to back.  The IR link is half duplex and the
+ * RCX replies to every command, so each command waits for the reply to the one
+ * before, as with sendData.
+ */
+public class RCXBatch
+{
+    public static final int INITIALSIZE = 8;
+
+    RCXPacket [] myPackets = new RCXPacket[INITIALSIZE];
+    RCXResult [] myResults = new RCXResult[INITIALSIZE];
+    private int mySize;
+
+    /**
+     * Add a command.  The data is not copied, so it must not change while the batch
+     * is in use.
+     *
+     * @param command the command bytes
+     * @return RCXBatch this batch
+     * @exception IllegalArgumentException thrown if the command is empty
+     */
+    public RCXBatch add(byte [] command)
+    {
+        return add(command, 0, (command == null)?0:command.length);
+    }
+
+    public RCXBatch add(byte [] data, int offset, int length)
+    {
+        if (data == null || length < 1) throw new IllegalArgumentException("Empty command");
+        next().set(data, offset, length);
+        return this;
+    }
+    /**
+     * Add a pre-encoded command.
+     *
+     * @param frame the command
+     * @return RCXBatch this batch
+     */
+    public RCXBatch add(RCXFrame frame)
+    {
+        next().set(frame);
+        return this;
+    }
+
+    public int size()
+    {
+        return mySize;
+    }
+    /**
+     * Remove all the commands, keeping the packets and results for reuse.
+     */
+    public void clear()
+    {
+        mySize = 0;
+    }
+    /**
+     * Get the result of a command from when the batch was last sent.
+     *
+     * @param index the index of the command
+     * @return RCXResult the result.  Only valid until the batch is sent again.
+     */
+    public RCXResult getResult(int index)
+    {
+        if (index < 0 || index >= mySize) throw new IndexOutOfBoundsException("No command "+index);
+        return myResults[index];
+    }
+
+    private RCXPacket next()
+    {
+        if (mySize == myPackets.length) {
+            RCXPacket [] packets = new RCXPacket[mySize*2];
+            System.arraycopy(myPackets, 0, packets, 0, mySize);
+            myPackets = packets;
+            RCXResult [] results = new RCXResult[mySize*2];
+            System.arraycopy(myResults, 0, results, 0, mySize);
+            myResults = results;
+        }
+        if (myPackets[mySize] == null) {
+            myPackets[mySize] = new RCXPacket();
+            myResults[mySize] = new RCXResult();
+        }
+        return myPackets[mySize++];
+    }
+}
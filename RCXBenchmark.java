@@ -0,0 +1,302 @@
+/**
+ * @(#) RCXBenchmark.java 0.1 98/03/12
+ *
+ *  Copyright (C) 1998, Scott B. Lewis.  All Rights Reserved.
+ *
+ *  License to copy, use, and modify this software is granted provided that
+ *  this notice is retained in any copies of any part of this software.
+ *
+ *  The author makes no guarantee that this software will compile or
+ *  function correctly.  Also, if you use this software, you do so at your
+ *  own risk.
+ *
+ *  Scott B. Lewis.  slewis@teleport.com  http://www.slewis.com
+ */
+package rcxport;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+
+/**
+ * Benchmarks for the paths that every command takes, to measure changes against.
+ * Each benchmark is warmed up, then run for a number of rounds of fixed length,
+ * and the time and bytes allocated per operation are reported (allocation only on
+ * JVMs that count it per thread).
+ * <p>
+ * Usage:  java rcxport.RCXBenchmark [-t &lt;seconds per round&gt;] [-r &lt;rounds&gt;] [&lt;benchmark&gt; ...]
+ * <p>
+ * The benchmarks are:
+ * <ul>
+ * <li>packet: encode a 2 byte command into a frame (RCXPacket.writePacket)
+ * <li>frame: write a pre-encoded command (RCXFrame)
+ * <li>result: decode the echo and reply of a Read from a canned frame (RCXResult.read)
+ * <li>download: build a full Download block (RCXCmd.makeDownload)
+ * <li>parse: parse a listing of LISTINGSIZE byte codes (RCXPort.getByteCodesFromString)
+ * <li>program: download a program of PROGRAMSIZE bytes through an RCXSimulatedTower
+ * without wire timing (RCXPort.downloadProgram)
+ * </ul>
+ */
+public class RCXBenchmark
+{
+    public static final double DEFAULTSECONDS = 1.0;
+    public static final int DEFAULTROUNDS = 5;
+    public static final int LISTINGSIZE = 65536;
+    public static final int PROGRAMSIZE = 400;
+
+    // Results are added here so no benchmark's work can be optimized away
+    static volatile long theSink;
+
+    private static final Bench [] theBenches = {
+        new Bench("packet") {
+            RCXPacket myPacket = new RCXPacket();
+            byte [] myCommand = RCXCmd.makeRead(RCXCmd.makeValue(RCXCmd.SOURCE_VARIABLE, 0));
+            OutputStream myOut = new NullOutputStream();
+
+            int run() throws Exception
+            {
+                myPacket.set(myCommand, 0, myCommand.length);
+                myPacket.writePacket(myOut);
+                return myPacket.mySendLength;
+            }
+        },
+        new Bench("frame") {
+            RCXPacket myPacket = new RCXPacket();
+            OutputStream myOut = new NullOutputStream();
+
+            int run() throws Exception
+            {
+                myPacket.set(RCXFrame.PING);
+                myPacket.writePacket(myOut);
+                return myPacket.mySendLength;
+            }
+        },
+        new Bench("result") {
+            RCXPacket myPacket = new RCXPacket();
+            RCXResult myResult = new RCXResult();
+            ByteArrayInputStream myIn;
+
+            void setUp() throws Exception
+            {
+                byte [] command = RCXCmd.makeRead(RCXCmd.makeValue(RCXCmd.SOURCE_VARIABLE, 0));
+                myPacket.set(command, 0, command.length);
+                myPacket.writePacket(new NullOutputStream());
+                // The echo of the command, then the reply
+                byte [] echo = RCXCmd.copy(myPacket.mySendData, 0, myPacket.mySendLength);
+                RCXPacket reply = new RCXPacket();
+                byte [] replyData = RCXCmd.set((byte) ~command[0], (byte) 0x34, (byte) 0x12);
+                reply.set(replyData, 0, replyData.length);
+                reply.writePacket(new NullOutputStream());
+                byte [] frame = new byte[echo.length + reply.mySendLength];
+                System.arraycopy(echo, 0, frame, 0, echo.length);
+                System.arraycopy(reply.mySendData, 0, frame, echo.length, reply.mySendLength);
+                myIn = new ByteArrayInputStream(frame);
+            }
+
+            int run() throws Exception
+            {
+                myIn.reset();
+                myResult.read(myIn, myPacket);
+                return myResult.getResultByte(1);
+            }
+        },
+        new Bench("download") {
+            byte [] myData = new byte[RCXPort.MAXDOWNLOADCHUNK];
+            byte [] myCommand = new byte[RCXPort.MAXDOWNLOADCHUNK + 6];
+
+            int run()
+            {
+                return RCXCmd.makeDownload(1, myData, 0, myData.length, myCommand);
+            }
+        },
+        new Bench("parse") {
+            RCXPort myPort;
+            String myListing;
+
+            void setUp() throws Exception
+            {
+                myPort = new RCXPort(new RCXSimulatedTower(new RCXSimulatedBrick(), false));
+                StringBuilder sb = new StringBuilder(LISTINGSIZE*3);
+                for(int i=0; i < LISTINGSIZE; i++) {
+                    sb.append(Integer.toHexString(i & 0xff));
+                    sb.append((i % 16 == 15)?"\n":" ");
+                }
+                myListing = sb.toString();
+            }
+
+            int run()
+            {
+                return myPort.getByteCodesFromString(myListing, RCXPort.FILE_DELIMITERS, RCXPort.FILE_RADIX).length;
+            }
+        },
+        new Bench("program") {
+            RCXPort myPort;
+            RCXProgram myProgram;
+
+            void setUp() throws Exception
+            {
+                myPort = new RCXPort(new RCXSimulatedTower(new RCXSimulatedBrick(), false));
+                byte [] task = new byte[PROGRAMSIZE];
+                for(int i=0; i < task.length; i += 2) {
+                    task[i] = RCXCmd.PlaySound;
+                    task[i+1] = (byte) (i % 6);
+                }
+                myProgram = new RCXProgram((byte) 0, task);
+            }
+
+            int run() throws Exception
+            {
+                myPort.downloadProgram(myProgram, false);
+                return myPort.getDownloadChunk();
+            }
+        },
+    };
+
+    public static void main(String args[]) throws Exception
+    {
+        double seconds = DEFAULTSECONDS;
+        int rounds = DEFAULTROUNDS;
+        java.util.Vector<String> names = new java.util.Vector<String>();
+        try {
+            for(int i=0; i < args.length; i++) {
+                if (args[i].equals("-t")) {
+                    seconds = Double.parseDouble(args[++i]);
+                } else if (args[i].equals("-r")) {
+                    rounds = Integer.parseInt(args[++i]);
+                } else if (find(args[i]) != null) {
+                    names.addElement(args[i]);
+                } else {
+                    throw new Exception("Invalid parameter: "+args[i]);
+                }
+            }
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
+            usage();
+            return;
+        }
+        if (names.isEmpty()) {
+            for(int i=0; i < theBenches.length; i++) names.addElement(theBenches[i].myName);
+        }
+        System.out.println(pad("benchmark", 12)+pad("ops/s", 14)+pad("ns/op", 12)+pad("+-", 10)+"bytes/op");
+        for(int i=0; i < names.size(); i++) {
+            Bench b = find(names.elementAt(i));
+            b.setUp();
+            measure(b, seconds);
+            double [] nanos = new double[rounds];
+            long ops = 0;
+            long bytes = 0;
+            for(int r=0; r < rounds; r++) {
+                long before = getAllocatedBytes();
+                long [] res = measure(b, seconds);
+                bytes += getAllocatedBytes() - before;
+                nanos[r] = (double) res[1] / res[0];
+                ops += res[0];
+            }
+            double mean = 0;
+            for(int r=0; r < rounds; r++) mean += nanos[r]/rounds;
+            double var = 0;
+            for(int r=0; r < rounds; r++) var += (nanos[r] - mean)*(nanos[r] - mean)/Math.max(1, rounds - 1);
+            String alloc = (bytes < 0)?"n/a":String.valueOf(Math.round((double) bytes / ops));
+            System.out.println(pad(b.myName, 12)+pad(format(1e9/mean), 14)+pad(format(mean), 12)+
+                pad(format(Math.sqrt(var)), 10)+alloc);
+        }
+    }
+    /**
+     * Run a benchmark for a time.
+     *
+     * @return long[] the number of operations and the nanoseconds they took
+     */
+    private static long [] measure(Bench b, double seconds) throws Exception
+    {
+        long limit = (long) (seconds*1e9);
+        long ops = 0;
+        long sink = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        // Check the clock only every so often, so it costs little against fast ops
+        int batch = 1;
+        do {
+            for(int i=0; i < batch; i++) sink += b.run();
+            ops += batch;
+            elapsed = System.nanoTime() - start;
+            if (elapsed < limit/100) batch *= 2;
+        } while (elapsed < limit);
+        theSink += sink;
+        return new long [] { ops, elapsed };
+    }
+    /**
+     * Get the bytes allocated by this thread, where the JVM counts them.
+     *
+     * @return long the bytes allocated, or -1 if not known
+     */
+    private static long getAllocatedBytes()
+    {
+        try {
+            Class<?> c = Class.forName("com.sun.management.ThreadMXBean");
+            Method m = c.getMethod("getThreadAllocatedBytes", Long.TYPE);
+            Object bean = ManagementFactory.getThreadMXBean();
+            if (!c.isInstance(bean)) return -1;
+            return ((Long) m.invoke(bean, Long.valueOf(Thread.currentThread().getId()))).longValue();
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private static Bench find(String name)
+    {
+        for(int i=0; i < theBenches.length; i++) {
+            if (theBenches[i].myName.equals(name)) return theBenches[i];
+        }
+        return null;
+    }
+
+    private static String format(double d)
+    {
+        return (d >= 100)?String.valueOf(Math.round(d)):String.valueOf(Math.round(d*100)/100.0);
+    }
+
+    private static String pad(String s, int width)
+    {
+        StringBuilder sb = new StringBuilder(s);
+        while (sb.length() < width) sb.append(' ');
+        return sb.toString();
+    }
+
+    static void usage()
+    {
+        System.out.println("Usage: java rcxport.RCXBenchmark [-t <seconds per round>] [-r <rounds>] [<benchmark> ...]");
+        System.out.print("Benchmarks:");
+        for(int i=0; i < theBenches.length; i++) System.out.print(" "+theBenches[i].myName);
+        System.out.println();
+    }
+    /**
+     * A benchmark.  run() is one operation, and returns something computed from it.
+     */
+    static abstract class Bench
+    {
+        String myName;
+
+        Bench(String name)
+        {
+            myName = name;
+        }
+
+        void setUp() throws Exception
+        {
+        }
+
+        abstract int run() throws Exception;
+    }
+
+    static class NullOutputStream extends OutputStream
+    {
+        public void write(int b)
+        {
+        }
+
+        public void write(byte [] b, int off, int len)
+        {
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/**
+ * @(#) RCXByteCodeParser.java 0.1 98/03/12
+ *
+ *  Copyright (C) 1998, Scott B. Lewis.  All Rights Reserved.
+ *
+ *  License to copy, use, and modify this software is granted provided that
+ *  this notice is retained in any copies of any part of this software.
+ *
+ *  The author makes no guarantee that this software will compile or
+ *  function correctly.  Also, if you use this software, you do so at your
+ *  own risk.
+ *
+ *  Scott B. Lewis.  slewis@teleport.com  http://www.slewis.com
+ */
+package rcxport;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Parser for byte code listings.  A listing is a sequence of numbers (in hex by
+ * default) separated by delimiters or line ends.  Everything from a '#', ';' or
+ * "//" to the end of the line is a comment.
+ * <p>
+ * Characters are parsed one at a time as they are read, straight into a byte array
+ * that grows as needed, so no Strings are built and parsing time is linear in
+ * the size of the listing.  Errors are reported as IOExceptions giving the line
+ * and column of the bad character.
+ */
+public class RCXByteCodeParser
+{
+    public static final int INITIALSIZE = 256;
+    public static final int READBUFF = 4096;
+
+    private boolean [] myDelimiters = new boolean[128];
+    private int myRadix;
+
+    // Parse state
+    private byte [] myBytes;
+    private int myCount;
+    private int myLine;
+    private int myColumn;
+    private int myValue;
+    private int myDigits;
+    private boolean myNegative;
+    private boolean myComment;
+    private boolean mySlash;
+
+    /**
+     * Create a parser using RCXPort.FILE_DELIMITERS and RCXPort.FILE_RADIX.
+     */
+    public RCXByteCodeParser()
+    {
+        this(RCXPort.FILE_DELIMITERS, RCXPort.FILE_RADIX);
+    }
+    /**
+     * Create a parser.
+     *
+     * @param delimiters the characters that separate byte codes.  Line ends always do.
+     * @param radix the radix of the byte codes (e.g. hex=16)
+     */
+    public RCXByteCodeParser(String delimiters, int radix)
+    {
+        for(int i=0; i < delimiters.length(); i++) {
+            char c = delimiters.charAt(i);
+            if (c < myDelimiters.length) myDelimiters[c] = true;
+        }
+        myDelimiters['\n'] = true;
+        myDelimiters['\r'] = true;
+        myRadix = radix;
+    }
+    /**
+     * Parse byte codes from a Reader.  The reader is read to the end but not closed.
+     *
+     * @param r the Reader to read from
+     * @return byte[] the byte codes read
+     * @exception IOException thrown if the reader fails, or the listing is not valid
+     */
+    public byte [] parse(Reader r) throws IOException
+    {
+        reset();
+        char [] buf = new char[READBUFF];
+        int n;
+        while ((n = r.read(buf, 0, buf.length)) != -1) {
+            for(int i=0; i < n; i++) feed(buf[i]);
+        }
+        return finish();
+    }
+    /**
+     * Parse byte codes from an InputStream of ASCII text.  The stream is read to the
+     * end but not closed.
+     *
+     * @param ins the InputStream to read from
+     * @return byte[] the byte codes read
+     * @exception IOException thrown if the stream fails, or the listing is not valid
+     */
+    public byte [] parse(InputStream ins) throws IOException
+    {
+        reset();
+        byte [] buf = new byte[READBUFF];
+        int n;
+        while ((n = ins.read(buf, 0, buf.length)) != -1) {
+            for(int i=0; i < n; i++) feed((char) (buf[i] & 0xff));
+        }
+        return finish();
+    }
+    /**
+     * Parse byte codes from a String.
+     *
+     * @param aString the listing to parse
+     * @return byte[] the byte codes read
+     * @exception IOException thrown if the listing is not valid
+     */
+    public byte [] parse(String aString) throws IOException
+    {
+        reset();
+        int len = aString.length();
+        for(int i=0; i < len; i++) feed(aString.charAt(i));
+        return finish();
+    }
+    /**
+     * Parse byte codes from a file of ASCII text.  The file is memory mapped and parsed
+     * in place.
+     *
+     * @param fileName the name of the file to read
+     * @return byte[] the byte codes read
+     * @exception IOException thrown if the file cannot be read, or the listing is not valid
+     */
+    public byte [] parseFile(String fileName) throws IOException
+    {
+        RandomAccessFile file = new RandomAccessFile(fileName, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            reset();
+            int n = buf.limit();
+            for(int i=0; i < n; i++) feed((char) (buf.get(i) & 0xff));
+            return finish();
+        } finally {
+            file.close();
+        }
+    }
+
+    private void reset()
+    {
+        myBytes = new byte[INITIALSIZE];
+        myCount = 0;
+        myLine = 1;
+        myColumn = 0;
+        myDigits = 0;
+        myValue = 0;
+        myNegative = false;
+        myComment = false;
+        mySlash = false;
+    }
+
+    private void feed(char c) throws IOException
+    {
+        myColumn++;
+        if (c == '\n') {
+            endToken();
+            myComment = false;
+            myLine++;
+            myColumn = 0;
+            return;
+        }
+        if (myComment) return;
+        if (mySlash) {
+            if (c != '/') error("'/' expected");
+            mySlash = false;
+            myComment = true;
+            return;
+        }
+        if (c < myDelimiters.length && myDelimiters[c]) {
+            endToken();
+        } else if (c == '#' || c == ';') {
+            endToken();
+            myComment = true;
+        } else if (c == '/') {
+            endToken();
+            mySlash = true;
+        } else if (c == '-' && myDigits == 0 && !myNegative) {
+            myNegative = true;
+        } else {
+            int d = Character.digit(c, myRadix);
+            if (d < 0) error("invalid character '"+c+"'");
+            myValue = myValue*myRadix + d;
+            myDigits++;
+            if (myValue > 0xff) error("byte code out of range");
+        }
+    }
+
+    private void endToken() throws IOException
+    {
+        if (myDigits == 0) {
+            if (myNegative) error("digit expected");
+            return;
+        }
+        if (myCount == myBytes.length) {
+            byte [] nb = new byte[myBytes.length*2];
+            System.arraycopy(myBytes, 0, nb, 0, myCount);
+            myBytes = nb;
+        }
+        myBytes[myCount++] = (byte) ((myNegative)?-myValue:myValue);
+        myValue = 0;
+        myDigits = 0;
+        myNegative = false;
+    }
+
+    private byte [] finish() throws IOException
+    {
+        if (mySlash) error("'/' expected");
+        endToken();
+        byte [] res = new byte[myCount];
+        System.arraycopy(myBytes, 0, res, 0, myCount);
+        myBytes = null;
+        return res;
+    }
+
+    private void error(String msg) throws IOException
+    {
+        throw new IOException("Line "+myLine+", column "+myColumn+": "+msg);
+    }
+}
@@ -15,6 +15,7 @@
 package rcxport;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Build and manipulate RCX commands.
@@ -39,6 +40,16 @@ public class RCXCmd {
     public static final byte SJump = (byte)             0x27;
     public static final byte SetLoop = (byte)           0x82;
     public static final byte CheckLoop = (byte)         0x92;
+// variables
+    public static final byte SetVar = (byte)            0x14;
+    public static final byte SumVar = (byte)            0x24;
+    public static final byte SubVar = (byte)            0x34;
+    public static final byte DivVar = (byte)            0x44;
+    public static final byte MulVar = (byte)            0x54;
+    public static final byte SgnVar = (byte)            0x64;
+    public static final byte AbsVar = (byte)            0x74;
+    public static final byte AndVar = (byte)            0x84;
+    public static final byte OrVar = (byte)             0x94;
 // misc
     public static final byte Delay = (byte)             0x43;
     public static final byte Display = (byte)           0x33;
@@ -74,6 +85,33 @@ public class RCXCmd {
     public static final byte IRMode = (byte)            0x31;
     public static final byte AutoOff = (byte)           0xb1;
 
+    // Download (transfer data) status codes
+    public static final byte TRANSFER_OK = 0;
+    public static final byte TRANSFER_BLOCKCHECKSUM = 3;
+    public static final byte TRANSFER_FIRMWARECHECKSUM = 4;
+    public static final byte TRANSFER_NOSTART = 6;
+
+    // Sources of values (the high word of a value given to makeValue16, makeRead etc.)
+    public static final int SOURCE_VARIABLE = 0;
+    public static final int SOURCE_TIMER = 1;
+    public static final int SOURCE_CONSTANT = 2;
+    public static final int SOURCE_RANDOM = 4;
+    public static final int SOURCE_PROGRAM = 8;
+    public static final int SOURCE_SENSORVALUE = 9;
+    public static final int SOURCE_SENSORTYPE = 10;
+    public static final int SOURCE_SENSORMODE = 11;
+    public static final int SOURCE_SENSORRAW = 12;
+    public static final int SOURCE_SENSORBOOL = 13;
+    public static final int SOURCE_WATCH = 14;
+    public static final int SOURCE_MESSAGE = 15;
+
+    // Reply to the firmware unlock command
+    public static final String UNLOCK_REPLY = "Just a bit off the block!";
+
+    // Reply lengths from getReplyLength() for commands without a fixed length
+    public static final int REPLY_NONE = 0;
+    public static final int REPLY_UNKNOWN = -1;
+
     public static byte hibyte(int i)
     {
        return (byte) ((i >>> 8) & (byte) 0xff);
@@ -153,6 +191,106 @@ public class RCXCmd {
         return newBytes;
     }
 
+    /**
+     * Get the number of bytes in the RCX's reply to a command, counting the reply
+     * opcode but not the complements or checksum.
+     *
+     * @param data the array holding the command
+     * @param offset the index of the opcode
+     * @param length the number of bytes in the command
+     * @return int the reply length, REPLY_NONE for a command the RCX does not reply
+     * to, or REPLY_UNKNOWN
+     */
+    public static int getReplyLength(byte [] data, int offset, int length)
+    {
+        switch (data[offset] & 0xf7) {
+            case Message & 0xf7:
+                return REPLY_NONE;
+            case Ping & 0xf7:
+            case StopAll & 0xf7:
+            case DeleteTasks & 0xf7:
+            case DeleteSubs & 0xf7:
+            case SelectProgram & 0xf7:
+            case PlaySound & 0xf7:
+            case PlayTone & 0xf7:
+            case StartTask & 0xf7:
+            case StopTask & 0xf7:
+            case OutputMode & 0xf7:
+            case OutputPower & 0xf7:
+            case OutputDir & 0xf7:
+            case InputMode & 0xf7:
+            case InputType & 0xf7:
+            case ClearTimer & 0xf7:
+            case ClearSensor & 0xf7:
+            case ClearMsg & 0xf7:
+            case SendMessage & 0xf7:
+            case Display & 0xf7:
+            case SetWatch & 0xf7:
+            case SetVar & 0xf7:
+            case SumVar & 0xf7:
+            case SubVar & 0xf7:
+            case DivVar & 0xf7:
+            case MulVar & 0xf7:
+            case SgnVar & 0xf7:
+            case AbsVar & 0xf7:
+            case AndVar & 0xf7:
+            case OrVar & 0xf7:
+            case IRMode & 0xf7:
+            case AutoOff & 0xf7:
+            case BootMode & 0xf7:
+                return 1;
+            case BeginTask & 0xf7:
+            case BeginSub & 0xf7:
+            case Download & 0xf7:
+            case BeginFirmware & 0xf7:
+            case SetDatalog & 0xf7:
+                return 2;
+            case Read & 0xf7:
+            case BatteryLevel & 0xf7:
+                return 3;
+            case Unlock & 0xf7:
+                // ROM and firmware versions
+                return 9;
+            case EndFirmware & 0xf7:
+                // "Just a bit off the block!"
+                return 26;
+            case UploadDatalog & 0xf7:
+                // 3 bytes for each entry
+                if (length < 5) return REPLY_UNKNOWN;
+                return 1 + 3*((data[offset+3] & 0xff) | ((data[offset+4] & 0xff) << 8));
+            default:
+                return REPLY_UNKNOWN;
+        }
+    }
+
+    /**
+     * Get the number of argument bytes that follow an opcode in a program.  This is
+     * the low 3 bits of the opcode, except for SJump, GoSub and Message (1 byte) and
+     * Test (7 bytes).
+     * <p>
+     * Branch offsets are taken to be relative to the address of the first offset 
+     * byte.  SJump has one offset byte, with bit 7 set for a backward jump.  Jump has
+     * two, low byte first, with bit 7 of the high byte set for a backward jump.  Test
+     * (condition and first source, second source, first value, second value low and 
+     * high bytes, offset low and high bytes) and CheckLoop have a signed 16 bit offset.
+     *
+     * @param op the opcode
+     * @return int the number of argument bytes
+     */
+    public static int getArgLength(byte op)
+    {
+        switch (op) {
+            case SJump:
+            case GoSub:
+            case Message:
+                return 1;
+            case Test:
+                return 7;
+            default:
+                return op & 7;
+        }
+    }
+
     public static byte [] startTask(byte task)
     {
         return set(StartTask, task);
@@ -168,6 +306,54 @@ public class RCXCmd {
 	    return set(Unlock, (byte) 1, (byte) 3, (byte) 5, (byte) 7, (byte) 0xb);
     }
 
+    public static byte [] makeDeleteFirmware()
+    {
+        return set(BootMode, (byte) 1, (byte) 3, (byte) 5, (byte) 7, (byte) 0xb);
+    }
+
+    public static byte [] makeBeginFirmware(int start, int checksum)
+    {
+        return set(BeginFirmware, lobyte(start), hibyte(start), lobyte(checksum), hibyte(checksum), (byte) 0);
+    }
+
+    public static byte [] makeUnlockFirmware()
+    {
+        return set(EndFirmware, (byte) 'L', (byte) 'E', (byte) 'G', (byte) 'O', (byte) 0xae);
+    }
+
+    public static void checkBeginFirmwareResult(RCXResult res) throws IOException
+    {
+        if (res.getResultLength() != 2) throw new IOException("Bad result for begin firmware");
+        if (res.getResultByte(1) != 0) throw new IOException("Firmware download refused");
+    }
+
+    public static void checkUnlockFirmwareResult(RCXResult res) throws IOException
+    {
+        int n = UNLOCK_REPLY.length();
+        if (res.getResultLength() != n+1) throw new IOException("Bad result for unlock firmware");
+        for(int i=0; i < n; i++) {
+            if (res.getResultByte(i+1) != (byte) UNLOCK_REPLY.charAt(i)) throw new IOException("Firmware not unlocked");
+        }
+    }
+
+    /**
+     * Get a version from the result of an Unlock command.
+     *
+     * @param res the result of the Unlock command
+     * @param firmware if true get the firmware version, otherwise the ROM version
+     * @return int the version, major number in the high word and minor in the low
+     * word.  The firmware version is 0 if no firmware is loaded.
+     * @exception IOException thrown if the result is not an Unlock result
+     */
+    public static int getVersion(RCXResult res, boolean firmware) throws IOException
+    {
+        if (res.getResultLength() != 9) throw new IOException("Bad result for unlock");
+        int v = 0;
+        int start = (firmware)?5:1;
+        for(int i=0; i < 4; i++) v = (v << 8) | (res.getResultByte(start + i) & 0xff);
+        return v;
+    }
+
     public static byte [] makePlayTone(int freq, byte duration)
     {
         return set(PlayTone, lobyte(freq), hibyte(freq), duration);
@@ -188,6 +374,33 @@ public class RCXCmd {
         return set(BeginSub, (byte) 0, taskNum, (byte) 0, lobyte(length), hibyte(length));
     }
 
+    /**
+     * Make a value from a source and argument, as taken by makeValue16 and makeRead.
+     *
+     * @param source the source (e.g. SOURCE_VARIABLE)
+     * @param arg the variable, timer or sensor number, or the constant
+     * @return int the value
+     */
+    public static int makeValue(int source, int arg)
+    {
+        return (source << 16) | (arg & 0xffff);
+    }
+
+    public static byte [] makeRead(int val)
+    {
+        return set(Read, getValueType(val), (byte) getValueData(val));
+    }
+
+    public static byte [] makeSetDatalog(int size)
+    {
+        return set(SetDatalog, lobyte(size), hibyte(size));
+    }
+
+    public static byte [] makeUploadDatalog(int first, int count)
+    {
+        return set(UploadDatalog, lobyte(first), hibyte(first), lobyte(count), hibyte(count));
+    }
+
     public static byte [] makeOutputPower(byte outputs, int val)
     {
         return set(OutputPower, outputs, getValueType(val), (byte) getValueData(val));
@@ -207,42 +420,85 @@ public class RCXCmd {
     public static byte [] makeDownload(int seq, byte [] data)
     {
         byte [] nb = newBytes(data.length+6);
-        nb[0] = Download;
-        nb[1] = lobyte(seq);
-        nb[2] = hibyte(seq);
-        nb[3] = lobyte(data.length);
-        nb[4] = hibyte(data.length);
+        makeDownload(seq, data, 0, data.length, nb);
+        return nb;
+    }
+
+    /**
+     * Build a Download command for part of an array into a buffer provided by the
+     * caller, so no new array is needed for each block.
+     *
+     * @param seq the block sequence number (0 for the last block)
+     * @param data the array holding the bytes to download
+     * @param start the index of the first byte to download
+     * @param length the number of bytes to download
+     * @param dest the buffer for the command.  Must hold at least length+6 bytes.
+     * @return int the number of command bytes written to dest
+     */
+    public static int makeDownload(int seq, byte [] data, int start, int length, byte [] dest)
+    {
+        dest[0] = Download;
+        dest[1] = lobyte(seq);
+        dest[2] = hibyte(seq);
+        dest[3] = lobyte(length);
+        dest[4] = hibyte(length);
 
         byte checksum = 0;
-        for(int i=0; i < data.length; i++) {
-            byte d = data[i];
+        for(int i=0; i < length; i++) {
+            byte d = data[start+i];
             checksum += d;
-            nb[5+i] = d;
+            dest[5+i] = d;
         }
-        nb[data.length+5] = checksum;
-        return nb;
+        dest[length+5] = checksum;
+        return length+6;
+    }
+
+    /**
+     * Build a Download command for bytes from a buffer, starting at its position,
+     * into a buffer provided by the caller.  The position is moved past the bytes.
+     *
+     * @param seq the block sequence number (0 for the last block)
+     * @param data the buffer holding the bytes to download
+     * @param length the number of bytes to download
+     * @param dest the buffer for the command.  Must hold at least length+6 bytes.
+     * @return int the number of command bytes written to dest
+     */
+    public static int makeDownload(int seq, ByteBuffer data, int length, byte [] dest)
+    {
+        dest[0] = Download;
+        dest[1] = lobyte(seq);
+        dest[2] = hibyte(seq);
+        dest[3] = lobyte(length);
+        dest[4] = hibyte(length);
+        data.get(dest, 5, length);
+
+        byte checksum = 0;
+        for(int i=0; i < length; i++) checksum += dest[5+i];
+        dest[length+5] = checksum;
+        return length+6;
     }
 
     public static void checkStartDownloadResult(boolean task, RCXResult res)
         throws IOException
     {
-        byte [] results = res.getResult();
-        if (results.length != 2) throw new IOException("Bad result");
+        if (res.getResultLength() != 2) throw new IOException("Bad result");
+        byte op = res.getResultByte(0);
+        byte status = res.getResultByte(1);
         if (task) {
-            if (results[0]==((byte) 0xd2)||results[0]==((byte) 0xda)) {
-                if (results[1]==((byte) 0)) return;
+            if (op==((byte) 0xd2)||op==((byte) 0xda)) {
+                if (status==((byte) 0)) return;
                 else {
-                    if (results[1]==((byte) 1)) throw new IOException("Insufficient Memory");
-                    else if (results[1]==((byte) 2)) throw new IOException("Task index invalid");
+                    if (status==((byte) 1)) throw new IOException("Insufficient Memory");
+                    else if (status==((byte) 2)) throw new IOException("Task index invalid");
                 }
             }
             throw new IOException("Error in response");
         } else {
-            if (results[0]==((byte) 0xc2)||results[0]==((byte) 0xca)) {
-                if (results[1]==0) return;
+            if (op==((byte) 0xc2)||op==((byte) 0xca)) {
+                if (status==0) return;
                 else {
-                    if (results[1]==((byte) 1)) throw new IOException("Insufficient Memory");
-                    else if (results[1]==((byte) 2)) throw new IOException("Subroutine index invalid");
+                    if (status==((byte) 1)) throw new IOException("Insufficient Memory");
+                    else if (status==((byte) 2)) throw new IOException("Subroutine index invalid");
                 }
                 throw new IOException("Error in response");
             }
@@ -251,11 +507,28 @@ public class RCXCmd {
 
     public static void checkTransferDataResult(RCXResult res) throws IOException
     {
-        byte [] results = res.getResult();
-        if (results.length != 2||(results[0]!=((byte)0xb2)&&results[0]!=((byte)0xba))) throw new IOException("Bad result for transfer data");
-        if (results[1]==((byte) 3)) throw new IOException("block checksum failure");
-        if (results[1]==((byte) 4)) throw new IOException("firmware checksum error");
-        if (results[1]==((byte) 6)) throw new IOException("invalid or missing download start");
+        checkTransferDataStatus(getTransferDataStatus(res));
+    }
+
+    /**
+     * Get the status code from the result of a Download command.
+     *
+     * @param res the result of the Download command
+     * @return byte the status (TRANSFER_OK, TRANSFER_BLOCKCHECKSUM, etc.)
+     * @exception IOException thrown if the result is not a Download result
+     */
+    public static byte getTransferDataStatus(RCXResult res) throws IOException
+    {
+        byte op = (res.getResultLength() > 0)?res.getResultByte(0):0;
+        if (res.getResultLength() != 2||(op!=((byte)0xb2)&&op!=((byte)0xba))) throw new IOException("Bad result for transfer data");
+        return res.getResultByte(1);
+    }
+
+    public static void checkTransferDataStatus(byte status) throws IOException
+    {
+        if (status==TRANSFER_BLOCKCHECKSUM) throw new IOException("block checksum failure");
+        if (status==TRANSFER_FIRMWARECHECKSUM) throw new IOException("firmware checksum error");
+        if (status==TRANSFER_NOSTART) throw new IOException("invalid or missing download start");
     }
 
     public static String makeString(byte aByte)
@@ -266,12 +539,12 @@ public class RCXCmd {
         return tmp.toString();
     }
 
-    private static byte getValueType(int value)
+    static byte getValueType(int value)
     {
         return (byte) ((value >> 16) & 0xff);
     }
 
-    private static int getValueData(int value)
+    static int getValueData(int value)
     {
         return ((value) & 0xffff);
     }
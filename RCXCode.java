@@ -0,0 +1,343 @@
+/**
+ * @(#) RCXCode.java 0.1 98/03/12
+ *
+ *  Copyright (C) 1998, Scott B. Lewis.  All Rights Reserved.
+ *
+ *  License to copy, use, and modify this software is granted provided that
+ *  this notice is retained in any copies of any part of this software.
+ *
+ *  The author makes no guarantee that this software will compile or
+ *  function correctly.  Also, if you use this software, you do so at your
+ *  own risk.
+ *
+ *  Scott B. Lewis.  slewis@teleport.com  http://www.slewis.com
+ */
+package rcxport;
+
+import java.io.IOException;
+
+/**
+ * Byte codes for one task or subroutine as a list of instructions, with branches
+ * pointing at labels rather than holding offsets.  Code is built by RCXAssembler or
+ * decoded from bytes, and encode() works out the offsets.
+ * <p>
+ * Unconditional jumps are encoded as SJump where the target is in range and as Jump
+ * where it is not, whichever was asked for.  All jumps start short and those out of
+ * range are made long until none change.  As jumps only grow this always finishes,
+ * and each pass takes time linear in the length of the code.  Branch offsets are
+ * encoded as described for RCXCmd.getArgLength().
+ */
+class RCXCode
+{
+    public static final int INITIALSIZE = 64;
+    // Largest distance of a short jump
+    public static final int MAXSHORTJUMP = 0x7f;
+    public static final int MAXJUMP = 0x7fff;
+
+    private byte [] myOps = new byte[INITIALSIZE];
+    // Arguments of each instruction, without the offset of a branch
+    private byte [][] myArgs = new byte[INITIALSIZE][];
+    // Label each instruction branches to, or -1
+    private int [] myTargets = new int[INITIALSIZE];
+    private int myCount;
+    // Index of the instruction each label is before, or -1 if not placed yet
+    private int [] myLabels = new int[INITIALSIZE];
+    private int myLabelCount;
+
+    /**
+     * Make a new label, to be placed later.
+     *
+     * @return int the label
+     */
+    int newLabel()
+    {
+        if (myLabelCount == myLabels.length) myLabels = grow(myLabels);
+        myLabels[myLabelCount] = -1;
+        return myLabelCount++;
+    }
+    /**
+     * Place a label before the next instruction added.
+     */
+    void placeLabel(int label)
+    {
+        myLabels[label] = myCount;
+    }
+
+    boolean isPlaced(int label)
+    {
+        return myLabels[label] >= 0;
+    }
+    /**
+     * Add an instruction that does not branch.
+     *
+     * @return int the index of the instruction
+     */
+    int add(byte op, byte [] args)
+    {
+        return addBranch(op, args, -1);
+    }
+    /**
+     * Add an instruction.
+     *
+     * @param op the opcode
+     * @param args the arguments, without the offset of a branch
+     * @param label the label to branch to, or -1
+     * @return int the index of the instruction
+     */
+    int addBranch(byte op, byte [] args, int label)
+    {
+        if (myCount == myOps.length) {
+            byte [] ops = new byte[myCount*2];
+            System.arraycopy(myOps, 0, ops, 0, myCount);
+            myOps = ops;
+            byte [][] args2 = new byte[myCount*2][];
+            System.arraycopy(myArgs, 0, args2, 0, myCount);
+            myArgs = args2;
+            myTargets = grow(myTargets);
+        }
+        myOps[myCount] = op;
+        myArgs[myCount] = args;
+        myTargets[myCount] = label;
+        return myCount++;
+    }
+
+    int size()
+    {
+        return myCount;
+    }
+
+    byte getOp(int i)
+    {
+        return myOps[i];
+    }
+
+    byte [] getArgs(int i)
+    {
+        return myArgs[i];
+    }
+
+    int getTarget(int i)
+    {
+        return myTargets[i];
+    }
+
+    /**
+     * Replace an instruction with one that does not branch.
+     */
+    void set(int i, byte op, byte [] args)
+    {
+        myOps[i] = op;
+        myArgs[i] = args;
+        myTargets[i] = -1;
+    }
+
+    void setTarget(int i, int label)
+    {
+        myTargets[i] = label;
+    }
+    /**
+     * Copy the code without some instructions.  Labels before a removed instruction
+     * are moved to the next instruction kept.
+     *
+     * @param drop true for each instruction to remove
+     * @return RCXCode the code that is left
+     */
+    RCXCode compact(boolean [] drop)
+    {
+        RCXCode res = new RCXCode();
+        // Index in res of the first instruction kept at or after each index
+        int [] index = new int[myCount+1];
+        int n = 0;
+        for(int i=0; i < myCount; i++) {
+            index[i] = n;
+            if (!drop[i]) {
+                res.addBranch(myOps[i], myArgs[i], myTargets[i]);
+                n++;
+            }
+        }
+        index[myCount] = n;
+        for(int l=0; l < myLabelCount; l++) {
+            res.newLabel();
+            if (myLabels[l] >= 0) res.placeLabel(l);
+            res.myLabels[l] = (myLabels[l] < 0)?-1:index[myLabels[l]];
+        }
+        return res;
+    }
+    /**
+     * Find the instructions that labels are placed before.
+     *
+     * @return boolean[] true for each instruction (and the end, at size()) a label is before
+     */
+    boolean [] getLabelled()
+    {
+        boolean [] res = new boolean[myCount+1];
+        for(int l=0; l < myLabelCount; l++) {
+            if (myLabels[l] >= 0) res[myLabels[l]] = true;
+        }
+        return res;
+    }
+
+    int getLabelCount()
+    {
+        return myLabelCount;
+    }
+    /**
+     * Get the index of the instruction a label is before.
+     *
+     * @return int the index, size() if the label is at the end, or -1 if not placed
+     */
+    int getLabelIndex(int label)
+    {
+        return myLabels[label];
+    }
+
+    static boolean isBranch(byte op)
+    {
+        return isJump(op) || op == RCXCmd.Test || op == RCXCmd.CheckLoop;
+    }
+
+    static boolean isJump(byte op)
+    {
+        return op == RCXCmd.SJump || op == RCXCmd.Jump;
+    }
+    /**
+     * Encode the instructions as byte codes.
+     *
+     * @return byte[] the byte codes
+     * @exception IOException thrown if a label is not placed, or a branch is too far
+     */
+    byte [] encode() throws IOException
+    {
+        for(int i=0; i < myLabelCount; i++) {
+            if (myLabels[i] < 0) throw new IOException("Label "+i+" not placed");
+        }
+        boolean [] longJump = new boolean[myCount];
+        int [] addr = new int[myCount+1];
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            int a = 0;
+            for(int i=0; i < myCount; i++) {
+                addr[i] = a;
+                a += getLength(i, longJump[i]);
+            }
+            addr[myCount] = a;
+            for(int i=0; i < myCount; i++) {
+                if (!isJump(myOps[i]) || longJump[i]) continue;
+                int dist = addr[myLabels[myTargets[i]]] - (addr[i] + 1);
+                if (dist < -MAXSHORTJUMP || dist > MAXSHORTJUMP) {
+                    longJump[i] = true;
+                    changed = true;
+                }
+            }
+        }
+        byte [] out = new byte[addr[myCount]];
+        for(int i=0; i < myCount; i++) {
+            int a = addr[i];
+            byte op = myOps[i];
+            byte [] args = myArgs[i];
+            if (!isBranch(op)) {
+                out[a] = op;
+                System.arraycopy(args, 0, out, a+1, args.length);
+                continue;
+            }
+            int target = addr[myLabels[myTargets[i]]];
+            if (isJump(op)) {
+                int dist = target - (a + 1);
+                int mag = Math.abs(dist);
+                if (!longJump[i]) {
+                    out[a] = RCXCmd.SJump;
+                    out[a+1] = (byte) ((dist < 0)?0x80 | mag:mag);
+                } else {
+                    if (mag > MAXJUMP) throw new IOException("Jump too far at instruction "+i);
+                    out[a] = RCXCmd.Jump;
+                    out[a+1] = RCXCmd.lobyte(mag);
+                    out[a+2] = (byte) ((dist < 0)?0x80 | (mag >> 8):mag >> 8);
+                }
+            } else {
+                out[a] = op;
+                System.arraycopy(args, 0, out, a+1, args.length);
+                int base = a + 1 + args.length;
+                int dist = target - base;
+                if (dist < Short.MIN_VALUE || dist > Short.MAX_VALUE) throw new IOException("Branch too far at instruction "+i);
+                out[base] = RCXCmd.lobyte(dist);
+                out[base+1] = RCXCmd.hibyte(dist);
+            }
+        }
+        return out;
+    }
+
+    private int getLength(int i, boolean longJump)
+    {
+        byte op = myOps[i];
+        if (isJump(op)) return (longJump)?3:2;
+        return 1 + myArgs[i].length + ((isBranch(op))?2:0);
+    }
+    /**
+     * Decode byte codes into instructions.  Each branch target gets a label.
+     *
+     * @param code the byte codes
+     * @return RCXCode the instructions
+     * @exception IOException thrown if the last instruction is cut short, or a branch
+     * does not go to the start of an instruction
+     */
+    static RCXCode decode(byte [] code) throws IOException
+    {
+        int len = code.length;
+        // Index of the instruction starting at each address, or -1
+        int [] index = new int[len+1];
+        for(int i=0; i <= len; i++) index[i] = -1;
+        int n = 0;
+        int a = 0;
+        while (a < len) {
+            index[a] = n++;
+            a += 1 + RCXCmd.getArgLength(code[a]);
+        }
+        if (a != len) throw new IOException("Instruction cut short at end of code");
+        index[len] = n;
+        RCXCode res = new RCXCode();
+        // Label for each address branched to, or -1
+        int [] labelAt = new int[len+1];
+        for(int i=0; i <= len; i++) labelAt[i] = -1;
+        a = 0;
+        while (a < len) {
+            byte op = code[a];
+            int argLength = RCXCmd.getArgLength(op);
+            if (!isBranch(op)) {
+                res.add(op, RCXCmd.copy(code, a+1, argLength));
+            } else {
+                int base = a + 1;
+                int dist;
+                if (op == RCXCmd.SJump) {
+                    int b = code[a+1] & 0xff;
+                    dist = ((b & 0x80) != 0)?-(b & 0x7f):b;
+                } else if (op == RCXCmd.Jump) {
+                    int mag = (code[a+1] & 0xff) | ((code[a+2] & 0x7f) << 8);
+                    dist = ((code[a+2] & 0x80) != 0)?-mag:mag;
+                } else {
+                    base = a + 1 + argLength - 2;
+                    dist = (short) ((code[base] & 0xff) | ((code[base+1] & 0xff) << 8));
+                }
+                int target = base + dist;
+                if (target < 0 || target > len || index[target] < 0) {
+                    throw new IOException("Branch at "+a+" does not go to an instruction");
+                }
+                if (labelAt[target] < 0) labelAt[target] = res.newLabel();
+                int argCount = (isJump(op))?0:argLength - 2;
+                res.addBranch(op, RCXCmd.copy(code, a+1, argCount), labelAt[target]);
+            }
+            a += 1 + argLength;
+        }
+        for(int t=0; t <= len; t++) {
+            if (labelAt[t] >= 0) res.myLabels[labelAt[t]] = index[t];
+        }
+        return res;
+    }
+
+    private static int [] grow(int [] arr)
+    {
+        int [] res = new int[arr.length*2];
+        System.arraycopy(arr, 0, res, 0, arr.length);
+        return res;
+    }
+}
@@ -0,0 +1,166 @@
+/**
+ * @(#) RCXDatalogReader.java 0.1 98/03/12
+ *
+ *  Copyright (C) 1998, Scott B. Lewis.  All Rights Reserved.
+ *
+ *  License to copy, use, and modify this software is granted provided that
+ *  this notice is retained in any copies of any part of this software.
+ *
+ *  The author makes no guarantee that this software will compile or
+ *  function correctly.  Also, if you use this software, you do so at your
+ *  own risk.
+ *
+ *  Scott B. Lewis.  slewis@teleport.com  http://www.slewis.com
+ */
+package rcxport;
+
+import java.io.IOException;
+
+/**
+ * Reads the datalog of an RCX one entry at a time.  Entries are uploaded in chunks
+ * of UPLOADCHUNK (the most one reply can hold) as they are needed, into a buffer that
+ * is reused, and each entry is decoded in place when next() moves to it.  So a
+ * datalog of any size is read without creating an object per entry.
+ * <pre>
+ *     RCXDatalogReader r = new RCXDatalogReader(port);
+ *     while (r.next()) {
+ *         store(r.getSource(), r.getNumber(), r.getValue(), r.getTimestamp());
+ *     }
+ * </pre>
+ * The RCX does not time stamp entries.  A program that wants times logs the watch,
+ * and getTimestamp() gives the value of the last watch entry read.
+ * <p>
+ * A reader only uses its own port, so the datalogs of several bricks can be read at
+ * once with a reader (and thread) for each.
+ */
+public class RCXDatalogReader
+{
+    // Most entries uploaded with one command
+    public static final int UPLOADCHUNK = 50;
+    // Bytes per entry: type, then value low and high bytes
+    public static final int ENTRYSIZE = 3;
+
+    // Entry types.  The number of the variable, timer or sensor is in the low bits.
+    public static final int TYPE_VARIABLE = 0x00;
+    public static final int TYPE_TIMER = 0x20;
+    public static final int TYPE_SENSOR = 0x40;
+    public static final int TYPE_WATCH = 0x80;
+    // Type of entry 0, whose value is the number of entries
+    public static final int TYPE_SIZE = 0xff;
+
+    private RCXPort myPort;
+    private byte [] myChunk = new byte[UPLOADCHUNK*ENTRYSIZE];
+    // Number of entries in the RCX's datalog (-1 until read), index of the current
+    // entry, and index of the first entry and number of entries in myChunk
+    private int myCount = -1;
+    private int myIndex;
+    private int myChunkFirst;
+    private int myChunkCount;
+
+    // Current entry
+    private int myType;
+    private int myValue;
+    private int myTimestamp = -1;
+
+    /**
+     * Create a reader for the datalog of the RCX on the given port.  Nothing is read
+     * until next() or getCount() is called.
+     *
+     * @param port the port of the RCX.  Must not be null.
+     */
+    public RCXDatalogReader(RCXPort port)
+    {
+        myPort = port;
+    }
+    /**
+     * Get the number of entries in the datalog.
+     *
+     * @return int the number of entries
+     * @exception IOException thrown if some problem communicating with the RCX
+     */
+    public int getCount() throws IOException
+    {
+        if (myCount < 0) {
+            myPort.sync();
+            myPort.uploadDatalog(0, 1, myChunk, 0);
+            if ((myChunk[0] & 0xff) != TYPE_SIZE) throw new IOException("Bad datalog size entry");
+            // Entry 0 counts itself
+            myCount = Math.max(0, getValue(0) - 1);
+        }
+        return myCount;
+    }
+    /**
+     * Move to the next entry, uploading more entries if needed.
+     *
+     * @return boolean true if there is another entry, false at the end of the datalog
+     * @exception IOException thrown if some problem communicating with the RCX
+     */
+    public boolean next() throws IOException
+    {
+        if (myIndex >= getCount()) return false;
+        myIndex++;
+        if (myIndex >= myChunkFirst + myChunkCount) {
+            myChunkFirst = myIndex;
+            myChunkCount = Math.min(UPLOADCHUNK, myCount - myIndex + 1);
+            myPort.uploadDatalog(myChunkFirst, myChunkCount, myChunk, 0);
+        }
+        int pos = (myIndex - myChunkFirst)*ENTRYSIZE;
+        myType = myChunk[pos] & 0xff;
+        myValue = getValue(pos);
+        if (getSource() == TYPE_WATCH) myTimestamp = myValue;
+        return true;
+    }
+    /**
+     * Get the index of the current entry.  The first entry is 1.
+     */
+    public int getIndex()
+    {
+        return myIndex;
+    }
+    /**
+     * Get the type byte of the current entry.
+     */
+    public int getType()
+    {
+        return myType;
+    }
+    /**
+     * Get the source of the current entry.
+     *
+     * @return int TYPE_VARIABLE, TYPE_TIMER, TYPE_SENSOR or TYPE_WATCH
+     */
+    public int getSource()
+    {
+        return (myType & TYPE_WATCH) != 0?TYPE_WATCH:myType & 0x60;
+    }
+    /**
+     * Get the number of the variable, timer or sensor the current entry was logged from.
+     */
+    public int getNumber()
+    {
+        return (getSource() == TYPE_VARIABLE)?myType & 0x1f:myType & 0x03;
+    }
+    /**
+     * Get the value of the current entry.
+     *
+     * @return int the signed 16 bit value
+     */
+    public int getValue()
+    {
+        return myValue;
+    }
+    /**
+     * Get the time of the current entry, from the last watch entry at or before it.
+     *
+     * @return int the watch time in minutes, or -1 if no watch entry has been read
+     */
+    public int getTimestamp()
+    {
+        return myTimestamp;
+    }
+
+    private int getValue(int pos)
+    {
+        return (short) ((myChunk[pos+1] & 0xff) | ((myChunk[pos+2] & 0xff) << 8));
+    }
+}
@@ -0,0 +1,36 @@
+/**
+ * @(#) RCXDownloadListener.java 0.1 98/03/12
+ *
+ *  Copyright (C) 1998, Scott B. Lewis.  All Rights Reserved.
+ *
+ *  License to copy, use, and modify this software is granted provided that
+ *  this notice is retained in any copies of any part of this software.
+ *
+ *  The author makes no guarantee that this software will compile or
+ *  function correctly.  Also, if you use this software, you do so at your
+ *  own risk.
+ *
+ *  Scott B. Lewis.  slewis@teleport.com  http://www.slewis.com
+ */
+package rcxport;
+
+/**
+ * Told about the progress of program downloads on an RCXPort.  Called on the
+ * thread doing the download, so implementations should be quick.
+ */
+public interface RCXDownloadListener
+{
+    // Download stages
+    public static final int STAGE_PREPARED = 1;
+    public static final int STAGE_SUBROUTINES = 2;
+    public static final int STAGE_TASKS = 3;
+
+    /**
+     * Called when a stage of a program download is complete.
+     *
+     * @param port the port the program is being downloaded on
+     * @param prog the program number (0..4)
+     * @param stage the stage completed (STAGE_PREPARED, etc.)
+     */
+    public void downloadStage(RCXPort port, int prog, int stage);
+}
@@ -0,0 +1,86 @@
+/**
+ * @(#) RCXDownloadRecord.java 0.1 98/03/12
+ *
+ *  Copyright (C) 1998, Scott B. Lewis.  All Rights Reserved.
+ *
+ *  License to copy, use, and modify this software is granted provided that
+ *  this notice is retained in any copies of any part of this software.
+ *
+ *  The author makes no guarantee that this software will compile or
+ *  function correctly.  Also, if you use this software, you do so at your
+ *  own risk.
+ *
+ *  Scott B. Lewis.  slewis@teleport.com  http://www.slewis.com
+ */
+package rcxport;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Record of the tasks and subroutines last downloaded to one program slot.  Holds 
+ * a SHA-1 hash of each fragment, so RCXPort.downloadChanges can tell which 
+ * fragments differ from what is on the RCX.
+ */
+class RCXDownloadRecord
+{
+    public static final String DIGEST = "SHA-1";
+
+    // Hash of each fragment, or null if none was downloaded at that index
+    private byte [][] myTasks;
+    private byte [][] mySubs;
+
+    protected RCXDownloadRecord(RCXProgram aProg)
+    {
+        myTasks = new byte[aProg.getTaskCount()][];
+        for(int i=0; i < myTasks.length; i++) myTasks[i] = hash(aProg.getTaskBytes(i));
+        mySubs = new byte[aProg.getSubCount()][];
+        for(int i=0; i < mySubs.length; i++) mySubs[i] = hash(aProg.getSubBytes(i));
+    }
+    /**
+     * Check if the program can be downloaded by replacing changed fragments.  It can
+     * unless a fragment recorded here is missing from the program, as the RCX can 
+     * only delete all tasks or all subroutines of a program.
+     *
+     * @param aProg the program to be downloaded
+     * @return boolean true if only changed fragments need be downloaded
+     */
+    protected boolean canUpdate(RCXProgram aProg)
+    {
+        if (aProg.getTaskCount() < myTasks.length || aProg.getSubCount() < mySubs.length) return false;
+        for(int i=0; i < myTasks.length; i++) {
+            if (myTasks[i] != null && aProg.getTaskBytes(i) == null) return false;
+        }
+        for(int i=0; i < mySubs.length; i++) {
+            if (mySubs[i] != null && aProg.getSubBytes(i) == null) return false;
+        }
+        return true;
+    }
+
+    protected boolean isTaskChanged(int index, byte [] bytes)
+    {
+        return isChanged(myTasks, index, bytes);
+    }
+
+    protected boolean isSubChanged(int index, byte [] bytes)
+    {
+        return isChanged(mySubs, index, bytes);
+    }
+
+    private static boolean isChanged(byte [][] hashes, int index, byte [] bytes)
+    {
+        if (index >= hashes.length || hashes[index] == null) return bytes != null;
+        return !MessageDigest.isEqual(hashes[index], hash(bytes));
+    }
+
+    private static byte [] hash(byte [] bytes)
+    {
+        if (bytes == null) return null;
+        try {
+            return MessageDigest.getInstance(DIGEST).digest(bytes);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform has SHA-1
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/**
+ * @(#) RCXFirmware.java 0.1 98/03/12
+ *
+ *  Copyright (C) 1998, Scott B. Lewis.  All Rights Reserved.
+ *
+ *  License to copy, use, and modify this software is granted provided that
+ *  this notice is retained in any copies of any part of this software.
+ *
+ *  The author makes no guarantee that this software will compile or
+ *  function correctly.  Also, if you use this software, you do so at your
+ *  own risk.
+ *
+ *  Scott B. Lewis.  slewis@teleport.com  http://www.slewis.com
+ */
+package rcxport;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * RCX firmware image, as read from a Motorola S-record file (e.g. firm0309.lgo).
+ * The data records are placed in one contiguous image starting at START, the address
+ * the ROM loads firmware at, with any gaps filled with zeros.  Records below START
+ * are rejected.  Every record's checksum is checked.
+ * <p>
+ * The ROM checks the firmware against a 16 bit sum of the first CHECKSUMLENGTH
+ * bytes of the image, which is given by getChecksum().  Firmware images are
+ * downloaded with RCXPort.downloadFirmware().
+ */
+public class RCXFirmware
+{
+    // Address firmware is loaded at
+    public static final int START = 0x8000;
+    // Number of bytes at the start of the image covered by the ROM's checksum
+    public static final int CHECKSUMLENGTH = 0x4c00;
+    public static final int MAXADDRESS = 0xffff;
+
+    private byte [] myImage;
+    private int myEntry;
+
+    /**
+     * Create a firmware image from bytes.
+     *
+     * @param image the image bytes, the first at START.  Not copied.
+     * @param entry the address execution starts at
+     * @exception IllegalArgumentException thrown if the image goes past MAXADDRESS
+     */
+    public RCXFirmware(byte [] image, int entry)
+    {
+        if (image.length > MAXADDRESS+1 - START) throw new IllegalArgumentException("Firmware image too long");
+        myImage = image;
+        myEntry = entry;
+    }
+    /**
+     * Read a firmware image from an S-record file.
+     *
+     * @param fileName the name of the file
+     * @return RCXFirmware the image
+     * @exception IOException thrown if the file cannot be read, or is not valid
+     */
+    public static RCXFirmware fromFile(String fileName) throws IOException
+    {
+        BufferedReader r = new BufferedReader(new FileReader(fileName));
+        try {
+            return parse(r);
+        } finally {
+            r.close();
+        }
+    }
+    /**
+     * Read a firmware image from S-records.  The reader is read to the end but not
+     * closed.
+     *
+     * @param r the Reader to read from
+     * @return RCXFirmware the image
+     * @exception IOException thrown if the reader fails, or a record is not valid
+     */
+    public static RCXFirmware parse(Reader r) throws IOException
+    {
+        BufferedReader br = (r instanceof BufferedReader)?(BufferedReader) r:new BufferedReader(r);
+        byte [] memory = new byte[MAXADDRESS+1];
+        int high = 0;
+        int entry = START;
+        byte [] rec = new byte[256];
+        int lineNum = 0;
+        String line;
+        while ((line = br.readLine()) != null) {
+            lineNum++;
+            line = line.trim();
+            if (line.length() == 0) continue;
+            if (line.length() < 4 || line.charAt(0) != 'S' || (line.length() & 1) != 0) {
+                throw new IOException("Line "+lineNum+": not an S-record");
+            }
+            char type = line.charAt(1);
+            int count = (line.length() - 2)/2;
+            // Count byte, at least a 2 byte address and checksum, and at most 255 more
+            if (count < 3 || count > rec.length) throw new IOException("Line "+lineNum+": bad record length");
+            int sum = 0;
+            for(int i=0; i < count; i++) {
+                int hi = Character.digit(line.charAt(2 + i*2), 16);
+                int lo = Character.digit(line.charAt(3 + i*2), 16);
+                if (hi < 0 || lo < 0) throw new IOException("Line "+lineNum+": invalid hex digit");
+                rec[i] = (byte) ((hi << 4) | lo);
+                sum += rec[i] & 0xff;
+            }
+            // Count byte covers address, data and checksum.  All bytes sum to 0xff.
+            if ((rec[0] & 0xff) != count - 1) throw new IOException("Line "+lineNum+": bad record length");
+            if ((sum & 0xff) != 0xff) throw new IOException("Line "+lineNum+": bad checksum");
+            int addrLength;
+            switch (type) {
+                case '0': case '5': continue;
+                case '1': case '9': addrLength = 2; break;
+                case '2': case '8': addrLength = 3; break;
+                case '3': case '7': addrLength = 4; break;
+                default: throw new IOException("Line "+lineNum+": unknown record type S"+type);
+            }
+            if (count < addrLength + 2) throw new IOException("Line "+lineNum+": bad record length");
+            int address = 0;
+            for(int i=0; i < addrLength; i++) address = (address << 8) | (rec[1+i] & 0xff);
+            if (type >= '7') {
+                entry = address;
+                continue;
+            }
+            int dataLength = count - addrLength - 2;
+            if (address < START || address + dataLength > MAXADDRESS+1) throw new IOException("Line "+lineNum+": address out of range");
+            System.arraycopy(rec, 1+addrLength, memory, address, dataLength);
+            if (dataLength > 0) high = Math.max(high, address + dataLength);
+        }
+        if (high == 0) throw new IOException("No data records");
+        // The ROM loads from START and checksums from there, whatever the first record
+        byte [] image = new byte[high - START];
+        System.arraycopy(memory, START, image, 0, image.length);
+        return new RCXFirmware(image, entry);
+    }
+
+    public byte [] getImage()
+    {
+        return myImage;
+    }
+
+    public int getLength()
+    {
+        return myImage.length;
+    }
+
+    public int getStart()
+    {
+        return START;
+    }
+
+    public int getEntry()
+    {
+        return myEntry;
+    }
+    /**
+     * Get the checksum the ROM checks the downloaded firmware against.
+     *
+     * @return int the 16 bit sum of the first CHECKSUMLENGTH bytes
+     */
+    public int getChecksum()
+    {
+        return getChecksum(myImage, 0, myImage.length);
+    }
+
+    static int getChecksum(byte [] image, int offset, int length)
+    {
+        int sum = 0;
+        int n = Math.min(length, CHECKSUMLENGTH);
+        for(int i=0; i < n; i++) sum += image[offset + i] & 0xff;
+        return sum & 0xffff;
+    }
+
+    public String toString()
+    {
+        return "RCXFirmware[start="+Integer.toHexString(START)+",length="+myImage.length+
+            ",checksum="+Integer.toHexString(getChecksum())+"]";
+    }
+}
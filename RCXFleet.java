@@ -0,0 +1,178 @@
+/**
+ * @(#) RCXFleet.java 0.1 98/03/12
+ *
+ *  Copyright (C) 1998, Scott B. Lewis.  All Rights Reserved.
+ *
+ *  License to copy, use, and modify this software is granted provided that
+ *  this notice is retained in any copies of any part of this software.
+ *
+ *  The author makes no guarantee that this software will compile or
+ *  function correctly.  Also, if you use this software, you do so at your
+ *  own risk.
+ *
+ *  Scott B. Lewis.  slewis@teleport.com  http://www.slewis.com
+ */
+package rcxport;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Downloads one RCXProgram to many RCX bricks in parallel, one brick per tower.
+ * Each brick is downloaded by its own task on an ExecutorService, with its own
+ * RCXPort, so a slow or failing tower only holds up its own brick.  A failed download
+ * is retried on a freshly opened port, and the outcome for every brick is returned as
+ * an RCXFleetResult.
+ * <p>
+ * The number of bricks downloaded at once is bounded by the executor.  By default a
+ * fixed pool of DEFAULTWORKERS threads is used; any executor may be given instead
+ * (e.g. one from RCXSessionFactory.newExecutor(), which starts a virtual thread per
+ * task).
+ */
+public class RCXFleet
+{
+    public static final int DEFAULTWORKERS = 4;
+    public static final int DEFAULTRETRIES = 2;
+
+    private RCXTransportFactory myFactory;
+    private ExecutorService myExecutor;
+    private boolean myOwnExecutor;
+    private int myRetries = DEFAULTRETRIES;
+    private RCXFleetListener myListener;
+
+    /**
+     * Create a fleet that opens serial ports, with a pool of DEFAULTWORKERS threads.
+     */
+    public RCXFleet()
+    {
+        this(RCXTransportFactory.SERIAL, DEFAULTWORKERS);
+    }
+    /**
+     * Create a fleet with a pool of the given number of threads.
+     *
+     * @param factory the factory to open a transport for each port name
+     * @param workers the most bricks to download at once
+     */
+    public RCXFleet(RCXTransportFactory factory, int workers)
+    {
+        this(factory, Executors.newFixedThreadPool(workers));
+        myOwnExecutor = true;
+    }
+    /**
+     * Create a fleet that downloads on the given executor.
+     *
+     * @param factory the factory to open a transport for each port name
+     * @param executor the executor to run each brick's download on.  Not shut down by close().
+     */
+    public RCXFleet(RCXTransportFactory factory, ExecutorService executor)
+    {
+        myFactory = factory;
+        myExecutor = executor;
+    }
+    /**
+     * Set the number of times a failed download to a brick is retried.
+     */
+    public void setRetries(int retries)
+    {
+        myRetries = retries;
+    }
+
+    public int getRetries()
+    {
+        return myRetries;
+    }
+    /**
+     * Set the listener told about each brick's progress.
+     *
+     * @param listener the listener, or null for none
+     */
+    public void setListener(RCXFleetListener listener)
+    {
+        myListener = listener;
+    }
+    /**
+     * Download a program to the bricks on the given ports, and wait for all of them to
+     * finish.
+     *
+     * @param aProg the RCXProgram to download
+     * @param ports the names of the ports, one per brick
+     * @param run if true, run the program on each brick once downloaded
+     * @return RCXFleetResult[] the outcome for each brick, in the same order as ports
+     * @exception InterruptedException thrown if interrupted while waiting
+     */
+    public RCXFleetResult [] download(final RCXProgram aProg, String [] ports, final boolean run)
+        throws InterruptedException
+    {
+        List<Future<RCXFleetResult>> futures = new ArrayList<Future<RCXFleetResult>>(ports.length);
+        for(int i=0; i < ports.length; i++) {
+            final String port = ports[i];
+            futures.add(myExecutor.submit(new Callable<RCXFleetResult>() {
+                public RCXFleetResult call()
+                {
+                    return downloadBrick(aProg, port, run);
+                }
+            }));
+        }
+        RCXFleetResult [] results = new RCXFleetResult[ports.length];
+        for(int i=0; i < ports.length; i++) {
+            try {
+                results[i] = futures.get(i).get();
+            } catch (ExecutionException e) {
+                // downloadBrick catches all exceptions, so only errors get here
+                results[i] = new RCXFleetResult(ports[i], 0, 0, new Exception(e.getCause()));
+            }
+        }
+        return results;
+    }
+    /**
+     * Shut down the thread pool if this fleet created it.
+     */
+    public void close()
+    {
+        if (myOwnExecutor) myExecutor.shutdown();
+    }
+
+    private RCXFleetResult downloadBrick(RCXProgram aProg, final String port, boolean run)
+    {
+        long start = System.currentTimeMillis();
+        Exception last = null;
+        int attempt = 0;
+        while (attempt <= myRetries) {
+            attempt++;
+            RCXPort aPort = null;
+            try {
+                aPort = new RCXPort(myFactory.open(port));
+                stage(port, RCXFleetListener.STAGE_OPENED);
+                if (myListener != null) {
+                    aPort.setDownloadListener(new RCXDownloadListener() {
+                        public void downloadStage(RCXPort p, int prog, int stage)
+                        {
+                            stage(port, stage);
+                        }
+                    });
+                }
+                aPort.downloadProgram(aProg, run);
+                last = null;
+                break;
+            } catch (Exception e) {
+                last = e;
+                if (attempt <= myRetries && myListener != null) myListener.brickRetry(port, attempt, e);
+            } finally {
+                if (aPort != null) aPort.close();
+            }
+        }
+        RCXFleetResult res = new RCXFleetResult(port, attempt, System.currentTimeMillis() - start, last);
+        if (myListener != null) myListener.brickFinished(res);
+        return res;
+    }
+
+    private void stage(String port, int stage)
+    {
+        if (myListener != null) myListener.brickStage(port, stage);
+    }
+}
@@ -0,0 +1,51 @@
+/**
+ * @(#) RCXFleetListener.java 0.1 98/03/12
+ *
+ *  Copyright (C) 1998, Scott B. Lewis.  All Rights Reserved.
+ *
+ *  License to copy, use, and modify this software is granted provided that
+ *  this notice is retained in any copies of any part of this software.
+ *
+ *  The author makes no guarantee that this software will compile or
+ *  function correctly.  Also, if you use this software, you do so at your
+ *  own risk.
+ *
+ *  Scott B. Lewis.  slewis@teleport.com  http://www.slewis.com
+ */
+package rcxport;
+
+/**
+ * Receives progress of an RCXFleet download.  Methods are called from the
+ * worker thread downloading to each brick, so calls for different bricks may
+ * happen at the same time.
+ */
+public interface RCXFleetListener
+{
+    // Download stages
+    public static final int STAGE_OPENED = 0;
+    public static final int STAGE_PREPARED = RCXDownloadListener.STAGE_PREPARED;
+    public static final int STAGE_SUBROUTINES = RCXDownloadListener.STAGE_SUBROUTINES;
+    public static final int STAGE_TASKS = RCXDownloadListener.STAGE_TASKS;
+
+    /**
+     * Called when a stage of the download to a brick is complete.
+     *
+     * @param port the name of the port the brick is on
+     * @param stage the stage completed (STAGE_OPENED, etc.)
+     */
+    public void brickStage(String port, int stage);
+    /**
+     * Called when an attempt to download to a brick has failed and will be retried.
+     *
+     * @param port the name of the port the brick is on
+     * @param attempt the number of the attempt that failed (1 for the first)
+     * @param e the reason for the failure
+     */
+    public void brickRetry(String port, int attempt, Exception e);
+    /**
+     * Called when the download to a brick has succeeded or finally failed.
+     *
+     * @param result the outcome for the brick
+     */
+    public void brickFinished(RCXFleetResult result);
+}
@@ -0,0 +1,78 @@
+/**
+ * @(#) RCXFleetResult.java 0.1 98/03/12
+ *
+ *  Copyright (C) 1998, Scott B. Lewis.  All Rights Reserved.
+ *
+ *  License to copy, use, and modify this software is granted provided that
+ *  this notice is retained in any copies of any part of this software.
+ *
+ *  The author makes no guarantee that this software will compile or
+ *  function correctly.  Also, if you use this software, you do so at your
+ *  own risk.
+ *
+ *  Scott B. Lewis.  slewis@teleport.com  http://www.slewis.com
+ */
+package rcxport;
+
+/**
+ * Outcome of an RCXFleet download to one brick.
+ */
+public class RCXFleetResult
+{
+    private String myPortName;
+    private int myAttempts;
+    private long myElapsed;
+    private Exception myException;
+
+    protected RCXFleetResult(String port, int attempts, long elapsed, Exception e)
+    {
+        myPortName = port;
+        myAttempts = attempts;
+        myElapsed = elapsed;
+        myException = e;
+    }
+
+    public String getPortName()
+    {
+        return myPortName;
+    }
+
+    public boolean isSuccess()
+    {
+        return myException == null;
+    }
+    /**
+     * Get the number of attempts made, including the last one.
+     */
+    public int getAttempts()
+    {
+        return myAttempts;
+    }
+    /**
+     * Get the time taken for all attempts, in milliseconds.
+     */
+    public long getElapsed()
+    {
+        return myElapsed;
+    }
+    /**
+     * Get the reason the last attempt failed.
+     *
+     * @return Exception the failure, or null if the download succeeded
+     */
+    public Exception getException()
+    {
+        return myException;
+    }
+
+    public String toString()
+    {
+        StringBuffer sb = new StringBuffer("RCXFleetResult[");
+        sb.append(myPortName).append(" ");
+        sb.append((isSuccess())?"ok":"failed").append(" attempts=").append(myAttempts);
+        sb.append(" elapsed=").append(myElapsed);
+        if (myException != null) sb.append(" ").append(myException.getMessage());
+        sb.append("]");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,168 @@
+/**
+ * @(#) RCXFrame.java 0.1 98/03/12
+ *
+ *  Copyright (C) 1998, Scott B. Lewis.  All Rights Reserved.
+ *
+ *  License to copy, use, and modify this software is granted provided that
+ *  this notice is retained in any copies of any part of this software.
+ *
+ *  The author makes no guarantee that this software will compile or
+ *  function correctly.  Also, if you use this software, you do so at your
+ *  own risk.
+ *
+ *  Scott B. Lewis.  slewis@teleport.com  http://www.slewis.com
+ */
+package rcxport;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A command encoded for the wire once, for commands sent over and over.  A frame
+ * holds the packet both as it is and with the toggle bit flipped, so sending it
+ * (with RCXPort.sendData(RCXFrame)) only picks one and writes it.  Nothing is
+ * allocated or encoded per send.
+ * <p>
+ * Frames for Ping, StopAll, DeleteTasks, DeleteSubs, and each StartTask, StopTask,
+ * PlaySound and SelectProgram are made when the class is loaded.  Other commands can
+ * be interned, so each distinct command is encoded once.
+ * <p>
+ * Frames can't be changed once made, so they can be shared between ports and threads.
+ */
+public final class RCXFrame
+{
+    public static final RCXFrame PING = new RCXFrame(RCXCmd.set(RCXCmd.Ping));
+    public static final RCXFrame STOP_ALL = new RCXFrame(RCXCmd.set(RCXCmd.StopAll));
+    public static final RCXFrame DELETE_TASKS = new RCXFrame(RCXCmd.set(RCXCmd.DeleteTasks));
+    public static final RCXFrame DELETE_SUBS = new RCXFrame(RCXCmd.set(RCXCmd.DeleteSubs));
+    public static final int SOUNDS = 8;
+
+    private static final RCXFrame [] theStartTasks = new RCXFrame[RCXProgram.MAX_TASKS];
+    private static final RCXFrame [] theStopTasks = new RCXFrame[RCXProgram.MAX_TASKS];
+    private static final RCXFrame [] theSounds = new RCXFrame[SOUNDS];
+    private static final RCXFrame [] thePrograms = new RCXFrame[RCXProgram.MAX_PROGS];
+    private static final HashMap<RCXFrame, RCXFrame> theInterned = new HashMap<RCXFrame, RCXFrame>();
+
+    static {
+        for(int i=0; i < RCXProgram.MAX_TASKS; i++) {
+            theStartTasks[i] = new RCXFrame(RCXCmd.startTask((byte) i));
+            theStopTasks[i] = new RCXFrame(RCXCmd.stopTask((byte) i));
+        }
+        for(int i=0; i < SOUNDS; i++) theSounds[i] = new RCXFrame(RCXCmd.makePlaySound(i));
+        for(int i=0; i < RCXProgram.MAX_PROGS; i++) thePrograms[i] = new RCXFrame(RCXCmd.set(RCXCmd.SelectProgram, (byte) i));
+    }
+
+    // The command, and the packet without and with the toggle bit flipped
+    final byte [] myData;
+    private final byte [] mySendData;
+    private final byte [] myToggledData;
+
+    /**
+     * Encode a command.
+     *
+     * @param command the command bytes, e.g. from RCXCmd.set().  They are copied.
+     * @exception IllegalArgumentException thrown if the command is empty
+     */
+    public RCXFrame(byte [] command)
+    {
+        if (command == null || command.length == 0) throw new IllegalArgumentException("Empty command");
+        myData = command.clone();
+        mySendData = new byte[RCXPacket.sendLength(myData.length)];
+        RCXPacket.encode(myData, 0, myData.length, false, mySendData);
+        myToggledData = new byte[mySendData.length];
+        RCXPacket.encode(myData, 0, myData.length, true, myToggledData);
+    }
+    /**
+     * Get the one frame for a command, making it the first time.  Use this for
+     * commands sent often that have no constant or method here.
+     *
+     * @param command the command bytes
+     * @return RCXFrame the frame
+     */
+    public static RCXFrame intern(byte [] command)
+    {
+        RCXFrame f = new RCXFrame(command);
+        synchronized (theInterned) {
+            RCXFrame res = theInterned.get(f);
+            if (res == null) {
+                theInterned.put(f, f);
+                res = f;
+            }
+            return res;
+        }
+    }
+
+    public static RCXFrame startTask(int task)
+    {
+        if (task >= 0 && task < theStartTasks.length) return theStartTasks[task];
+        return intern(RCXCmd.startTask((byte) task));
+    }
+
+    public static RCXFrame stopTask(int task)
+    {
+        if (task >= 0 && task < theStopTasks.length) return theStopTasks[task];
+        return intern(RCXCmd.stopTask((byte) task));
+    }
+
+    public static RCXFrame playSound(int sound)
+    {
+        return theSounds[sound & 7];
+    }
+
+    public static RCXFrame selectProgram(int prog)
+    {
+        if (prog >= 0 && prog < thePrograms.length) return thePrograms[prog];
+        return intern(RCXCmd.set(RCXCmd.SelectProgram, (byte) prog));
+    }
+    /**
+     * Get the command bytes.
+     *
+     * @return byte[] a copy of the command
+     */
+    public byte [] getCommand()
+    {
+        return myData.clone();
+    }
+
+    public byte getOpcode()
+    {
+        return myData[0];
+    }
+    /**
+     * Get the number of bytes sent on the wire.
+     */
+    public int getSendLength()
+    {
+        return mySendData.length;
+    }
+    /**
+     * Get the encoded packet.  The array is shared and must not be changed.
+     *
+     * @param toggle if true, the packet with the toggle bit of the opcode flipped
+     */
+    byte [] getSendData(boolean toggle)
+    {
+        return (toggle)?myToggledData:mySendData;
+    }
+
+    public boolean equals(Object o)
+    {
+        return (o instanceof RCXFrame) && Arrays.equals(myData, ((RCXFrame) o).myData);
+    }
+
+    public int hashCode()
+    {
+        return Arrays.hashCode(myData);
+    }
+
+    public String toString()
+    {
+        StringBuffer sb = new StringBuffer("RCXFrame[");
+        for(int i=0; i < myData.length; i++) {
+            if (i != 0) sb.append(" ");
+            sb.append(RCXCmd.makeString(myData[i]));
+        }
+        sb.append("]");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,34 @@
+/**
+ * @(#) RCXMetricsListener.java 0.1 98/03/12
+ *
+ *  Copyright (C) 1998, Scott B. Lewis.  All Rights Reserved.
+ *
+ *  License to copy, use, and modify this software is granted provided that
+ *  this notice is retained in any copies of any part of this software.
+ *
+ *  The author makes no guarantee that this software will compile or
+ *  function correctly.  Also, if you use this software, you do so at your
+ *  own risk.
+ *
+ *  Scott B. Lewis.  slewis@teleport.com  http://www.slewis.com
+ */
+package rcxport;
+
+/**
+ * Told about every command an RCXPort sends.  Called on the thread that sent the
+ * command, while the port is held, so implementations should be quick.
+ */
+public interface RCXMetricsListener
+{
+    /**
+     * Called when a command has succeeded or finally failed.
+     *
+     * @param port the port the command was sent on
+     * @param op the opcode of the command
+     * @param nanos the time taken for all attempts, in nanoseconds
+     * @param attempts the number of attempts made
+     * @param error RCXResult.ERROR_NONE if the command succeeded, otherwise the
+     * reason the last attempt failed (RCXResult.ERROR_TIMEOUT, etc.)
+     */
+    public void commandCompleted(RCXPort port, byte op, long nanos, int attempts, int error);
+}
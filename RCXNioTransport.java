@@ -0,0 +1,364 @@
+/**
+ * @(#) RCXNioTransport.java 0.1 98/03/12
+ *
+ *  Copyright (C) 1998, Scott B. Lewis.  All Rights Reserved.
+ *
+ *  License to copy, use, and modify this software is granted provided that
+ *  this notice is retained in any copies of any part of this software.
+ *
+ *  The author makes no guarantee that this software will compile or
+ *  function correctly.  Also, if you use this software, you do so at your
+ *  own risk.
+ *
+ *  Scott B. Lewis.  slewis@teleport.com  http://www.slewis.com
+ */
+package rcxport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * RCXTransport for an IR tower on a Unix serial device (e.g. /dev/ttyS0 or
+ * /dev/ttyUSB0, or one end of a pty pair), without the Java Comm API.  The device
+ * is set to 2400 baud, 8 data bits, odd parity (except ptys, which have none) and
+ * 1 stop bit with stty, and read and written through FileChannels with direct
+ * ByteBuffers, so the JDK makes no copies of its own between the Java heap and the
+ * driver.
+ * <p>
+ * Device files can't be registered with a Selector, so the device is set up so that
+ * reads return at once with whatever has arrived, and one poller thread, shared by
+ * every open RCXNioTransport, reads each device into its buffer and wakes the
+ * thread waiting for the bytes.  A host with many towers needs one thread for all
+ * of them rather than one each.  The poller checks every device every POLLINTERVAL
+ * ms while bytes are arriving (a byte takes over 4 ms at 2400 baud), and sleeps
+ * for longer when none are.
+ */
+public class RCXNioTransport implements RCXTransport
+{
+    public static final int BAUDRATE = 2400;
+    public static final int BUFFSIZE = 4096;
+    // Time between reads of every device, and the most it grows to when they are idle
+    public static final int POLLINTERVAL = 1;
+    public static final int MAXPOLLINTERVAL = 20;
+    // Raw mode, and reads return whatever has arrived without waiting (min 0 time 0)
+    public static final String [] STTYSETTINGS = { String.valueOf(BAUDRATE), "cs8", "parenb", "parodd",
+        "-cstopb", "-crtscts", "clocal", "cread", "raw", "-echo", "min", "0", "time", "0" };
+    // Linux ptys have no parity, and refuse to have it set
+    public static final String [] PTYSETTINGS = { String.valueOf(BAUDRATE), "cs8",
+        "-cstopb", "-crtscts", "clocal", "cread", "raw", "-echo", "min", "0", "time", "0" };
+    public static final String PTYPREFIX = "/dev/pts/";
+
+    private static final Poller thePoller = new Poller();
+
+    private String myName;
+    private FileChannel myReadChannel;
+    private FileChannel myWriteChannel;
+    private volatile boolean myClosed;
+    private volatile int myReadTimeout = RCXPort.PORTREADTIMEOUT;
+
+    // Bytes read from the device and not yet taken, from 0 to position.  Guarded by
+    // myLock, and readers wait on myArrived for bytes.  A lock rather than
+    // synchronized, so waiting readers on virtual threads don't pin their carriers.
+    private ByteBuffer myReadBuffer = ByteBuffer.allocateDirect(BUFFSIZE);
+    private final ReentrantLock myLock = new ReentrantLock();
+    private final Condition myArrived = myLock.newCondition();
+    // Guarded by myWriteLock
+    private ByteBuffer myWriteBuffer = ByteBuffer.allocateDirect(BUFFSIZE);
+    private final ReentrantLock myWriteLock = new ReentrantLock();
+
+    private InputStream myInputStream = new ChannelInputStream();
+    private OutputStream myOutputStream = new ChannelOutputStream();
+
+    /**
+     * Set up and open a serial device.
+     *
+     * @param device the path of the device (e.g. "/dev/ttyUSB0")
+     * @exception IOException thrown if the device can't be set up or opened
+     */
+    public RCXNioTransport(String device) throws IOException
+    {
+        myName = device;
+        // stty opens the device without waiting for carrier, and sets clocal so
+        // that opening it here doesn't either
+        configure(device);
+        try {
+            myReadChannel = new RandomAccessFile(device, "r").getChannel();
+            myWriteChannel = new RandomAccessFile(device, "rw").getChannel();
+        } catch (IOException e) {
+            close();
+            throw new IOException("Cannot open "+device+": "+e.getMessage());
+        }
+        thePoller.add(this);
+    }
+    /**
+     * Set the line settings of a device.
+     */
+    private static void configure(String device) throws IOException
+    {
+        try {
+            stty(device, STTYSETTINGS);
+        } catch (IOException e) {
+            if (!new File(device).getCanonicalPath().startsWith(PTYPREFIX)) throw e;
+            stty(device, PTYSETTINGS);
+        }
+    }
+
+    private static void stty(String device, String [] settings) throws IOException
+    {
+        String [] cmd = new String[settings.length + 3];
+        cmd[0] = "stty";
+        cmd[1] = "-F";
+        cmd[2] = device;
+        System.arraycopy(settings, 0, cmd, 3, settings.length);
+        Process p = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream ins = p.getInputStream();
+        byte [] b = new byte[256];
+        int n;
+        while ((n = ins.read(b)) > 0) out.write(b, 0, n);
+        try {
+            if (p.waitFor() != 0) throw new IOException("Cannot set up "+device+": "+out.toString().trim());
+        } catch (InterruptedException e) {
+            p.destroy();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted");
+        }
+    }
+
+    public InputStream getInputStream()
+    {
+        return myInputStream;
+    }
+
+    public OutputStream getOutputStream()
+    {
+        return myOutputStream;
+    }
+
+    public String getName()
+    {
+        return myName;
+    }
+
+    public void setReadTimeout(int millis) throws IOException
+    {
+        if (myClosed) throw new IOException("Port closed");
+        myReadTimeout = millis;
+    }
+
+    public void close()
+    {
+        thePoller.remove(this);
+        myLock.lock();
+        try {
+            myClosed = true;
+            myArrived.signalAll();
+        } finally {
+            myLock.unlock();
+        }
+        try {
+            if (myReadChannel != null) myReadChannel.close();
+            if (myWriteChannel != null) myWriteChannel.close();
+        } catch (IOException e) {
+            // Nothing more can be done
+        }
+    }
+    /**
+     * Read what has arrived on the device.  Called by the poller.
+     *
+     * @return boolean true if any bytes were read
+     */
+    private boolean poll()
+    {
+        myLock.lock();
+        try {
+            if (myClosed || !myReadBuffer.hasRemaining()) return false;
+            int n;
+            try {
+                // A tty read that finds nothing returns 0, which the channel reports as -1
+                n = myReadChannel.read(myReadBuffer);
+            } catch (IOException e) {
+                // e.g. a USB tower unplugged, or the other end of a pty closed
+                myClosed = true;
+                myArrived.signalAll();
+                return false;
+            }
+            if (n <= 0) return false;
+            myArrived.signalAll();
+            return true;
+        } finally {
+            myLock.unlock();
+        }
+    }
+    /**
+     * Wait up to the read timeout for bytes to arrive.
+     *
+     * @return int the number of bytes waiting, or 0 on timeout
+     */
+    private int waitForData() throws IOException
+    {
+        long deadline = System.currentTimeMillis() + myReadTimeout;
+        myLock.lock();
+        try {
+            while (myReadBuffer.position() == 0) {
+                if (myClosed) throw new IOException("Port closed");
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) return 0;
+                // Bytes are expected, so have the poller look often
+                thePoller.wake();
+                try {
+                    myArrived.await(wait, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted");
+                }
+            }
+            return myReadBuffer.position();
+        } finally {
+            myLock.unlock();
+        }
+    }
+    /**
+     * Take bytes read from the device.
+     */
+    private int take(byte [] b, int off, int len)
+    {
+        myLock.lock();
+        try {
+            myReadBuffer.flip();
+            int n = Math.min(len, myReadBuffer.remaining());
+            myReadBuffer.get(b, off, n);
+            myReadBuffer.compact();
+            return n;
+        } finally {
+            myLock.unlock();
+        }
+    }
+
+    class ChannelInputStream extends InputStream
+    {
+        /**
+         * Read the bytes that have arrived, waiting up to the read timeout for the
+         * first one.
+         *
+         * @return int the number of bytes read, or 0 on timeout
+         */
+        public int read(byte [] b, int off, int len) throws IOException
+        {
+            if (len == 0 || waitForData() == 0) return 0;
+            return take(b, off, len);
+        }
+
+        public int read() throws IOException
+        {
+            byte [] b = new byte[1];
+            return (read(b, 0, 1) == 0)?-1:(b[0] & 0xff);
+        }
+
+        public int available()
+        {
+            myLock.lock();
+            try {
+                return myReadBuffer.position();
+            } finally {
+                myLock.unlock();
+            }
+        }
+    }
+
+    class ChannelOutputStream extends OutputStream
+    {
+        /**
+         * Write bytes to the device.  They go to the driver at once, so flush()
+         * does nothing.
+         */
+        public void write(byte [] b, int off, int len) throws IOException
+        {
+            if (myClosed) throw new IOException("Port closed");
+            myWriteLock.lock();
+            try {
+                while (len > 0) {
+                    int n = Math.min(len, myWriteBuffer.capacity());
+                    myWriteBuffer.clear();
+                    myWriteBuffer.put(b, off, n);
+                    myWriteBuffer.flip();
+                    while (myWriteBuffer.hasRemaining()) myWriteChannel.write(myWriteBuffer);
+                    off += n;
+                    len -= n;
+                }
+            } finally {
+                myWriteLock.unlock();
+            }
+        }
+
+        public void write(int b) throws IOException
+        {
+            write(new byte [] { (byte) b }, 0, 1);
+        }
+    }
+    /**
+     * The thread that reads every open device.
+     */
+    static class Poller implements Runnable
+    {
+        private CopyOnWriteArrayList<RCXNioTransport> myPorts = new CopyOnWriteArrayList<RCXNioTransport>();
+        private Thread myThread;
+        private int myInterval = POLLINTERVAL;
+
+        synchronized void add(RCXNioTransport t)
+        {
+            myPorts.add(t);
+            if (myThread == null) {
+                myThread = new Thread(this, "RCXNioTransport poller");
+                myThread.setDaemon(true);
+                myThread.start();
+            }
+            notifyAll();
+        }
+
+        synchronized void remove(RCXNioTransport t)
+        {
+            myPorts.remove(t);
+        }
+        /**
+         * Go back to polling often, as bytes are expected.
+         */
+        synchronized void wake()
+        {
+            if (myInterval != POLLINTERVAL) {
+                myInterval = POLLINTERVAL;
+                notifyAll();
+            }
+        }
+
+        public void run()
+        {
+            while (true) {
+                boolean read = false;
+                for(RCXNioTransport t : myPorts) read |= t.poll();
+                synchronized (this) {
+                    try {
+                        // Wait for a port when there are none, and poll less often
+                        // while nothing arrives
+                        while (myPorts.isEmpty()) wait();
+                        myInterval = (read)?POLLINTERVAL:Math.min(myInterval*2, MAXPOLLINTERVAL);
+                        wait(myInterval);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,434 @@
+/**
+ * @(#) RCXOptimizer.java 0.1 98/03/12
+ *
+ *  Copyright (C) 1998, Scott B. Lewis.  All Rights Reserved.
+ *
+ *  License to copy, use, and modify this software is granted provided that
+ *  this notice is retained in any copies of any part of this software.
+ *
+ *  The author makes no guarantee that this software will compile or
+ *  function correctly.  Also, if you use this software, you do so at your
+ *  own risk.
+ *
+ *  Scott B. Lewis.  slewis@teleport.com  http://www.slewis.com
+ */
+package rcxport;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Vector;
+
+/**
+ * Makes the byte code of a program smaller, so it downloads faster and leaves more
+ * memory free on the RCX.  The optimizer:
+ * <ul>
+ * <li>folds runs of OutputPower, OutputDir and OutputMode commands, dropping
+ * settings that are overridden before anything else happens and merging commands
+ * that set several motors the same way,
+ * <li>sends jumps to a jump straight to its target, drops jumps to the next
+ * instruction, and drops code that cannot be reached,
+ * <li>makes sequences of instructions repeated in a task into subroutines, while
+ * there are subroutines free (see setOutlineAcrossTasks()),
+ * <li>uses SJump instead of Jump wherever the target is in range.
+ * </ul>
+ * The program given is not changed.  After optimize(), getSizeBefore() and
+ * getSizeAfter() give the sizes of the byte code of all tasks and subs.
+ */
+public class RCXOptimizer
+{
+    // Longest sequence made into a subroutine, in instructions
+    public static final int MAXOUTLINE = 16;
+    // Size of a GoSub
+    public static final int GOSUBLENGTH = 2;
+
+    // Motors of an output command, in the low bits of its first argument
+    public static final int MOTORS = 0x07;
+    // OutputDir setting to flip direction
+    public static final int DIR_FLIP = 0x40;
+
+    private boolean myOutline = true;
+    private boolean myOutlineAcrossTasks;
+
+    private int mySizeBefore;
+    private int mySizeAfter;
+    private int mySubsAdded;
+
+    /**
+     * Set whether repeated sequences are made into subroutines.  Defaults to true.
+     */
+    public void setOutline(boolean outline)
+    {
+        myOutline = outline;
+    }
+    /**
+     * Set whether a subroutine made from a repeated sequence may be called from more
+     * than one task.  Defaults to false, as the RCX may run tasks at once and so
+     * one subroutine from two tasks at once.  Only set true for programs that do not.
+     */
+    public void setOutlineAcrossTasks(boolean across)
+    {
+        myOutlineAcrossTasks = across;
+    }
+    /**
+     * Optimize a program.
+     *
+     * @param prog the program to optimize
+     * @return RCXProgram a new program, with the same number, tasks and subs (with
+     * any new subs after them)
+     * @exception IOException thrown if the byte code of a task or sub can't be decoded
+     */
+    public RCXProgram optimize(RCXProgram prog) throws IOException
+    {
+        int tasks = prog.getTaskCount();
+        int subs = prog.getSubCount();
+        RCXCode [] taskCode = new RCXCode[tasks];
+        Vector<RCXCode> subCode = new Vector<RCXCode>();
+        mySizeBefore = 0;
+        mySubsAdded = 0;
+        for(int i=0; i < tasks; i++) {
+            byte [] bytes = prog.getTaskBytes(i);
+            mySizeBefore += bytes.length;
+            taskCode[i] = simplify(RCXCode.decode(bytes));
+        }
+        for(int i=0; i < subs; i++) {
+            byte [] bytes = prog.getSubBytes(i);
+            mySizeBefore += bytes.length;
+            subCode.addElement(simplify(RCXCode.decode(bytes)));
+        }
+        if (myOutline) {
+            while (subCode.size() < RCXProgram.MAX_SUBS) {
+                RCXCode sub = outline(taskCode, subCode.size());
+                if (sub == null) break;
+                subCode.addElement(sub);
+                mySubsAdded++;
+            }
+        }
+        RCXProgram res = new RCXProgram((byte) prog.getProgramNum());
+        mySizeAfter = 0;
+        for(int i=0; i < tasks; i++) {
+            byte [] bytes = taskCode[i].encode();
+            mySizeAfter += bytes.length;
+            res.addTask(new RCXTask(bytes));
+        }
+        for(int i=0; i < subCode.size(); i++) {
+            byte [] bytes = subCode.elementAt(i).encode();
+            mySizeAfter += bytes.length;
+            res.addSub(new RCXSub(bytes));
+        }
+        return res;
+    }
+    /**
+     * Optimize the byte code of one task or sub.  No subroutines are made.
+     *
+     * @param code the byte code
+     * @return byte[] the optimized byte code
+     * @exception IOException thrown if the byte code can't be decoded
+     */
+    public byte [] optimize(byte [] code) throws IOException
+    {
+        mySizeBefore = code.length;
+        mySubsAdded = 0;
+        byte [] res = simplify(RCXCode.decode(code)).encode();
+        mySizeAfter = res.length;
+        return res;
+    }
+    /**
+     * Get the size of the byte code given to the last optimize().
+     */
+    public int getSizeBefore()
+    {
+        return mySizeBefore;
+    }
+    /**
+     * Get the size of the byte code made by the last optimize().
+     */
+    public int getSizeAfter()
+    {
+        return mySizeAfter;
+    }
+    /**
+     * Get the number of subroutines made by the last optimize().
+     */
+    public int getSubsAdded()
+    {
+        return mySubsAdded;
+    }
+
+    public String toString()
+    {
+        int saved = mySizeBefore - mySizeAfter;
+        return mySizeBefore+" bytes, "+mySizeAfter+" after optimizing ("+saved+" saved, "+
+            mySubsAdded+" subs added)";
+    }
+    /**
+     * Fold output commands and remove jumps and dead code until nothing changes.
+     */
+    private RCXCode simplify(RCXCode code)
+    {
+        while (true) {
+            int size = code.size();
+            code = removeDeadCode(foldOutputs(code));
+            if (code.size() == size) return code;
+        }
+    }
+
+    private static boolean isOutput(byte op)
+    {
+        return op == RCXCmd.OutputPower || op == RCXCmd.OutputDir || op == RCXCmd.OutputMode;
+    }
+    /**
+     * Fold runs of output commands.  A run ends at any other instruction or at a label,
+     * so the state of the outputs when the run starts is not known.  In a run, a
+     * command takes its motors away from earlier commands of the same kind (the
+     * earlier settings are never seen), and then next commands of the same kind with
+     * the same setting become one.  A flip takes its motors away from an earlier flip,
+     * as two flips cancel.
+     */
+    private RCXCode foldOutputs(RCXCode code)
+    {
+        int n = code.size();
+        boolean [] labelled = code.getLabelled();
+        boolean [] drop = new boolean[n];
+        boolean changed = false;
+        int start = 0;
+        for(int i=0; i < n; i++) {
+            byte op = code.getOp(i);
+            if (labelled[i]) start = i;
+            if (!isOutput(op)) {
+                start = i + 1;
+                continue;
+            }
+            for(int j=i-1; j >= start && !drop[i]; j--) {
+                if (drop[j] || code.getOp(j) != op) continue;
+                int overlap = code.getArgs(j)[0] & code.getArgs(i)[0] & MOTORS;
+                if (overlap == 0) continue;
+                boolean flip = op == RCXCmd.OutputDir && (code.getArgs(i)[0] & ~MOTORS) == DIR_FLIP;
+                boolean earlierFlip = op == RCXCmd.OutputDir && (code.getArgs(j)[0] & ~MOTORS) == DIR_FLIP;
+                // A flip after a setting depends on it
+                if (flip && !earlierFlip) break;
+                if (flip) dropMotors(code, i, overlap, drop);
+                dropMotors(code, j, overlap, drop);
+                changed = true;
+            }
+            // Merge with the last command kept, if the same but for motors
+            int k = i - 1;
+            while (k >= start && drop[k]) k--;
+            if (!drop[i] && k >= start && !labelled[i] && code.getOp(k) == op && sameSetting(code.getArgs(k), code.getArgs(i))) {
+                byte [] args = code.getArgs(k).clone();
+                args[0] |= code.getArgs(i)[0] & MOTORS;
+                code.set(k, op, args);
+                drop[i] = true;
+                changed = true;
+            }
+        }
+        return (changed)?code.compact(drop):code;
+    }
+
+    private static void dropMotors(RCXCode code, int i, int motors, boolean [] drop)
+    {
+        byte [] args = code.getArgs(i).clone();
+        args[0] &= ~motors;
+        code.set(i, code.getOp(i), args);
+        if ((args[0] & MOTORS) == 0) drop[i] = true;
+    }
+
+    private static boolean sameSetting(byte [] a, byte [] b)
+    {
+        if ((a[0] & ~MOTORS) != (b[0] & ~MOTORS)) return false;
+        for(int i=1; i < a.length; i++) {
+            if (a[i] != b[i]) return false;
+        }
+        return true;
+    }
+    /**
+     * Send branches to a jump on to its target, then drop instructions that can't be
+     * reached and jumps to the next instruction.
+     */
+    private RCXCode removeDeadCode(RCXCode code)
+    {
+        int n = code.size();
+        for(int i=0; i < n; i++) {
+            int label = code.getTarget(i);
+            if (label < 0) continue;
+            // Limited in case of a loop of jumps
+            for(int hops=0; hops < n; hops++) {
+                int t = code.getLabelIndex(label);
+                if (t == n || !RCXCode.isJump(code.getOp(t)) || code.getTarget(t) == label) break;
+                label = code.getTarget(t);
+            }
+            code.setTarget(i, label);
+        }
+        boolean [] reached = new boolean[n+1];
+        int [] stack = new int[n+1];
+        int top = 0;
+        stack[top++] = 0;
+        reached[0] = true;
+        while (top > 0) {
+            int i = stack[--top];
+            if (i == n) continue;
+            byte op = code.getOp(i);
+            if (!RCXCode.isJump(op) && !reached[i+1]) {
+                reached[i+1] = true;
+                stack[top++] = i + 1;
+            }
+            if (code.getTarget(i) >= 0) {
+                int t = code.getLabelIndex(code.getTarget(i));
+                if (!reached[t]) {
+                    reached[t] = true;
+                    stack[top++] = t;
+                }
+            }
+        }
+        boolean [] drop = new boolean[n];
+        boolean changed = false;
+        // Backwards, so a jump to a dropped jump to the next instruction is also dropped
+        int next = n;
+        for(int i=n-1; i >= 0; i--) {
+            drop[i] = !reached[i];
+            if (!drop[i] && RCXCode.isJump(code.getOp(i))) {
+                int t = code.getLabelIndex(code.getTarget(i));
+                drop[i] = t > i && t <= next;
+            }
+            if (drop[i]) changed = true;
+            else next = i;
+        }
+        return (changed)?code.compact(drop):code;
+    }
+    /**
+     * Find the repeated sequence in the tasks that saves the most bytes as a
+     * subroutine, and replace it with a GoSub.
+     *
+     * @param tasks the tasks, which are replaced with the new code
+     * @param sub the number of the new subroutine
+     * @return RCXCode the subroutine, or null if no sequence saves bytes
+     */
+    private RCXCode outline(RCXCode [] tasks, int sub)
+    {
+        // Number each distinct instruction that may be in a subroutine, or -1
+        HashMap<String, Integer> ids = new HashMap<String, Integer>();
+        int [][] taskIds = new int[tasks.length][];
+        for(int t=0; t < tasks.length; t++) {
+            RCXCode code = tasks[t];
+            taskIds[t] = new int[code.size()];
+            for(int i=0; i < code.size(); i++) {
+                byte op = code.getOp(i);
+                // No branches, and subroutines can't call subroutines
+                if (RCXCode.isBranch(op) || op == RCXCmd.GoSub) {
+                    taskIds[t][i] = -1;
+                    continue;
+                }
+                String key = instructionKey(op, code.getArgs(i));
+                Integer id = ids.get(key);
+                if (id == null) {
+                    id = Integer.valueOf(ids.size());
+                    ids.put(key, id);
+                }
+                taskIds[t][i] = id.intValue();
+            }
+        }
+        // Count the occurrences of each sequence that don't overlap.  Unless
+        // sequences may be shared across tasks, each task counts its own.
+        HashMap<String, Sequence> seqs = new HashMap<String, Sequence>();
+        Sequence best = null;
+        for(int t=0; t < tasks.length; t++) {
+            boolean [] labelled = tasks[t].getLabelled();
+            int n = taskIds[t].length;
+            for(int i=0; i < n; i++) {
+                StringBuilder key = new StringBuilder();
+                if (!myOutlineAcrossTasks) key.append((char) t);
+                int bytes = 0;
+                for(int len=1; len <= MAXOUTLINE && i+len <= n; len++) {
+                    int j = i + len - 1;
+                    // Only the first instruction may have a label
+                    if (taskIds[t][j] < 0 || (len > 1 && labelled[j])) break;
+                    key.append((char) taskIds[t][j]);
+                    bytes += 1 + tasks[t].getArgs(j).length;
+                    if (len == 1) continue;
+                    String k = key.toString();
+                    Sequence s = seqs.get(k);
+                    if (s == null) {
+                        s = new Sequence(len, bytes, t, i);
+                        seqs.put(k, s);
+                    } else if (s.myLastTask != t || i >= s.myLastEnd) {
+                        s.myCount++;
+                        s.myLastTask = t;
+                        s.myLastEnd = i + len;
+                        if (best == null || s.getSaving() > best.getSaving()) best = s;
+                    }
+                }
+            }
+        }
+        if (best == null || best.getSaving() <= 0) return null;
+        // Replace each occurrence, in the same order as counted
+        int len = best.myLength;
+        int [] ids0 = taskIds[best.myFirstTask];
+        RCXCode res = null;
+        byte [] gosub = new byte[] {(byte) sub};
+        for(int t=best.myFirstTask; t < tasks.length; t++) {
+            if (t != best.myFirstTask && !myOutlineAcrossTasks) break;
+            RCXCode code = tasks[t];
+            boolean [] labelled = code.getLabelled();
+            boolean [] drop = new boolean[code.size()];
+            boolean found = false;
+            for(int i=(t == best.myFirstTask)?best.myFirst:0; i+len <= code.size(); i++) {
+                if (!matches(taskIds[t], labelled, i, ids0, best.myFirst, len)) continue;
+                if (res == null) {
+                    res = new RCXCode();
+                    for(int j=i; j < i+len; j++) res.add(code.getOp(j), code.getArgs(j));
+                }
+                code.set(i, RCXCmd.GoSub, gosub);
+                for(int j=i+1; j < i+len; j++) drop[j] = true;
+                found = true;
+                i += len - 1;
+            }
+            if (found) tasks[t] = code.compact(drop);
+        }
+        return res;
+    }
+
+    private static boolean matches(int [] ids, boolean [] labelled, int i, int [] seq, int first, int len)
+    {
+        for(int j=0; j < len; j++) {
+            if (ids[i+j] != seq[first+j] || (j > 0 && labelled[i+j])) return false;
+        }
+        return true;
+    }
+
+    private static String instructionKey(byte op, byte [] args)
+    {
+        char [] key = new char[args.length + 1];
+        key[0] = (char) (op & 0xff);
+        for(int i=0; i < args.length; i++) key[i+1] = (char) (args[i] & 0xff);
+        return new String(key);
+    }
+    /**
+     * A sequence of instructions, and where it occurs.
+     */
+    static class Sequence
+    {
+        int myLength;
+        int myBytes;
+        int myCount = 1;
+        int myFirstTask;
+        int myFirst;
+        int myLastTask;
+        int myLastEnd;
+
+        Sequence(int length, int bytes, int task, int first)
+        {
+            myLength = length;
+            myBytes = bytes;
+            myFirstTask = task;
+            myFirst = first;
+            myLastTask = task;
+            myLastEnd = first + length;
+        }
+        /**
+         * Get the bytes saved by making the sequence a subroutine.
+         */
+        int getSaving()
+        {
+            return myCount*(myBytes - GOSUBLENGTH) - myBytes;
+        }
+    }
+}
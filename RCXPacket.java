@@ -20,8 +20,13 @@ import java.io.IOException;
 
 /**
  * Packet for communication with RCX.  This class encodes a byte array
- * provided upon construction as an RCX packet according to the 
+ * provided with set() as an RCX packet according to the 
  * {@link <a href="http://www.crynwr.com/lego-robotics/">RCX Internals</a>} web page.
+ * <p>
+ * An RCXPort owns a single RCXPacket and reuses it for every command, so the
+ * encoded packet is built in a buffer that is only reallocated when a larger
+ * packet than any before is sent.  The toggle bit state is kept in the packet,
+ * so each port (and so each tower) has its own.
  *
  * @author Scott B. Lewis, slewis@teleport.com
  */
@@ -30,25 +35,73 @@ class RCXPacket implements Serializable
     public static final byte PACKETHEADER1 = (byte) 0x55;
     public static final byte PACKETHEADER2 = (byte) 0xff;
     public static final byte PACKETHEADER3 = (byte) 0x00;
+    // Initial data capacity.  Enough for a download block and its header.
+    public static final int INITIALDATA = 64;
     
     /**
      * @serial myData the data to be in the packet
      */
     protected byte [] myData;
     /**
-     * @serial mySendData the actual packet sent (including checksum and etc.)
+     * @serial myOffset the offset of the packet data in myData
+     */
+    protected int myOffset;
+    /**
+     * @serial myLength the number of bytes of packet data in myData
+     */
+    protected int myLength;
+    /**
+     * @serial mySendData the actual packet sent (including checksum and etc.).  Either
+     * myBuffer, or the encoding of an RCXFrame, which must not be changed.
      */
     protected byte [] mySendData;
+    /**
+     * @serial myBuffer the array packets not from an RCXFrame are encoded into
+     */
+    private byte [] myBuffer = new byte[sendLength(INITIALDATA)];
+    /**
+     * @serial mySendLength the number of bytes of mySendData in use
+     */
+    protected int mySendLength;
     
-    // Remember last command
-    private static byte lastCommand=0;
+    /**
+     * @serial myFrame the pre-encoded command to send, or null to encode myData
+     */
+    private RCXFrame myFrame;
+    /**
+     * @serial myLastCommand the opcode byte of the last packet sent, for the toggle bit
+     */
+    private byte myLastCommand=0;
     
+    protected RCXPacket()
+    {
+    }
     /**
-     * Constructor.  Data provided should be a byte array of length >= 1.
+     * Set the data for this packet.  The data is not copied, so it must not change
+     * until the packet has been written.  Length should be >= 1.
+     *
+     * @param data the array holding the packet data
+     * @param offset the offset of the first byte of data
+     * @param length the number of bytes of data
      */
-    protected RCXPacket(byte [] data)
+    protected void set(byte [] data, int offset, int length)
     {
         myData = data;
+        myOffset = offset;
+        myLength = length;
+        myFrame = null;
+        mySendLength = 0;
+    }
+    /**
+     * Set this packet to a pre-encoded command.  Writing it copies one of the frame's
+     * encodings rather than encoding the data again.
+     *
+     * @param frame the command
+     */
+    protected void set(RCXFrame frame)
+    {
+        set(frame.myData, 0, frame.myData.length);
+        myFrame = frame;
     }
     /**
      * Writes this packet to the given output stream.
@@ -59,42 +112,80 @@ class RCXPacket implements Serializable
      */
     protected void writePacket(OutputStream os) throws IOException
     {
-        if (myData == null || myData.length < 1) throw new IOException("No data in packet to send");
-        mySendData = getBytes();
+        if (myData == null || myLength < 1) throw new IOException("No data in packet to send");
+        encode();
         // send it
-        os.write(mySendData);
+        os.write(mySendData, 0, mySendLength);
         os.flush();
         //System.out.println("Wrote packet: "+this);
     }
     /**
-     * This gets the actual bytes for transmission over the comm port.
+     * Take the toggle bit state from the packet sent before this one, for packets
+     * sent in turn from different RCXPacket objects.
+     *
+     * @param previous the packet sent last
+     */
+    protected void follow(RCXPacket previous)
+    {
+        myLastCommand = previous.myLastCommand;
+    }
+    /**
+     * This builds the actual bytes for transmission over the comm port in
+     * mySendData.
+     */
+    private void encode()
+    {
+        // Correction for last command.  The RCX ignores a command with the same
+        // opcode byte as the last one, so flip the toggle bit in what is sent.
+        // The caller's data is left as it is.
+        byte op = myData[myOffset];
+        boolean toggle = (op==myLastCommand);
+        if (myFrame != null) {
+            mySendData = myFrame.getSendData(toggle);
+        } else {
+            int length = sendLength(myLength);
+            if (myBuffer.length < length) myBuffer = new byte[length];
+            encode(myData, myOffset, myLength, toggle, myBuffer);
+            mySendData = myBuffer;
+        }
+        myLastCommand = (toggle)?(byte) (op ^ 8):op;
+        mySendLength = sendLength(myLength);
+    }
+    /**
+     * Encode a packet: the header, each data byte and its complement, and the
+     * checksum and its complement.
      *
-     * @return byte[] the bytes to send
+     * @param data the array holding the packet data
+     * @param offset the offset of the first byte of data
+     * @param length the number of bytes of data
+     * @param toggle if true, flip the toggle bit of the opcode
+     * @param dest where to put the packet.  Must have room for sendLength(length) bytes.
      */
-    private byte[] getBytes()
+    static void encode(byte [] data, int offset, int length, boolean toggle, byte [] dest)
     {
-        byte [] sendData = new byte[myData.length*2+5];
-        sendData[0] = PACKETHEADER1;
-        sendData[1] = PACKETHEADER2;
-        sendData[2] = PACKETHEADER3;
+        dest[0] = PACKETHEADER1;
+        dest[1] = PACKETHEADER2;
+        dest[2] = PACKETHEADER3;
         
         int index = 3;
         int checkSum=0;
-        
-        // Correction for last command
-        if (myData[0]==lastCommand) {
-            myData[0] ^= 8;
-        }
-        lastCommand = myData[0];
-        for(int i=0; i < myData.length; i++) {
-            sendData[index]=myData[i];
-            sendData[index+1]=(byte) ((~myData[i])&0xff);
-            checkSum+=myData[i];
+        for(int i=offset; i < offset + length; i++) {
+            byte d = (i==offset && toggle)?(byte) (data[i] ^ 8):data[i];
+            dest[index]=d;
+            dest[index+1]=(byte) ((~d)&0xff);
+            checkSum+=d;
             index+=2;
         }
-        sendData[index]=(byte) checkSum;
-        sendData[index+1]=(byte) ~checkSum;
-        return sendData;
+        dest[index]=(byte) checkSum;
+        dest[index+1]=(byte) ~checkSum;
+    }
+    /**
+     * Get number of bytes sent for a packet with the given amount of data: three header
+     * bytes, each data byte and its complement, and the checksum and its complement.
+     */
+    protected static int sendLength(int dataLength)
+    {
+        return dataLength*2+5;
     }
     
     public String toString()
@@ -105,12 +196,11 @@ class RCXPacket implements Serializable
             return sb.toString();
         }
         
-        for(int i=0; i < myData.length; i++) {
+        for(int i=0; i < myLength; i++) {
             if (i != 0) sb.append(" ");
-            sb.append(RCXCmd.makeString(myData[i]));
+            sb.append(RCXCmd.makeString(myData[myOffset+i]));
         }
         sb.append("]");
         return sb.toString();
     }
 }
-
@@ -0,0 +1,351 @@
+/**
+ * @(#) RCXPoller.java 0.1 98/03/12
+ *
+ *  Copyright (C) 1998, Scott B. Lewis.  All Rights Reserved.
+ *
+ *  License to copy, use, and modify this software is granted provided that
+ *  this notice is retained in any copies of any part of this software.
+ *
+ *  The author makes no guarantee that this software will compile or
+ *  function correctly.  Also, if you use this software, you do so at your
+ *  own risk.
+ *
+ *  Scott B. Lewis.  slewis@teleport.com  http://www.slewis.com
+ */
+package rcxport;
+
+import java.io.IOException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Samples RCX sensors, variables and other sources at set rates with the Read
+ * command, and puts the samples in an RCXSampleRing for another thread to consume.
+ * <p>
+ * Each subscription names a value (see RCXCmd.makeValue) and a rate.  Subscriptions
+ * to the same value share one channel, read at the highest rate asked for, so a
+ * value is never read twice for two subscribers.  Each channel is due to be read
+ * once per period, and must be read before the next period starts.  The channel
+ * with the earliest deadline is read first (earliest deadline first), and the link
+ * is idle only when no channel is due.  A Read takes about 100ms at 2400 baud, so
+ * the link carries about ten samples a second in all.  If more are asked for, every
+ * channel is still read in turn, and the missed deadlines are counted.
+ * <p>
+ * Reads are not retried, as a fresh sample is soon due anyway.  Failed reads are
+ * counted.  While a poller runs, other commands may still be sent on the port; they
+ * take their turn between reads.
+ */
+public class RCXPoller
+{
+    public static final int MAXCHANNELS = 64;
+
+    private RCXPort myPort;
+    private RCXSampleRing myRing;
+    private Thread myThread;
+    private boolean myRunning;
+    // Guards the poller's state.  The poll thread waits on myChanged for a channel to
+    // come due.  A lock rather than wait(), which pins a virtual thread to its carrier.
+    private final ReentrantLock myLock = new ReentrantLock();
+    private final Condition myChanged = myLock.newCondition();
+
+    // Subscriptions, by handle.  Free handles have a period of 0.
+    private int [] mySubKeys = new int[MAXCHANNELS];
+    private long [] mySubPeriods = new long[MAXCHANNELS];
+
+    // Channels: value read, period and start of the current period, in nanoseconds
+    private int [] myKeys = new int[MAXCHANNELS];
+    private long [] myPeriods = new long[MAXCHANNELS];
+    private long [] myReleases = new long[MAXCHANNELS];
+    private int myChannels;
+
+    private long mySamples;
+    private long myErrors;
+    private long myMissed;
+
+    /**
+     * Create a poller.  Nothing is read until start() is called.
+     *
+     * @param port the port of the RCX to read from
+     * @param ring the ring to put samples in.  Its consumer must be one thread.
+     */
+    public RCXPoller(RCXPort port, RCXSampleRing ring)
+    {
+        myPort = port;
+        myRing = ring;
+    }
+    /**
+     * Subscribe to a value.
+     *
+     * @param value the value to read, from RCXCmd.makeValue (e.g.
+     * makeValue(RCXCmd.SOURCE_SENSORVALUE, 0) for the value of sensor 1)
+     * @param hz the number of samples wanted per second
+     * @return int a handle for unsubscribe()
+     * @exception IllegalArgumentException thrown if hz is not positive, or there are
+     * MAXCHANNELS subscriptions already
+     */
+    public int subscribe(int value, double hz)
+    {
+        myLock.lock();
+        try {
+            if (hz <= 0) throw new IllegalArgumentException("Rate must be positive");
+            for(int i=0; i < MAXCHANNELS; i++) {
+                if (mySubPeriods[i] == 0) {
+                    mySubKeys[i] = value;
+                    mySubPeriods[i] = Math.max(1, (long) (1000000000L / hz));
+                    rebuildChannels();
+                    return i;
+                }
+            }
+            throw new IllegalArgumentException("Too many subscriptions");
+        } finally {
+            myLock.unlock();
+        }
+    }
+    /**
+     * Remove a subscription.
+     *
+     * @param handle the handle returned by subscribe()
+     */
+    public void unsubscribe(int handle)
+    {
+        myLock.lock();
+        try {
+            mySubPeriods[handle] = 0;
+            rebuildChannels();
+        } finally {
+            myLock.unlock();
+        }
+    }
+    /**
+     * Start reading on a new thread.
+     */
+    public void start()
+    {
+        myLock.lock();
+        try {
+            if (myRunning) return;
+            myRunning = true;
+            myThread = new Thread(new Runnable() {
+                public void run()
+                {
+                    try {
+                        poll();
+                    } finally {
+                        stopped();
+                    }
+                }
+            }, "RCXPoller-"+myPort.getPortName());
+            myThread.setDaemon(true);
+            myThread.start();
+        } finally {
+            myLock.unlock();
+        }
+    }
+    /**
+     * Stop reading, and wait for the thread to finish the read in progress.
+     */
+    public void stop() throws InterruptedException
+    {
+        myLock.lock();
+        try {
+            if (!myRunning) return;
+            myRunning = false;
+            Thread t = myThread;
+            myChanged.signalAll();
+            // Not t.join(), which waits on the thread's monitor
+            while (myThread == t) myChanged.await();
+        } finally {
+            myLock.unlock();
+        }
+    }
+
+    public RCXSampleRing getRing()
+    {
+        return myRing;
+    }
+
+    public int getChannelCount()
+    {
+        myLock.lock();
+        try {
+            return myChannels;
+        } finally {
+            myLock.unlock();
+        }
+    }
+    /**
+     * Get the number of samples read.
+     */
+    public long getSamples()
+    {
+        myLock.lock();
+        try {
+            return mySamples;
+        } finally {
+            myLock.unlock();
+        }
+    }
+    /**
+     * Get the number of reads that failed.
+     */
+    public long getErrors()
+    {
+        myLock.lock();
+        try {
+            return myErrors;
+        } finally {
+            myLock.unlock();
+        }
+    }
+    /**
+     * Get the number of times a channel was not read within its period.
+     */
+    public long getMissedDeadlines()
+    {
+        myLock.lock();
+        try {
+            return myMissed;
+        } finally {
+            myLock.unlock();
+        }
+    }
+    /**
+     * Merge subscriptions to the same value into channels, keeping the start of the
+     * current period of channels that remain.
+     */
+    private void rebuildChannels()
+    {
+        int [] keys = new int[MAXCHANNELS];
+        long [] periods = new long[MAXCHANNELS];
+        long [] releases = new long[MAXCHANNELS];
+        int n = 0;
+        long now = System.nanoTime();
+        for(int i=0; i < MAXCHANNELS; i++) {
+            if (mySubPeriods[i] == 0) continue;
+            int c = find(keys, n, mySubKeys[i]);
+            if (c < 0) {
+                c = n++;
+                keys[c] = mySubKeys[i];
+                periods[c] = mySubPeriods[i];
+                int old = find(myKeys, myChannels, keys[c]);
+                releases[c] = (old < 0)?now:myReleases[old];
+            } else {
+                periods[c] = Math.min(periods[c], mySubPeriods[i]);
+            }
+        }
+        myKeys = keys;
+        myPeriods = periods;
+        myReleases = releases;
+        myChannels = n;
+        myChanged.signalAll();
+    }
+
+    private static int find(int [] keys, int n, int key)
+    {
+        for(int i=0; i < n; i++) if (keys[i] == key) return i;
+        return -1;
+    }
+    /**
+     * Wait for the channel due with the earliest deadline.
+     *
+     * @return int the value to read, or -1 if stopped
+     */
+    private int nextChannel() throws InterruptedException
+    {
+        myLock.lock();
+        try {
+            while (myRunning) {
+                long now = System.nanoTime();
+                int best = -1;
+                long bestDeadline = 0;
+                long nextRelease = Long.MAX_VALUE;
+                for(int c=0; c < myChannels; c++) {
+                    if (myReleases[c] - now > 0) {
+                        nextRelease = Math.min(nextRelease, myReleases[c]);
+                        continue;
+                    }
+                    long deadline = myReleases[c] + myPeriods[c];
+                    if (best < 0 || deadline - bestDeadline < 0) {
+                        best = c;
+                        bestDeadline = deadline;
+                    }
+                }
+                if (best >= 0) return myKeys[best];
+                if (nextRelease == Long.MAX_VALUE) myChanged.await();
+                else myChanged.awaitNanos(nextRelease - now);
+            }
+            return -1;
+        } finally {
+            myLock.unlock();
+        }
+    }
+    /**
+     * Start the next period of a channel that has been read.
+     */
+    private void channelRead(int key, long now, boolean ok)
+    {
+        myLock.lock();
+        try {
+            if (ok) mySamples++;
+            else myErrors++;
+            int c = find(myKeys, myChannels, key);
+            // May have been unsubscribed during the read
+            if (c < 0) return;
+            long deadline = myReleases[c] + myPeriods[c];
+            if (deadline - now < 0) {
+                // Missed the deadline.  Start again from now rather than catch up.
+                myMissed++;
+                myReleases[c] = now;
+            } else {
+                myReleases[c] = deadline;
+            }
+        } finally {
+            myLock.unlock();
+        }
+    }
+
+    /**
+     * Tell stop() that the poll thread has finished.
+     */
+    private void stopped()
+    {
+        myLock.lock();
+        try {
+            if (myThread == Thread.currentThread()) myThread = null;
+            myChanged.signalAll();
+        } finally {
+            myLock.unlock();
+        }
+    }
+
+    private void poll()
+    {
+        while (true) {
+            int key;
+            try {
+                key = nextChannel();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (key < 0) return;
+            boolean ok = false;
+            try {
+                // Decoded under the port's lock, so other commands can't replace the reply
+                int value = myPort.readValue(key, false);
+                myRing.offer(key, System.nanoTime(), value);
+                ok = true;
+            } catch (IOException e) {
+                // Counted as an error.  Stop if the port has been closed.
+                if (myPort.getTransport() == null) {
+                    myLock.lock();
+                    try {
+                        myRunning = false;
+                    } finally {
+                        myLock.unlock();
+                    }
+                }
+            }
+            channelRead(key, System.nanoTime(), ok);
+        }
+    }
+}
@@ -15,17 +15,16 @@
 package rcxport;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.InputStream;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.FileReader;
 import java.io.Reader;
 import java.io.BufferedReader;
-
-// Classes needed from Java Comm API for communicating over the serial port.
-import javax.comm.CommPortIdentifier;
-import javax.comm.SerialPort;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Top-level interface to the RCX.  This is the top-level interface for interacting
@@ -34,6 +33,10 @@ import javax.comm.SerialPort;
  * {@link <a href="http://www.crynwr.com/lego-robotics/">RCX Internals</a>} web page.
  * The primary method for sending RCX byte codes to the RCX is the </b>downloadProgram</b>
  * method in this class.
+ * <p>
+ * Bytes are moved to and from the tower by an RCXTransport.  The serial port 
+ * transport is used by default; an RCXSimulatedTower may be given instead to run
+ * without a tower.
  *
  * @author Scott B. Lewis, slewis@teleport.com
  */
@@ -49,18 +52,48 @@ public class RCXPort
     // Default radix for reading byte codes from file is hex
     public static final int FILE_RADIX = 16;
     
+    // Download block size older tools use, and the step adaptive downloads grow by
     public static final byte DOWNLOADCHUNK = 20;
+    // Largest download block the RCX firmware accepts, and the default block size
+    public static final int MAXDOWNLOADCHUNK = 200;
     
     public static final byte DEFAULTRETRYCOUNT = 3;
+    // Idle time after which the link is pinged before the next command, in milliseconds
+    public static final int KEEPALIVETIME = 3000;
     public static final byte DOWNLOAD_SOUND = 5;
     
     private String myPortName;
     private OutputStream myOutputStream;
     private InputStream myInputStream;
-    private CommPortIdentifier myPortIdentifier;
-    private SerialPort myPort;
+    private RCXTransport myTransport;
+    // Held while the port is used.  A lock rather than synchronized methods, so a
+    // virtual thread blocked on I/O while holding it doesn't pin its carrier thread.
+    private final ReentrantLock myLock = new ReentrantLock();
+    // Packet, result and command buffer reused for every command sent
+    private RCXPacket myPacket = new RCXPacket();
+    private RCXResult myResult = new RCXResult();
+    private byte [] myCommand = new byte[MAXDOWNLOADCHUNK+6];
+    
+    private RCXPortMetrics myMetrics = new RCXPortMetrics();
+    private RCXRetryPolicy myRetryPolicy = new RCXRetryPolicy();
+    // Read timeout last set on the transport
+    private int myReadTimeout = -1;
+    private RCXMetricsListener myMetricsListener;
+    private RCXDownloadListener myDownloadListener;
+    
+    // Download block size, and whether it adapts to transfer results.  Starts with
+    // the largest block, and falls back to smaller ones if the RCX can't take it.
+    private int myDownloadChunk = MAXDOWNLOADCHUNK;
+    private boolean myAdaptiveDownload = true;
     
-    private boolean mySynched = false;
+    // Time of last good response from the RCX, and idle time before a ping is needed
+    private volatile long myLastContact = 0;
+    private int myKeepAliveTime = KEEPALIVETIME;
+    
+    // Program selected on the RCX (-1 if not known), and what was last downloaded to
+    // each program slot, for downloadChanges
+    private int mySelectedProgram = -1;
+    private RCXDownloadRecord [] myRecords = new RCXDownloadRecord[RCXProgram.MAX_PROGS];
     
     /**
      * Create an interface to the RCX.  Opens and prepares comm port for use.  Will
@@ -74,52 +107,336 @@ public class RCXPort
      */
     public RCXPort(String port) throws Exception
     {
-        myPortName = port;
-        myPortIdentifier = CommPortIdentifier.getPortIdentifier(myPortName);
+        this(new RCXSerialTransport(port));
+    }
+    /**
+     * Create an interface to the RCX over the given transport.
+     *
+     * @param transport the RCXTransport to send and receive bytes with.  Must not be null.
+     * @exception IOException thrown if the transport's streams cannot be gotten.  The
+     * transport is closed in this case.
+     */
+    public RCXPort(RCXTransport transport) throws IOException
+    {
+        myTransport = transport;
+        myPortName = transport.getName();
         try {
-            myPort = (SerialPort) myPortIdentifier.open(RCXPORTNAME, PORTOPENTIMEOUT);
-    	    myPort.setSerialPortParams(2400,SerialPort.DATABITS_8,SerialPort.STOPBITS_1,
-                                	    SerialPort.PARITY_ODD);
-            myPort.enableReceiveTimeout(PORTREADTIMEOUT);
-            //myPort.enableReceiveThreshold(1);
-            myOutputStream = new BufferedOutputStream(myPort.getOutputStream(), INSBUFF);
-            myInputStream = myPort.getInputStream();
-        } catch (Exception e) {
+            myOutputStream = new BufferedOutputStream(transport.getOutputStream(), OUTBUFF);
+            myInputStream = transport.getInputStream();
+        } catch (IOException e) {
             // problem so close
-            if (myPort != null) myPort.close();
+            transport.close();
             throw e;
         }
     }
     /**
      * Send data to the RCX, and get an RCXResult back.  This is the primary
      * interface for communicating with the RCX.
+     * <p>
+     * The RCXResult returned is the caller's own copy, so it stays valid whatever
+     * other threads send on the port.  See sendDataInPlace for sending without a copy.
      *
      * @param data the byte array to send.  Must not be null and should have length longer than 0.
      * @return res a valid RCXResult returned from the RCX.
      * @exception IOException thrown if port has previously been closed, the packet
      * provided is null, or some problem sending packet or receiving result from RCX
      */
-    public synchronized RCXResult sendData(byte [] data, boolean retry) throws IOException
+    public RCXResult sendData(byte [] data, boolean retry) throws IOException
+    {
+        // Check that we haven't been given bogus data
+        if (data==null) throw new IOException("Null data");
+        return sendData(data, 0, data.length, retry);
+    }
+    /**
+     * Send part of an array to the RCX, and get an RCXResult back.  The data is encoded
+     * directly from the given array, so no intermediate arrays are created.
+     *
+     * @param data the array holding the bytes to send.  Must not be null.
+     * @param offset the index of the first byte to send
+     * @param length the number of bytes to send.  Should be longer than 0.
+     * @param retry if true, make as many attempts as the RCXRetryPolicy allows for
+     * this opcode (DEFAULTRETRYCOUNT unless set otherwise)
+     * @return res a valid RCXResult returned from the RCX.  A copy owned by the caller.
+     * @exception IOException thrown if port has previously been closed, the packet
+     * provided is null, or some problem sending packet or receiving result from RCX
+     */
+    public RCXResult sendData(byte [] data, int offset, int length, boolean retry) throws IOException
+    {
+        myLock.lock();
+        try {
+            return sendDataInPlace(data, offset, length, retry).copy();
+        } finally {
+            myLock.unlock();
+        }
+    }
+    /**
+     * Send a pre-encoded command to the RCX, and get an RCXResult back.  This is the
+     * cheapest way to send a command that is sent often.
+     *
+     * @param frame the command
+     * @param retry if true, make as many attempts as the RCXRetryPolicy allows
+     * @return res a valid RCXResult returned from the RCX.  A copy owned by the caller.
+     * @exception IOException thrown if port has previously been closed, or some problem
+     * sending packet or receiving result from RCX
+     */
+    public RCXResult sendData(RCXFrame frame, boolean retry) throws IOException
+    {
+        myLock.lock();
+        try {
+            return sendDataInPlace(frame, retry).copy();
+        } finally {
+            myLock.unlock();
+        }
+    }
+
+    public RCXResult sendData(RCXFrame frame) throws IOException
+    {
+        return sendData(frame, true);
+    }
+    /**
+     * Send part of an array to the RCX, and get back the RCXResult this port owns,
+     * without copying it.  The result is reused for the next command sent on the port
+     * by any thread, so the caller must hold the port with lock() from before this
+     * call until it has finished with the result.
+     *
+     * @param data the array holding the bytes to send.  Must not be null.
+     * @param offset the index of the first byte to send
+     * @param length the number of bytes to send.  Should be longer than 0.
+     * @param retry if true, make as many attempts as the RCXRetryPolicy allows
+     * @return res the result, valid until the port is unlocked
+     * @exception IOException thrown if port has previously been closed, the packet
+     * provided is null, or some problem sending packet or receiving result from RCX
+     * @exception IllegalStateException thrown if the caller doesn't hold the port
+     */
+    public RCXResult sendDataInPlace(byte [] data, int offset, int length, boolean retry) throws IOException
     {
-        if (myPort==null) throw new IOException("Port closed");
+        checkHeld();
         // Check that we haven't been given bogus data
-        if (data==null || data.length == 0) throw new IOException("Null data");
-        int retries = (retry)?DEFAULTRETRYCOUNT:1;
+        if (data==null || length == 0) throw new IOException("Null data");
+        myPacket.set(data, offset, length);
+        return send(myPacket, myResult, retry);
+    }
+    /**
+     * Send a pre-encoded command to the RCX, and get back the RCXResult this port
+     * owns, without copying it.  As for sendDataInPlace(byte[], int, int, boolean),
+     * the caller must hold the port with lock() until it has finished with the result.
+     *
+     * @param frame the command
+     * @param retry if true, make as many attempts as the RCXRetryPolicy allows
+     * @return res the result, valid until the port is unlocked
+     * @exception IOException thrown if port has previously been closed, or some problem
+     * sending packet or receiving result from RCX
+     * @exception IllegalStateException thrown if the caller doesn't hold the port
+     */
+    public RCXResult sendDataInPlace(RCXFrame frame, boolean retry) throws IOException
+    {
+        checkHeld();
+        myPacket.set(frame);
+        return send(myPacket, myResult, retry);
+    }
+    /**
+     * Hold the port, so no other thread's commands are sent until unlock() is called.
+     * Calls may be nested; each lock() needs an unlock().
+     */
+    public void lock()
+    {
+        myLock.lock();
+    }
+    /**
+     * Release the port held by lock().
+     */
+    public void unlock()
+    {
+        myLock.unlock();
+    }
+    
+    private void checkHeld()
+    {
+        if (!myLock.isHeldByCurrentThread()) throw new IllegalStateException("Port not locked");
+    }
+    /**
+     * Send a command whose reply is not looked at.
+     */
+    private void command(RCXFrame frame) throws IOException
+    {
+        myLock.lock();
+        try {
+            sendDataInPlace(frame, true);
+        } finally {
+            myLock.unlock();
+        }
+    }
+    /**
+     * Send a batch of commands, and keep their results in the batch.  The port is held
+     * for the whole batch, so no other thread's commands come between them, and a
+     * batch sent again allocates nothing.
+     * <p>
+     * Each command is written only once the reply to the one before has arrived.  The
+     * IR link is half duplex, and the RCX starts its reply a couple of milliseconds
+     * after a command ends.  A command written straight behind another would still be
+     * on the air during that reply, so the reply and the command would both be lost.
+     *
+     * @param batch the commands
+     * @param retry if true, make as many attempts at each command as the
+     * RCXRetryPolicy allows
+     * @exception IOException thrown if port has previously been closed, or some problem
+     * sending packets or receiving results from RCX.  The commands after the one that
+     * failed are not sent.
+     */
+    public void sendBatch(RCXBatch batch, boolean retry) throws IOException
+    {
+        myLock.lock();
+        try {
+            if (myTransport==null) throw new IOException("Port closed");
+            for(int i=0; i < batch.size(); i++) send(batch.myPackets[i], batch.myResults[i], retry);
+        } finally {
+            myLock.unlock();
+        }
+    }
+
+    public void sendBatch(RCXBatch batch) throws IOException
+    {
+        sendBatch(batch, true);
+    }
+    /**
+     * Send a packet that has been set, and read its result.
+     */
+    private RCXResult send(RCXPacket packet, RCXResult result, boolean retry) throws IOException
+    {
+        if (myTransport==null) throw new IOException("Port closed");
+        byte op = packet.myData[packet.myOffset];
+        int retries = (retry)?myRetryPolicy.getRetries(op):1;
         IOException last = null;
-        // Read anything from input buffer
-        if (myInputStream.available() != 0) while (myInputStream.read() != -1) ;
+        int error = RCXResult.ERROR_NONE;
+        long start = System.nanoTime();
+        drain();
         for(int i=0; i < retries; i++) {
             try {    
+                if (i > 0) backoff(i);
                 // Send packet
-                RCXPacket p = new RCXPacket(data);
-                p.writePacket(myOutputStream);
-                return new RCXResult(myInputStream, p);
+                result.clear();
+                setReadTimeout(packet);
+                long sent = System.nanoTime();
+                // The toggle bit follows the last packet sent, whichever object sent it
+                packet.follow(myPacket);
+                packet.writePacket(myOutputStream);
+                myPacket.follow(packet);
+                result.read(myInputStream, packet);
+                myLastContact = System.currentTimeMillis();
+                if (i == 0) myRetryPolicy.sample(op, System.nanoTime() - sent, result.getNumRead());
+                myMetrics.attempt(op, packet.mySendLength, result.getNumRead(), RCXResult.ERROR_NONE);
+                completed(op, start, i+1, RCXResult.ERROR_NONE);
+                return result;
+            } catch (InterruptedIOException e) {
+                // Interrupted, so the caller is giving up.  Don't retry.
+                myMetrics.attempt(op, packet.mySendLength, result.getNumRead(), RCXResult.ERROR_IO);
+                completed(op, start, i+1, RCXResult.ERROR_IO);
+                throw e;
             } catch (IOException e) {
                 last = e;
+                error = (result.getError()==RCXResult.ERROR_NONE)?RCXResult.ERROR_IO:result.getError();
+                myMetrics.attempt(op, packet.mySendLength, result.getNumRead(), error);
+                if (error == RCXResult.ERROR_TIMEOUT) myRetryPolicy.timedOut();
             }
         }
+        completed(op, start, retries, error);
         throw last;
     }
+    /**
+     * Set the transport's read timeout for a packet from the retry policy.
+     */
+    private void setReadTimeout(RCXPacket packet) throws IOException
+    {
+        int reply = RCXCmd.getReplyLength(packet.myData, packet.myOffset, packet.myLength);
+        // Header, pairs and checksum.  A reply of unknown length is at least the opcode.
+        int bytes = RCXPacket.sendLength(packet.myLength) + ((reply == RCXCmd.REPLY_NONE)?0:RCXPacket.sendLength(Math.max(reply, 1)));
+        int timeout = myRetryPolicy.getTimeout(packet.myData[packet.myOffset], bytes);
+        if (timeout != myReadTimeout) {
+            myTransport.setReadTimeout(timeout);
+            myReadTimeout = timeout;
+        }
+    }
+    
+    private void backoff(int attempt) throws IOException
+    {
+        long wait = myRetryPolicy.getBackoff(attempt);
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted");
+            }
+        }
+        // Throw away any late reply to the last attempt
+        drain();
+    }
+    /**
+     * Throw away anything left in the input buffer, without waiting for more to arrive.
+     */
+    private void drain() throws IOException
+    {
+        int stale;
+        while ((stale = myInputStream.available()) > 0) myInputStream.skip(stale);
+    }
+    /**
+     * Set the policy giving read timeouts and the number of attempts for each command.
+     *
+     * @param policy the policy.  Must not be null, and should not be shared with another port.
+     */
+    public void setRetryPolicy(RCXRetryPolicy policy)
+    {
+        myLock.lock();
+        try {
+            myRetryPolicy = policy;
+        } finally {
+            myLock.unlock();
+        }
+    }
+    
+    public RCXRetryPolicy getRetryPolicy()
+    {
+        return myRetryPolicy;
+    }
+    
+    private void completed(byte op, long start, int attempts, int error)
+    {
+        long nanos = System.nanoTime() - start;
+        myMetrics.completed(op, nanos, attempts, error == RCXResult.ERROR_NONE);
+        if (myMetricsListener != null) myMetricsListener.commandCompleted(this, op, nanos, attempts, error);
+    }
+    /**
+     * Get the link metrics for this port.  These are always kept.
+     *
+     * @return RCXPortMetrics the metrics
+     */
+    public RCXPortMetrics getMetrics()
+    {
+        return myMetrics;
+    }
+    /**
+     * Set a listener to be told about every command sent.
+     *
+     * @param listener the listener, or null for none
+     */
+    public void setMetricsListener(RCXMetricsListener listener)
+    {
+        myMetricsListener = listener;
+    }
+    /**
+     * Set a listener to be told about the stages of each program download.
+     *
+     * @param listener the listener, or null for none
+     */
+    public void setDownloadListener(RCXDownloadListener listener)
+    {
+        myDownloadListener = listener;
+    }
+    
+    private void stage(int prog, int stage)
+    {
+        if (myDownloadListener != null) myDownloadListener.downloadStage(this, prog, stage);
+    }
     /**
      * Alternative to sendData/2 that has a retry by default.
      *
@@ -140,45 +457,99 @@ public class RCXPort
     {
         return myPortName;
     }
+    /**
+     * Get the transport this port sends and receives bytes with.
+     *
+     * @return RCXTransport the transport, or null if the port has been closed.
+     */
+    public RCXTransport getTransport()
+    {
+        return myTransport;
+    }
     /**
      * Close interaction with this port.
      */
-    public synchronized void close()
+    public void close()
     {
-        if (myPort != null) {
-            myPort.close();
-            myPort = null;
+        myLock.lock();
+        try {
+            if (myTransport != null) {
+                myTransport.close();
+                myTransport = null;
+            }
+        } finally {
+            myLock.unlock();
         }
     }
     
+    /**
+     * Make sure the link to the RCX is awake.  Pings the RCX only if nothing has been 
+     * heard from it for the keep alive time, so calling this before each command costs 
+     * nothing on a busy link.
+     *
+     * @exception IOException thrown if the ping fails
+     */
     public void sync() throws IOException
     {
-        if (mySynched) return;
+        if (System.currentTimeMillis() - myLastContact < myKeepAliveTime) return;
         ping();
-        mySynched = true;
+    }
+    /**
+     * Set how long the link may be idle before sync() pings the RCX.
+     *
+     * @param millis the idle time in milliseconds.  0 pings before every command
+     * that syncs.
+     */
+    public void setKeepAliveTime(int millis)
+    {
+        myKeepAliveTime = millis;
+    }
+    
+    public int getKeepAliveTime()
+    {
+        return myKeepAliveTime;
     }
     
     public void ping() throws IOException
     {
-        sendData(RCXCmd.set(RCXCmd.Ping));
+        command(RCXFrame.PING);
     }
     
     public void deleteSubs() throws IOException
     {
-        sendData(RCXCmd.set(RCXCmd.DeleteSubs));
+        invalidateSelected();
+        command(RCXFrame.DELETE_SUBS);
     }
     public void deleteTasks() throws IOException
     {
-        sendData(RCXCmd.set(RCXCmd.DeleteTasks));
+        invalidateSelected();
+        command(RCXFrame.DELETE_TASKS);
     }
     public void selectProgram(byte prog) throws IOException
     {
-        sendData(RCXCmd.set(RCXCmd.SelectProgram, prog));
+        mySelectedProgram = -1;
+        command(RCXFrame.selectProgram(prog));
+        mySelectedProgram = prog;
     }
     public void playSound(byte sound) throws IOException
     {
-        ping();
-        sendData(RCXCmd.makePlaySound(sound));
+        sync();
+        command(RCXFrame.playSound(sound));
+    }
+    /**
+     * Prepare a program slot for download.  Stops all tasks, selects the program
+     * and deletes its tasks and subroutines, with a single sync beforehand.
+     *
+     * @param prog the program number (0..4)
+     * @exception IOException thrown if some problem communicating with the RCX.
+     */
+    public void prepareProgramSlot(byte prog) throws IOException
+    {
+        sync();
+        command(RCXFrame.STOP_ALL);
+        selectProgram(prog);
+        deleteTasks();
+        deleteSubs();
     }
     
     /**
@@ -192,15 +563,16 @@ public class RCXPort
     public void downloadProgram(RCXProgram aProg, boolean run) throws IOException
     {
         if (aProg == null) return;
-        sync();
-        RCXResult res = sendData(RCXCmd.set(RCXCmd.StopAll));
-        selectProgram((byte) aProg.getProgramNum());
-        deleteTasks();
-        deleteSubs();
+        int prog = aProg.getProgramNum();
+        prepareProgramSlot((byte) prog);
+        stage(prog, RCXDownloadListener.STAGE_PREPARED);
         // Download subroutines
         aProg.downloadSubroutines(this);
+        stage(prog, RCXDownloadListener.STAGE_SUBROUTINES);
         // Download tasks
         aProg.downloadTasks(this);
+        stage(prog, RCXDownloadListener.STAGE_TASKS);
+        setRecord(prog, new RCXDownloadRecord(aProg));
         // Play sound when done with download
         playSound(DOWNLOAD_SOUND);
         if (run) {
@@ -208,106 +580,461 @@ public class RCXPort
             startTask((byte) 0);
         }
     }
+    /**
+     * Download only the parts of a program that have changed since it was last
+     * downloaded to the same program slot through this port, and optionally run it.
+     * Tasks and subroutines whose bytes are the same as last time are not sent again;
+     * changed or new ones replace those on the RCX.  If nothing has been recorded for the
+     * slot, or the program has fewer tasks or subroutines than last time, the whole
+     * program is downloaded as by downloadProgram.
+     * <p>
+     * The record assumes that this port always talks to the same RCX, and that the RCX
+     * keeps its program memory.  Call invalidateDownloads() when the RCX is switched 
+     * off, has its firmware reloaded, or is programmed some other way.
+     *
+     * @param aProg the RCXProgram to download to the RCX.
+     * @param run if true, immediately run the downloaded program.  If false, just
+     * do the download
+     * @exception IOException thrown if some problem communicating with the RCX.  The
+     * record for the slot is dropped, so the next download is a full one.
+     */
+    public void downloadChanges(RCXProgram aProg, boolean run) throws IOException
+    {
+        if (aProg == null) return;
+        int prog = aProg.getProgramNum();
+        RCXDownloadRecord record = getRecord(prog);
+        if (record == null || !record.canUpdate(aProg)) {
+            downloadProgram(aProg, run);
+            return;
+        }
+        sync();
+        command(RCXFrame.STOP_ALL);
+        selectProgram((byte) prog);
+        stage(prog, RCXDownloadListener.STAGE_PREPARED);
+        for(int i=0; i < aProg.getSubCount(); i++) {
+            byte [] bytes = aProg.getSubBytes(i);
+            if (record.isSubChanged(i, bytes)) downloadFragment(false, (byte) i, bytes);
+        }
+        stage(prog, RCXDownloadListener.STAGE_SUBROUTINES);
+        for(int i=0; i < aProg.getTaskCount(); i++) {
+            byte [] bytes = aProg.getTaskBytes(i);
+            if (record.isTaskChanged(i, bytes)) downloadFragment(true, (byte) i, bytes);
+        }
+        stage(prog, RCXDownloadListener.STAGE_TASKS);
+        setRecord(prog, new RCXDownloadRecord(aProg));
+        // Play sound when done with download
+        playSound(DOWNLOAD_SOUND);
+        if (run) {
+            // start program
+            startTask((byte) 0);
+        }
+    }
+    /**
+     * Forget what has been downloaded to all program slots, so the next 
+     * downloadChanges for each slot downloads the whole program.
+     */
+    public void invalidateDownloads()
+    {
+        myLock.lock();
+        try {
+            for(int i=0; i < myRecords.length; i++) myRecords[i] = null;
+        } finally {
+            myLock.unlock();
+        }
+    }
+    /**
+     * Forget what has been downloaded to one program slot.
+     *
+     * @param prog the program number (0..4)
+     */
+    public void invalidateDownloads(byte prog)
+    {
+        myLock.lock();
+        try {
+            if (prog >= 0 && prog < myRecords.length) myRecords[prog] = null;
+        } finally {
+            myLock.unlock();
+        }
+    }
+    
+    private RCXDownloadRecord getRecord(int prog)
+    {
+        myLock.lock();
+        try {
+            return myRecords[prog];
+        } finally {
+            myLock.unlock();
+        }
+    }
+    
+    private void setRecord(int prog, RCXDownloadRecord record)
+    {
+        myLock.lock();
+        try {
+            myRecords[prog] = record;
+        } finally {
+            myLock.unlock();
+        }
+    }
+    
+    private void invalidateSelected()
+    {
+        if (mySelectedProgram < 0) invalidateDownloads();
+        else invalidateDownloads((byte) mySelectedProgram);
+    }
+    
+    /**
+     * Set the size of the datalog, clearing it.  The datalog takes 3 bytes of program
+     * memory for each entry.
+     *
+     * @param size the number of entries the datalog can hold.  0 removes the datalog.
+     * @exception IOException thrown if some problem communicating with the RCX, or
+     * there is not enough memory
+     */
+    public void setDatalog(int size) throws IOException
+    {
+        myLock.lock();
+        try {
+            sync();
+            byte [] send = RCXCmd.makeSetDatalog(size);
+            RCXResult res = sendDataInPlace(send, 0, send.length, true);
+            if (res.getResultLength() != 2) throw new IOException("Bad result for set datalog");
+            if (res.getResultByte(1) != 0) throw new IOException("Insufficient Memory");
+        } finally {
+            myLock.unlock();
+        }
+    }
+    /**
+     * Upload entries from the datalog.  Each entry is copied as 3 bytes: its type, 
+     * then its value low byte first.  Entry 0 gives the number of entries (counting
+     * itself) as its value.  RCXDatalogReader reads a whole datalog this way.
+     *
+     * @param first the index of the first entry
+     * @param count the number of entries (at most RCXDatalogReader.UPLOADCHUNK)
+     * @param dest the array to copy the entries into
+     * @param offset the index in dest to copy the first entry to
+     * @exception IOException thrown if some problem communicating with the RCX
+     */
+    public void uploadDatalog(int first, int count, byte [] dest, int offset) throws IOException
+    {
+        myLock.lock();
+        try {
+            byte [] send = RCXCmd.makeUploadDatalog(first, count);
+            RCXResult res = sendDataInPlace(send, 0, send.length, true);
+            if (res.getResultLength() != 1 + count*3) throw new IOException("Bad result for upload datalog");
+            for(int i=0; i < count*3; i++) dest[offset + i] = res.getResultByte(i+1);
+        } finally {
+            myLock.unlock();
+        }
+    }
+    /**
+     * Read a value with the Read command.  The reply is decoded while the port is
+     * held, so commands sent from other threads can't replace it.  Nothing is allocated.
+     *
+     * @param value the value to read, from RCXCmd.makeValue (e.g.
+     * makeValue(RCXCmd.SOURCE_SENSORVALUE, 0) for the value of sensor 1)
+     * @param retry if true, make as many attempts as the RCXRetryPolicy allows
+     * @return int the value, a signed 16 bit number
+     * @exception IOException thrown if some problem communicating with the RCX, or the
+     * reply is not a value
+     */
+    public int readValue(int value, boolean retry) throws IOException
+    {
+        myLock.lock();
+        try {
+            myCommand[0] = RCXCmd.Read;
+            myCommand[1] = RCXCmd.getValueType(value);
+            myCommand[2] = (byte) RCXCmd.getValueData(value);
+            RCXResult res = sendDataInPlace(myCommand, 0, 3, retry);
+            if (res.getResultLength() != 3) throw new IOException("Bad result for read");
+            return (short) ((res.getResultByte(1) & 0xff) | ((res.getResultByte(2) & 0xff) << 8));
+        } finally {
+            myLock.unlock();
+        }
+    }
     
     public void startTask(byte task) throws IOException
     {
-        ping();
-        sendData(RCXCmd.startTask(task));
+        sync();
+        command(RCXFrame.startTask(task));
     }
     
     public void stopTask(byte task) throws IOException
     {
-        ping();
-        sendData(RCXCmd.stopTask(task));
+        sync();
+        command(RCXFrame.stopTask(task));
     }
     
     public void downloadFragment(boolean type, byte num, byte [] data) throws IOException
     {
-        // Clear existing tasks
-        sync();
-        byte [] send = (type)?RCXCmd.makeBeginTask(num, data.length):RCXCmd.makeBeginSub(num, data.length);
-        RCXCmd.checkStartDownloadResult(type, sendData(send));
-        // Download data
-        download(data);
+        myLock.lock();
+        try {
+            downloadFragment(type, num, ByteBuffer.wrap(data));
+        } finally {
+            myLock.unlock();
+        }
+    }
+    /**
+     * Download a task or subroutine from a buffer, e.g. a slice of a memory mapped 
+     * RCXProgramImage, without copying it to an array first.
+     *
+     * @param type true for a task, false for a subroutine
+     * @param num the task or subroutine number
+     * @param data the byte codes, from the buffer's position to its limit.  The 
+     * position is not changed.
+     * @exception IOException thrown if some problem communicating with the RCX.
+     */
+    public void downloadFragment(boolean type, byte num, ByteBuffer data) throws IOException
+    {
+        myLock.lock();
+        try {
+            invalidateSelected();
+            sync();
+            int length = data.remaining();
+            byte [] send = (type)?RCXCmd.makeBeginTask(num, length):RCXCmd.makeBeginSub(num, length);
+            RCXCmd.checkStartDownloadResult(type, sendDataInPlace(send, 0, send.length, true));
+            // Download data
+            myDownloadChunk = download(data.duplicate(), myDownloadChunk, myAdaptiveDownload);
+        } finally {
+            myLock.unlock();
+        }
+    }
+    /**
+     * Download a program image to the slot it names, and optionally run it.  Tasks
+     * and subroutines are sent straight from the image's buffer.
+     *
+     * @param image the program image
+     * @param run if true, immediately run the downloaded program.  If false, just
+     * do the download
+     * @exception IOException thrown if some problem communicating with the RCX.
+     */
+    public void downloadImage(RCXProgramImage image, boolean run) throws IOException
+    {
+        byte prog = (byte) image.getProgramNum();
+        prepareProgramSlot(prog);
+        stage(prog, RCXDownloadListener.STAGE_PREPARED);
+        for(int i=0; i < image.getSubCount(); i++) downloadFragment(false, (byte) i, image.getSub(i));
+        stage(prog, RCXDownloadListener.STAGE_SUBROUTINES);
+        for(int i=0; i < image.getTaskCount(); i++) downloadFragment(true, (byte) i, image.getTask(i));
+        stage(prog, RCXDownloadListener.STAGE_TASKS);
+        // No record is kept, so the next downloadChanges is a full download
+        invalidateDownloads(prog);
+        playSound(DOWNLOAD_SOUND);
+        if (run) startTask((byte) 0);
+    }
+    
+    /**
+     * Replace the firmware on the RCX.  Deletes the running firmware, downloads the
+     * image in blocks of MAXDOWNLOADCHUNK bytes (the largest the ROM accepts), and
+     * unlocks it.  The ROM checks the image against the checksum sent when the
+     * download begins, and the checksum of each block as it arrives.
+     * <p>
+     * In normal mode, a block the ROM reports a checksum failure for is sent again
+     * in smaller blocks, and the firmware version is read back once the firmware is
+     * running.  Fast mode always sends full blocks and does not read the version back,
+     * which saves a little time on a good link.  (Other tools have a fast mode that 
+     * sends at 4800 baud without complement bytes; that needs the tower's baud rate 
+     * to change during the download, which an RCXTransport cannot do.)
+     * <p>
+     * All programs on the RCX are lost.  Downloading an image of 16K bytes takes
+     * about two and a half minutes.
+     *
+     * @param firmware the firmware image
+     * @param fast if true, use fast mode
+     * @return long the time taken in milliseconds
+     * @exception IOException thrown if some problem communicating with the RCX, or the
+     * ROM rejects the image
+     */
+    public long downloadFirmware(RCXFirmware firmware, boolean fast) throws IOException
+    {
+        myLock.lock();
+        try {
+            long start = System.currentTimeMillis();
+            invalidateDownloads();
+            mySelectedProgram = -1;
+            sync();
+            sendData(RCXCmd.makeDeleteFirmware());
+            RCXCmd.checkBeginFirmwareResult(sendData(RCXCmd.makeBeginFirmware(firmware.getEntry(), firmware.getChecksum())));
+            download(firmware.getImage(), MAXDOWNLOADCHUNK, !fast);
+            RCXCmd.checkUnlockFirmwareResult(sendData(RCXCmd.makeUnlockFirmware()));
+            if (!fast && RCXCmd.getVersion(sendData(RCXCmd.makeUnlock()), true) == 0) {
+                throw new IOException("Firmware not running");
+            }
+            return System.currentTimeMillis() - start;
+        } finally {
+            myLock.unlock();
+        }
+    }
+    /**
+     * Set the number of bytes sent in each Download block.  Larger blocks need fewer 
+     * round trips, so programs download faster on a clean link.  The default is
+     * MAXDOWNLOADCHUNK, with adaptive download on.
+     *
+     * @param size the block size.  Clipped to the range 1..MAXDOWNLOADCHUNK.
+     */
+    public void setDownloadChunk(int size)
+    {
+        myLock.lock();
+        try {
+            myDownloadChunk = Math.max(1, Math.min(size, MAXDOWNLOADCHUNK));
+        } finally {
+            myLock.unlock();
+        }
     }
     
-    private void download(byte [] data) throws IOException
+    public int getDownloadChunk()
+    {
+        myLock.lock();
+        try {
+            return myDownloadChunk;
+        } finally {
+            myLock.unlock();
+        }
+    }
+    /**
+     * Turn adaptive download block size on or off.  When on, the block size grows by
+     * DOWNLOADCHUNK after each block that transfers cleanly (up to MAXDOWNLOADCHUNK), and is
+     * halved when the RCX reports a block or firmware checksum failure, after which the
+     * failed block is sent again.  The size reached is kept for later downloads on this port.
+     * On by default, so a brick that can't take the default block size still gets the
+     * program.  Turn it off to always send blocks of the size set.
+     *
+     * @param adaptive true to adapt the block size
+     */
+    public void setAdaptiveDownload(boolean adaptive)
+    {
+        myLock.lock();
+        try {
+            myAdaptiveDownload = adaptive;
+        } finally {
+            myLock.unlock();
+        }
+    }
+    
+    public boolean isAdaptiveDownload()
+    {
+        myLock.lock();
+        try {
+            return myAdaptiveDownload;
+        } finally {
+            myLock.unlock();
+        }
+    }
+    
+    /**
+     * Send data in Download blocks.  In adaptive mode a block the RCX reports a
+     * checksum failure for is sent again in a smaller block, and the block size grows
+     * again after each good block.
+     *
+     * @param data the bytes to send
+     * @param chunk the block size to start with
+     * @param adaptive if true, adapt the block size
+     * @return int the block size at the end
+     */
+    private int download(byte [] data, int chunk, boolean adaptive) throws IOException
+    {
+        return download(ByteBuffer.wrap(data), chunk, adaptive);
+    }
+    /**
+     * Send the bytes from a buffer's position to its limit in Download blocks.  The
+     * position is moved.
+     */
+    private int download(ByteBuffer data, int chunk, boolean adaptive) throws IOException
     {
         int seq = 1;
-        int remain = data.length;
+        int remain = data.remaining();
         int n = 0;
-        int start = 0;
+        int start = data.position();
         while (remain > 0) {
-            if (remain <= DOWNLOADCHUNK) {
-                seq = 0;
-                n = remain;
-            } else {
-                n = DOWNLOADCHUNK;
+            n = Math.min(remain, chunk);
+            if (myCommand.length < n+6) myCommand = new byte[MAXDOWNLOADCHUNK+6];
+            // send data and check result.  Last block has sequence number 0.
+            data.position(start);
+            int len = RCXCmd.makeDownload((n == remain)?0:seq, data, n, myCommand);
+            byte status = RCXCmd.getTransferDataStatus(sendDataInPlace(myCommand, 0, len, true));
+            if (adaptive && chunk > 1 && status == RCXCmd.TRANSFER_BLOCKCHECKSUM) {
+                // Send the same data again in a smaller block.  From MAXDOWNLOADCHUNK
+                // this is at most 8 times before blocks are down to 1 byte.
+                myMetrics.blockFailure();
+                chunk = chunk/2;
+                continue;
             }
-            byte out[] = RCXCmd.copy(data, start, n);
-            // send data and check result
-            RCXCmd.checkTransferDataResult(sendData(RCXCmd.makeDownload(seq++, out)));
+            RCXCmd.checkTransferDataStatus(status);
+            if (adaptive) chunk = Math.min(chunk + DOWNLOADCHUNK, MAXDOWNLOADCHUNK);
+            seq++;
             remain -= n;
             start += n;
         }
+        return chunk;
     }
     /**
-     * Get byte codes from a BufferedReader.
+     * Get byte codes from a BufferedReader.  The reader is closed when done.
      *
      * @param r the BufferedReader to read from
      * @return the byte codes read from the reader.  Uses FILE_DELIMITERS to separate
      * byte codes, and FILE_RADIX to determine the radix used int he file
+     * @exception IOException thrown if the reader fails, or the byte codes are not valid.
+     * The message gives the line and column of the problem.
      */
     public byte [] getByteCodesFromReader(BufferedReader r) throws IOException
     {
-        return getByteCodesFromString(loadStringFromFile(r), FILE_DELIMITERS, FILE_RADIX);
+        try {
+            return new RCXByteCodeParser(FILE_DELIMITERS, FILE_RADIX).parse(r);
+        } finally {
+            r.close();
+        }
+    }
+    /**
+     * Get byte codes from a file.  The file is memory mapped and parsed in place.
+     *
+     * @param fileName the name of the file to read
+     * @return the byte codes read from the file.  Uses FILE_DELIMITERS to separate
+     * byte codes, and FILE_RADIX to determine the radix used int he file
+     * @exception IOException thrown if the file cannot be read, or the byte codes are not 
+     * valid.  The message gives the line and column of the problem.
+     */
+    public byte [] getByteCodesFromFile(String fileName) throws IOException
+    {
+        return new RCXByteCodeParser(FILE_DELIMITERS, FILE_RADIX).parseFile(fileName);
     }
     /**
      * Create byte array from string of byte codes.  Uses second parameter 
      * to parse byte codes from String, and uses the radix provided (e.g. hex=16).
      *
      * @param aString the string to read.  Must not be null.
-     * @param delimiters the delimiters used by the StringTokenizer to parse the given String.
+     * @param delimiters the characters that separate byte codes in the given String.
      * @param radix the radix of the numbers given in the first parameter.
      * @return byte [] that holds the byte codes parsed from the provided String.
+     * @exception NumberFormatException thrown if the String does not hold valid byte codes
      */
     public byte [] getByteCodesFromString(String aString, String delimiters, int radix)
     {
-        java.util.StringTokenizer st = new java.util.StringTokenizer(aString, delimiters);
-        byte bytes [] = new byte[st.countTokens()];
-        int count = 0;
-        while (st.hasMoreTokens()) {
-            String tok = st.nextToken();
-            bytes[count] = makeByte(tok, radix);
-            count++;
+        try {
+            return new RCXByteCodeParser(delimiters, radix).parse(aString);
+        } catch (IOException e) {
+            throw new NumberFormatException(e.getMessage());
         }
-        return bytes;
-    }
-    
-    private byte makeByte(String code, int radix)
-    {
-        return Integer.valueOf(code, radix).byteValue();
     }
     
     protected String loadStringFromFile(BufferedReader r) throws IOException
     {
         String line;
-        String res = new String("");
+        StringBuffer res = new StringBuffer();
         try {
             while ((line = r.readLine()) != null) {
-                res += line;
+                res.append(line);
             }
         } finally {
             r.close();
         }
-        return res;
+        return res.toString();
     }
     
     /**
      * Test program for Java code to communicate with the {@link <a href="http://www.legomindstorms.com">Lego Mindstorms RCX</a>}.
      * See the {@link <a href="http://www.slewis.com/rcxport">RCXPort home page</a>} for more information.
      * <p><p>
-     * Usage:  java rcxport.RCXPort -p &lt;comm port&gt; -n &lt;prog num&gt; [-f &lt;filename&gt;] | [-raw &lt;byte codes&gt;]
+     * Usage:  java rcxport.RCXPort -p &lt;comm port&gt; -n &lt;prog num&gt; [-f &lt;filename&gt; [-cache &lt;dir&gt;]] | [-raw &lt;byte codes&gt;] [-O] | [-fw &lt;filename&gt; [-fast]]
      * <p>
      * Options:
      * <p>
@@ -317,7 +1044,16 @@ public class RCXPort
      * <p>
      *   -f: file of byte codes to read.  In hex.
      * <p>
+     *   -cache: directory to keep programs built from files in, so a file is only
+     *   parsed once.
+     * <p>
      *   -raw: raw byte codes to send to RCX (e.g. 51 3).  In hex.
+     * <p>
+     *   -O: optimize the byte codes before downloading, and show how much smaller they are.
+     * <p>
+     *   -fw: firmware file to download (S-records, e.g. firm0309.lgo).
+     * <p>
+     *   -fast: download firmware in fast mode.
      * <p><p>
      * Either the -f param or the -raw param should be provided.  If the -f parameter is specified, 
      * the file is read for byte codes (in hex).  If -raw is specified, byte codes 
@@ -341,6 +1077,11 @@ public class RCXPort
         String commport = DEFAULT_PORT;
         int prognum = DEFAULT_PROGRAM;
         String fileName = null;
+        String firmwareName = null;
+        boolean fast = false;
+        boolean optimize = false;
+        boolean nio = false;
+        String cacheDir = null;
         String [] codes = null;
         
         byte [] data = null;
@@ -360,6 +1101,18 @@ public class RCXPort
                 } else if (args[i].equals("-f")) {
                     fileName = args[i+1];
                     i++;
+                } else if (args[i].equals("-cache")) {
+                    cacheDir = args[i+1];
+                    i++;
+                } else if (args[i].equals("-fw")) {
+                    firmwareName = args[i+1];
+                    i++;
+                } else if (args[i].equals("-fast")) {
+                    fast = true;
+                } else if (args[i].equals("-O")) {
+                    optimize = true;
+                } else if (args[i].equals("-nio")) {
+                    nio = true;
                 } else if (args[i].equals("-raw")) {
                     i++;
                     codes = new String[args.length - i];
@@ -379,37 +1132,63 @@ public class RCXPort
         }
         
         System.out.print("Opening port "+commport+"...");
-        aPort = new RCXPort(commport);
+        aPort = (nio)?new RCXPort(new RCXNioTransport(commport)):new RCXPort(commport);
         System.out.println("done.");
         
-        if (fileName != null) {
-            System.out.print("Reading byte codes from file: "+fileName+"...");
-            data = aPort.getByteCodesFromReader(new BufferedReader(new FileReader(fileName)));
-            System.out.println("Done.");
-        } else if (codes != null && codes.length > 0) {
-            System.out.print("Raw codes: ");
-            data= new byte[codes.length];
-            for(int j=0; j < codes.length; j++) {
-                data[j] = Integer.valueOf(codes[j], 16).byteValue();
-                System.out.print(codes[j]+" ");
+        if (firmwareName != null) {
+            RCXFirmware fw = RCXFirmware.fromFile(firmwareName);
+            System.out.print("Downloading firmware "+firmwareName+" ("+fw.getLength()+" bytes)...");
+            long millis = aPort.downloadFirmware(fw, fast);
+            System.out.println("done in "+(millis/1000.0)+" s ("+(fw.getLength()*1000L/Math.max(millis, 1))+" bytes/s).");
+            return;
+        }
+        RCXProgram prog;
+        if (fileName != null && cacheDir != null) {
+            RCXProgramCache cache = new RCXProgramCache(new File(cacheDir), RCXProgramCache.DEFAULTENTRIES);
+            System.out.print("Loading program from file: "+fileName+"...");
+            prog = cache.load(fileName, (byte) (prognum-1), optimize);
+            System.out.println((cache.getHits() > 0)?"found in cache.":"built and cached.");
+        } else {
+            if (fileName != null) {
+                System.out.print("Reading byte codes from file: "+fileName+"...");
+                data = aPort.getByteCodesFromFile(fileName);
+                System.out.println("Done.");
+            } else if (codes != null && codes.length > 0) {
+                System.out.print("Raw codes: ");
+                data= new byte[codes.length];
+                for(int j=0; j < codes.length; j++) {
+                    data[j] = Integer.valueOf(codes[j], 16).byteValue();
+                    System.out.print(codes[j]+" ");
+                }
+                System.out.println();
+            } else throw new Exception("Must specify either -f or -raw");
+            
+            // Test by creating and downloading an RCXProgram instance
+            prog = new RCXProgram((byte) (prognum-1), data);
+            if (optimize) {
+                RCXOptimizer opt = new RCXOptimizer();
+                prog = opt.optimize(prog);
+                System.out.println("Optimized: "+opt);
             }
-            System.out.println();
-        } else throw new Exception("Must specify either -f or -raw");
-        
-        // Test by creating and downloading an RCXProgram instance
+        }
         System.out.print("Downloading program "+prognum+" to RCX...");
-        aPort.downloadProgram(new RCXProgram((byte) (prognum-1), data), false);
+        aPort.downloadProgram(prog, false);
         System.out.println("done.");
     }
     
     static void usage()
     {
-        System.out.println("Usage: java rcxport.RCXPort -p <comm port> -n <prog num>; [-f <filename>] | [-raw <byte codes>]");
+        System.out.println("Usage: java rcxport.RCXPort -p <comm port> [-nio] -n <prog num>; [-f <filename> [-cache <dir>]] | [-raw <byte codes>] [-O] | [-fw <filename> [-fast]]");
         System.out.println("Options:");
         System.out.println("    -p: serial port (e.g. COM1).  Defaults to COM1.");
+        System.out.println("    -nio: open the port as a Unix device (e.g. /dev/ttyUSB0) without the Java Comm API.");
         System.out.println("    -n: RCX program number (in range 1-5 inclusive).  Defaults to 5.");
         System.out.println("    -f: file of byte codes to read.  In hex.");
+        System.out.println("    -cache: directory to keep programs built from files in.");
         System.out.println("    -raw: raw byte codes to send to RCX (e.g. 51 3).  In hex.");
+        System.out.println("    -O: optimize the byte codes before downloading.");
+        System.out.println("    -fw: firmware file to download (S-records, e.g. firm0309.lgo).");
+        System.out.println("    -fast: download firmware in fast mode.");
     }
 }
     
\ No newline at end of file
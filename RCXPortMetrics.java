@@ -0,0 +1,242 @@
+/**
+ * @(#) RCXPortMetrics.java 0.1 98/03/12
+ *
+ *  Copyright (C) 1998, Scott B. Lewis.  All Rights Reserved.
+ *
+ *  License to copy, use, and modify this software is granted provided that
+ *  this notice is retained in any copies of any part of this software.
+ *
+ *  The author makes no guarantee that this software will compile or
+ *  function correctly.  Also, if you use this software, you do so at your
+ *  own risk.
+ *
+ *  Scott B. Lewis.  slewis@teleport.com  http://www.slewis.com
+ */
+package rcxport;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters for the link of one RCXPort, kept per opcode (both toggle bit variants
+ * counted together): commands, failures, retries, echo/checksum failures and
+ * timeouts, bytes sent and received, and a histogram of command latency.
+ * <p>
+ * Counters are updated with single atomic adds by the thread sending each command,
+ * so they cost little enough to leave on, and may be read from any thread.  They
+ * can be exported with register(), which makes them available through JMX.
+ */
+public class RCXPortMetrics implements RCXPortMetricsMBean
+{
+    public static final int OPCODES = 256;
+    // Latency histogram bucket i counts latencies under 2^i microseconds
+    public static final int BUCKETS = 26;
+    public static final String DOMAIN = "rcxport";
+
+    // Counters kept for each opcode
+    private static final int COMMANDS = 0;
+    private static final int FAILURES = 1;
+    private static final int RETRIES = 2;
+    private static final int ECHOFAILURES = 3;
+    private static final int CHECKSUMFAILURES = 4;
+    private static final int TIMEOUTS = 5;
+    private static final int BLOCKFAILURES = 6;
+    private static final int BYTESSENT = 7;
+    private static final int BYTESRECEIVED = 8;
+    private static final int LATENCY = 9;
+    private static final int COUNTERS = 10;
+
+    private AtomicLongArray myCounters = new AtomicLongArray(OPCODES*COUNTERS);
+    private AtomicLongArray myHistogram = new AtomicLongArray(OPCODES*BUCKETS);
+
+    protected RCXPortMetrics()
+    {
+    }
+    /**
+     * Record one attempt to send a command.
+     *
+     * @param op the opcode
+     * @param sent the number of bytes sent
+     * @param received the number of bytes received, including the echo
+     * @param error the reason the attempt failed, or RCXResult.ERROR_NONE
+     */
+    protected void attempt(byte op, int sent, int received, int error)
+    {
+        int base = index(op)*COUNTERS;
+        myCounters.addAndGet(base + BYTESSENT, sent);
+        myCounters.addAndGet(base + BYTESRECEIVED, received);
+        switch (error) {
+            case RCXResult.ERROR_NONE:
+            case RCXResult.ERROR_IO:
+                break;
+            case RCXResult.ERROR_TIMEOUT:
+                myCounters.incrementAndGet(base + TIMEOUTS);
+                break;
+            case RCXResult.ERROR_ECHO:
+                myCounters.incrementAndGet(base + ECHOFAILURES);
+                break;
+            default:
+                myCounters.incrementAndGet(base + CHECKSUMFAILURES);
+                break;
+        }
+    }
+    /**
+     * Record a command that has succeeded or finally failed.
+     *
+     * @param op the opcode
+     * @param nanos the time taken for all attempts
+     * @param attempts the number of attempts made
+     * @param success true if the command succeeded
+     */
+    protected void completed(byte op, long nanos, int attempts, boolean success)
+    {
+        int i = index(op);
+        int base = i*COUNTERS;
+        myCounters.incrementAndGet(base + COMMANDS);
+        if (attempts > 1) myCounters.addAndGet(base + RETRIES, attempts - 1);
+        if (!success) {
+            myCounters.incrementAndGet(base + FAILURES);
+            return;
+        }
+        long micros = nanos / 1000;
+        myCounters.addAndGet(base + LATENCY, micros);
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        myHistogram.incrementAndGet(i*BUCKETS + Math.min(bucket, BUCKETS-1));
+    }
+    /**
+     * Record a Download block that the RCX reported a checksum failure for.
+     */
+    protected void blockFailure()
+    {
+        myCounters.incrementAndGet(index(RCXCmd.Download)*COUNTERS + BLOCKFAILURES);
+    }
+
+    public long getCommands()
+    {
+        return getTotal(COMMANDS);
+    }
+
+    public long getFailures()
+    {
+        return getTotal(FAILURES);
+    }
+
+    public long getRetries()
+    {
+        return getTotal(RETRIES);
+    }
+
+    public long getEchoFailures()
+    {
+        return getTotal(ECHOFAILURES);
+    }
+
+    public long getChecksumFailures()
+    {
+        return getTotal(CHECKSUMFAILURES);
+    }
+
+    public long getTimeouts()
+    {
+        return getTotal(TIMEOUTS);
+    }
+
+    public long getBlockFailures()
+    {
+        return getTotal(BLOCKFAILURES);
+    }
+
+    public long getBytesSent()
+    {
+        return getTotal(BYTESSENT);
+    }
+
+    public long getBytesReceived()
+    {
+        return getTotal(BYTESRECEIVED);
+    }
+
+    public long getMeanLatencyMicros()
+    {
+        long n = getTotal(COMMANDS) - getTotal(FAILURES);
+        return (n == 0)?0:getTotal(LATENCY)/n;
+    }
+
+    public long getCommands(int op)
+    {
+        return get(op, COMMANDS);
+    }
+
+    public long getRetries(int op)
+    {
+        return get(op, RETRIES);
+    }
+
+    public long getMeanLatencyMicros(int op)
+    {
+        long n = get(op, COMMANDS) - get(op, FAILURES);
+        return (n == 0)?0:get(op, LATENCY)/n;
+    }
+    /**
+     * Get a latency percentile for an opcode, from the histogram.
+     *
+     * @param op the opcode
+     * @param percentile the percentile wanted (0..100)
+     * @return long the upper bound of the histogram bucket holding the percentile, in
+     * microseconds, or 0 if no commands have succeeded
+     */
+    public long getLatencyPercentileMicros(int op, double percentile)
+    {
+        int base = index((byte) op)*BUCKETS;
+        long total = 0;
+        for(int i=0; i < BUCKETS; i++) total += myHistogram.get(base + i);
+        if (total == 0) return 0;
+        long wanted = (long) Math.ceil(total * percentile / 100.0);
+        long count = 0;
+        for(int i=0; i < BUCKETS; i++) {
+            count += myHistogram.get(base + i);
+            if (count >= wanted) return 1L << i;
+        }
+        return 1L << (BUCKETS-1);
+    }
+    /**
+     * Set all counters back to zero.
+     */
+    public void reset()
+    {
+        for(int i=0; i < myCounters.length(); i++) myCounters.set(i, 0);
+        for(int i=0; i < myHistogram.length(); i++) myHistogram.set(i, 0);
+    }
+    /**
+     * Register these metrics with the platform MBean server.
+     *
+     * @param name the name to register under, usually the port name
+     * @return ObjectName the name registered
+     * @exception JMException thrown if the metrics cannot be registered
+     */
+    public ObjectName register(String name) throws JMException
+    {
+        ObjectName on = new ObjectName(DOMAIN+":type=RCXPortMetrics,name="+ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+        return on;
+    }
+
+    private long get(int op, int counter)
+    {
+        return myCounters.get(index((byte) op)*COUNTERS + counter);
+    }
+
+    private long getTotal(int counter)
+    {
+        long total = 0;
+        for(int i=0; i < OPCODES; i++) total += myCounters.get(i*COUNTERS + counter);
+        return total;
+    }
+
+    private static int index(byte op)
+    {
+        return op & 0xf7;
+    }
+}
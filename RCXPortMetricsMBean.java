@@ -0,0 +1,40 @@
+/**
+ * @(#) RCXPortMetricsMBean.java 0.1 98/03/12
+ *
+ *  Copyright (C) 1998, Scott B. Lewis.  All Rights Reserved.
+ *
+ *  License to copy, use, and modify this software is granted provided that
+ *  this notice is retained in any copies of any part of this software.
+ *
+ *  The author makes no guarantee that this software will compile or
+ *  function correctly.  Also, if you use this software, you do so at your
+ *  own risk.
+ *
+ *  Scott B. Lewis.  slewis@teleport.com  http://www.slewis.com
+ */
+package rcxport;
+
+/**
+ * JMX management interface of RCXPortMetrics.  Totals are for all opcodes; the
+ * methods taking an opcode give the figures for one.
+ */
+public interface RCXPortMetricsMBean
+{
+    public long getCommands();
+    public long getFailures();
+    public long getRetries();
+    public long getEchoFailures();
+    public long getChecksumFailures();
+    public long getTimeouts();
+    public long getBlockFailures();
+    public long getBytesSent();
+    public long getBytesReceived();
+    public long getMeanLatencyMicros();
+
+    public long getCommands(int op);
+    public long getRetries(int op);
+    public long getMeanLatencyMicros(int op);
+    public long getLatencyPercentileMicros(int op, double percentile);
+
+    public void reset();
+}
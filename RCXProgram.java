@@ -29,6 +29,7 @@ import java.io.IOException;
 public class RCXProgram implements Serializable
 {
     public static final int MAX_TASKS = 10;
+    public static final int MAX_SUBS = 8;
     public static final int MAX_PROGS = 5;
 
     // Set of tasks
@@ -109,6 +110,26 @@ public class RCXProgram implements Serializable
         return myProgNum;
     }
 
+    protected int getTaskCount()
+    {
+        return (myTasks == null)?0:myTasks.size();
+    }
+
+    protected byte [] getTaskBytes(int index)
+    {
+        return ((RCXTask) myTasks.elementAt(index)).getBytes();
+    }
+
+    protected int getSubCount()
+    {
+        return (mySubs == null)?0:mySubs.size();
+    }
+
+    protected byte [] getSubBytes(int index)
+    {
+        return ((RCXSub) mySubs.elementAt(index)).getBytes();
+    }
+
     private void writeBytes(RCXPort aPort, boolean task, byte index, byte [] bytes)
         throws IOException
     {
@@ -0,0 +1,260 @@
+/**
+ * @(#) RCXProgramCache.java 0.1 98/03/12
+ *
+ *  Copyright (C) 1998, Scott B. Lewis.  All Rights Reserved.
+ *
+ *  License to copy, use, and modify this software is granted provided that
+ *  this notice is retained in any copies of any part of this software.
+ *
+ *  The author makes no guarantee that this software will compile or
+ *  function correctly.  Also, if you use this software, you do so at your
+ *  own risk.
+ *
+ *  Scott B. Lewis.  slewis@teleport.com  http://www.slewis.com
+ */
+package rcxport;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of programs built from source files, so a file already built is not parsed
+ * (or assembled, or optimized) again.  Programs are found by the SHA-1 hash of the
+ * source, so an edited file is always built again, and a file that has been moved
+ * or copied is not.
+ * <p>
+ * The most recently used programs are kept in memory, up to a set number.  If a
+ * directory is given, each program built is also written there in a compact binary
+ * form, so later runs (e.g. of RCXPort.main with -cache) find it without building it.
+ * Files are RCXProgramImages, which are memory mapped and checked when read.
+ * <p>
+ * Programs are cached without their number, which is given when they are got.
+ */
+public class RCXProgramCache
+{
+    public static final int DEFAULTENTRIES = 64;
+    public static final String FILEEXTENSION = RCXProgramImage.FILEEXTENSION;
+    // Source files with this extension are assembled with RCXAssembler.  Others are
+    // read as byte code listings.
+    public static final String ASSEMBLEREXTENSION = ".asm";
+
+    private File myDirectory;
+    private int myMaxEntries;
+    private LinkedHashMap<String, Entry> myEntries;
+    private int myHits;
+    private int myMisses;
+
+    /**
+     * Create a cache held in memory only.
+     */
+    public RCXProgramCache()
+    {
+        this(null, DEFAULTENTRIES);
+    }
+    /**
+     * Create a cache.
+     *
+     * @param directory the directory to keep built programs in, or null to keep them
+     * in memory only.  It is created if need be.
+     * @param maxEntries the most programs to keep in memory
+     */
+    public RCXProgramCache(File directory, int maxEntries)
+    {
+        myDirectory = directory;
+        myMaxEntries = maxEntries;
+        // In access order, so the eldest entry is the least recently used
+        myEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest)
+            {
+                return size() > myMaxEntries;
+            }
+        };
+    }
+    /**
+     * Get the program built from a source file, building it if it is not cached.
+     *
+     * @param fileName the source file, a byte code listing or (with
+     * ASSEMBLEREXTENSION) assembler source
+     * @param prog the program number (0..4)
+     * @param optimize true to optimize the program with RCXOptimizer when built
+     * @return RCXProgram the program
+     * @exception IOException thrown if the file can't be read or built
+     */
+    public RCXProgram load(String fileName, byte prog, boolean optimize) throws IOException
+    {
+        byte [] source = readFile(new File(fileName));
+        boolean assemble = fileName.toLowerCase().endsWith(ASSEMBLEREXTENSION);
+        // How the program is built is part of the key
+        String key = getKey(source, (assemble?"a":"l")+(optimize?"o":""));
+        RCXProgram res = get(key, prog);
+        if (res != null) return res;
+        String text = new String(source, "ISO-8859-1");
+        if (assemble) {
+            res = new RCXAssembler().assemble(text, prog);
+        } else {
+            res = new RCXProgram(prog, new RCXByteCodeParser(RCXPort.FILE_DELIMITERS, RCXPort.FILE_RADIX).parse(text));
+        }
+        if (optimize) res = new RCXOptimizer().optimize(res);
+        put(key, res);
+        return res;
+    }
+    /**
+     * Get a cached program.
+     *
+     * @param key the key it was put with
+     * @param prog the program number to give it (0..4)
+     * @return RCXProgram the program, or null if not cached.  A cache file that can't
+     * be read, or is not a valid image, is deleted and counted as a miss.
+     */
+    public synchronized RCXProgram get(String key, byte prog)
+    {
+        Entry e = myEntries.get(key);
+        if (e == null && myDirectory != null) {
+            File f = getFile(key);
+            if (f.exists()) {
+                try {
+                    e = new Entry(RCXProgramImage.map(f).toProgram());
+                    myEntries.put(key, e);
+                } catch (IOException x) {
+                    // Cut short, corrupt or from another version.  Built and written
+                    // again by the caller.
+                    f.delete();
+                }
+            }
+        }
+        if (e == null) {
+            myMisses++;
+            return null;
+        }
+        myHits++;
+        return e.toProgram(prog);
+    }
+    /**
+     * Cache a program.
+     *
+     * @param key the key to find it by, e.g. from getKey()
+     * @param program the program
+     * @exception IOException thrown if the cache file can't be written
+     */
+    public synchronized void put(String key, RCXProgram program) throws IOException
+    {
+        Entry e = new Entry(program);
+        myEntries.put(key, e);
+        if (myDirectory != null) writeImage(getFile(key), program, key);
+    }
+    /**
+     * Make a key for source.
+     *
+     * @param source the source bytes
+     * @param kind how the source is built, so the same source built in different ways
+     * gets different keys
+     * @return String the SHA-1 hash of the source and kind, in hex
+     */
+    public static String getKey(byte [] source, String kind)
+    {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform has SHA-1
+            throw new IllegalStateException(e.getMessage());
+        }
+        md.update(source);
+        for(int i=0; i < kind.length(); i++) md.update((byte) kind.charAt(i));
+        byte [] hash = md.digest();
+        StringBuilder res = new StringBuilder(hash.length*2);
+        for(int i=0; i < hash.length; i++) {
+            res.append(Character.forDigit((hash[i] >> 4) & 0xf, 16));
+            res.append(Character.forDigit(hash[i] & 0xf, 16));
+        }
+        return res.toString();
+    }
+    /**
+     * Get the number of programs found by get(), in memory or on disk.
+     */
+    public synchronized int getHits()
+    {
+        return myHits;
+    }
+    /**
+     * Get the number of programs not found by get().
+     */
+    public synchronized int getMisses()
+    {
+        return myMisses;
+    }
+    /**
+     * Get the number of programs held in memory.
+     */
+    public synchronized int size()
+    {
+        return myEntries.size();
+    }
+
+    private File getFile(String key)
+    {
+        return new File(myDirectory, key + FILEEXTENSION);
+    }
+
+    private static byte [] readFile(File f) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new FileInputStream(f));
+        try {
+            byte [] res = new byte[(int) f.length()];
+            in.readFully(res);
+            return res;
+        } finally {
+            in.close();
+        }
+    }
+    /**
+     * Write an image to a temporary file and rename it, so other processes never see
+     * a file half written.
+     */
+    private void writeImage(File f, RCXProgram program, String key) throws IOException
+    {
+        if (!myDirectory.isDirectory() && !myDirectory.mkdirs()) {
+            throw new IOException("Can't create program cache directory "+myDirectory);
+        }
+        File tmp = File.createTempFile("rcx", ".tmp", myDirectory);
+        try {
+            RCXProgramImage.write(program, key, tmp);
+            // Another process may have written the same program
+            if (!tmp.renameTo(f) && !(f.delete() && tmp.renameTo(f)) && !f.exists()) {
+                throw new IOException("Can't write program cache file "+f);
+            }
+        } finally {
+            tmp.delete();
+        }
+    }
+    /**
+     * Byte codes of the tasks and subs of a program.
+     */
+    static class Entry
+    {
+        byte [][] myTasks;
+        byte [][] mySubs;
+
+        Entry(RCXProgram program)
+        {
+            myTasks = new byte[program.getTaskCount()][];
+            for(int i=0; i < myTasks.length; i++) myTasks[i] = program.getTaskBytes(i);
+            mySubs = new byte[program.getSubCount()][];
+            for(int i=0; i < mySubs.length; i++) mySubs[i] = program.getSubBytes(i);
+        }
+
+        RCXProgram toProgram(byte prog)
+        {
+            RCXProgram res = new RCXProgram(prog);
+            for(int i=0; i < myTasks.length; i++) res.addTask(new RCXTask(myTasks[i]));
+            for(int i=0; i < mySubs.length; i++) res.addSub(new RCXSub(mySubs[i]));
+            return res;
+        }
+    }
+}
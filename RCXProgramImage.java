@@ -0,0 +1,313 @@
+/**
+ * @(#) RCXProgramImage.java 0.1 98/03/12
+ *
+ *  Copyright (C) 1998, Scott B. Lewis.  All Rights Reserved.
+ *
+ *  License to copy, use, and modify this software is granted provided that
+ *  this notice is retained in any copies of any part of this software.
+ *
+ *  The author makes no guarantee that this software will compile or
+ *  function correctly.  Also, if you use this software, you do so at your
+ *  own risk.
+ *
+ *  Scott B. Lewis.  slewis@teleport.com  http://www.slewis.com
+ */
+package rcxport;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * A program in a compact binary form, for storing programs in files that load
+ * quickly.  Files are memory mapped, and each task and subroutine is a slice of the
+ * mapped buffer, which RCXPort.downloadImage() sends without copying.
+ * <p>
+ * An image is, in big endian order:
+ * <pre>
+ *     int    MAGIC ("RCXI")
+ *     byte   VERSION
+ *     byte   program slot (0..4)
+ *     byte   number of tasks
+ *     byte   number of subroutines
+ *     short  length of metadata
+ *     short  0 (reserved)
+ *     for each task then each subroutine:
+ *         int    offset of byte codes from the start of the image
+ *         short  length of byte codes
+ *         int    CRC32 of byte codes
+ *     metadata (UTF-8 text, e.g. the source the program was built from)
+ *     byte codes
+ * </pre>
+ * The header and table are checked when an image is loaded, and the CRCs of the
+ * byte codes if asked for.
+ */
+public class RCXProgramImage
+{
+    public static final int MAGIC = 0x52435849;   // "RCXI"
+    public static final int VERSION = 1;
+    public static final int HEADERSIZE = 12;
+    public static final int ENTRYSIZE = 10;
+    public static final String FILEEXTENSION = ".rcxi";
+
+    private ByteBuffer myBuffer;
+    private int myProgram;
+    private int myTasks;
+    private int mySubs;
+
+    private RCXProgramImage(ByteBuffer buffer) throws IOException
+    {
+        myBuffer = buffer;
+        if (buffer.remaining() < HEADERSIZE || buffer.getInt(0) != MAGIC) throw new IOException("Not a program image");
+        int version = buffer.get(4) & 0xff;
+        if (version != VERSION) throw new IOException("Program image version "+version+" not supported");
+        myProgram = buffer.get(5) & 0xff;
+        myTasks = buffer.get(6) & 0xff;
+        mySubs = buffer.get(7) & 0xff;
+        if (myProgram >= RCXProgram.MAX_PROGS || myTasks > RCXProgram.MAX_TASKS || mySubs > RCXProgram.MAX_SUBS) {
+            throw new IOException("Bad program image header");
+        }
+        int table = HEADERSIZE + (myTasks + mySubs)*ENTRYSIZE;
+        if (buffer.limit() < table + getMetadataLength()) throw new IOException("Program image cut short");
+        for(int i=0; i < myTasks + mySubs; i++) {
+            int entry = HEADERSIZE + i*ENTRYSIZE;
+            int offset = buffer.getInt(entry);
+            int length = buffer.getShort(entry + 4) & 0xffff;
+            if (offset < table || offset + length > buffer.limit()) throw new IOException("Program image cut short");
+        }
+    }
+    /**
+     * Make an image from a buffer holding one.  The buffer is used, not copied.
+     *
+     * @param buffer the buffer, with the image from index 0 to its limit
+     * @return RCXProgramImage the image
+     * @exception IOException thrown if the buffer does not hold a valid image
+     */
+    public static RCXProgramImage wrap(ByteBuffer buffer) throws IOException
+    {
+        return new RCXProgramImage(buffer);
+    }
+    /**
+     * Load an image from a file by memory mapping it, checking the CRCs of its byte
+     * codes.
+     *
+     * @param file the file
+     * @return RCXProgramImage the image
+     * @exception IOException thrown if the file can't be read or is not a valid image
+     */
+    public static RCXProgramImage map(File file) throws IOException
+    {
+        return map(file, true);
+    }
+    /**
+     * Load an image from a file by memory mapping it.
+     *
+     * @param file the file
+     * @param verify if true, check the CRCs of the byte codes
+     * @return RCXProgramImage the image
+     * @exception IOException thrown if the file can't be read or is not a valid image
+     */
+    public static RCXProgramImage map(File file, boolean verify) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            // The mapping stays valid once the file is closed
+            FileChannel fc = raf.getChannel();
+            RCXProgramImage res = new RCXProgramImage(fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size()));
+            if (verify) res.verify();
+            return res;
+        } catch (IOException e) {
+            throw new IOException(file+": "+e.getMessage());
+        } finally {
+            raf.close();
+        }
+    }
+    /**
+     * Make an image of a program.
+     *
+     * @param prog the program
+     * @param metadata text to keep with the program, or null
+     * @return ByteBuffer the image, from 0 to its limit
+     */
+    public static ByteBuffer toBuffer(RCXProgram prog, String metadata)
+    {
+        int tasks = prog.getTaskCount();
+        int subs = prog.getSubCount();
+        byte [] meta = getBytes((metadata == null)?"":metadata);
+        int size = HEADERSIZE + (tasks + subs)*ENTRYSIZE + meta.length;
+        for(int i=0; i < tasks; i++) size += prog.getTaskBytes(i).length;
+        for(int i=0; i < subs; i++) size += prog.getSubBytes(i).length;
+        ByteBuffer res = ByteBuffer.allocate(size);
+        res.putInt(MAGIC);
+        res.put((byte) VERSION);
+        res.put((byte) prog.getProgramNum());
+        res.put((byte) tasks);
+        res.put((byte) subs);
+        res.putShort((short) meta.length);
+        res.putShort((short) 0);
+        int offset = HEADERSIZE + (tasks + subs)*ENTRYSIZE + meta.length;
+        CRC32 crc = new CRC32();
+        for(int i=0; i < tasks + subs; i++) {
+            byte [] bytes = (i < tasks)?prog.getTaskBytes(i):prog.getSubBytes(i - tasks);
+            crc.reset();
+            crc.update(bytes, 0, bytes.length);
+            res.putInt(offset);
+            res.putShort((short) bytes.length);
+            res.putInt((int) crc.getValue());
+            offset += bytes.length;
+        }
+        res.put(meta);
+        for(int i=0; i < tasks; i++) res.put(prog.getTaskBytes(i));
+        for(int i=0; i < subs; i++) res.put(prog.getSubBytes(i));
+        res.flip();
+        return res;
+    }
+    /**
+     * Write an image of a program to a file.
+     *
+     * @param prog the program
+     * @param metadata text to keep with the program, or null
+     * @param file the file to write
+     * @exception IOException thrown if the file can't be written
+     */
+    public static void write(RCXProgram prog, String metadata, File file) throws IOException
+    {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.getChannel().write(toBuffer(prog, metadata));
+        } finally {
+            out.close();
+        }
+    }
+    /**
+     * Check the CRCs of the byte codes.
+     *
+     * @exception IOException thrown if a CRC does not match
+     */
+    public void verify() throws IOException
+    {
+        CRC32 crc = new CRC32();
+        for(int i=0; i < myTasks + mySubs; i++) {
+            crc.reset();
+            crc.update(getFragment(i));
+            if ((int) crc.getValue() != myBuffer.getInt(HEADERSIZE + i*ENTRYSIZE + 6)) {
+                throw new IOException("Bad CRC for "+((i < myTasks)?"task "+i:"sub "+(i - myTasks)));
+            }
+        }
+    }
+
+    public int getProgramNum()
+    {
+        return myProgram;
+    }
+
+    public int getTaskCount()
+    {
+        return myTasks;
+    }
+
+    public int getSubCount()
+    {
+        return mySubs;
+    }
+    /**
+     * Get the byte codes of a task.
+     *
+     * @param index the task number
+     * @return ByteBuffer a read only slice of the image holding the byte codes
+     */
+    public ByteBuffer getTask(int index)
+    {
+        if (index < 0 || index >= myTasks) throw new IndexOutOfBoundsException("No task "+index);
+        return getFragment(index);
+    }
+    /**
+     * Get the byte codes of a subroutine.
+     *
+     * @param index the subroutine number
+     * @return ByteBuffer a read only slice of the image holding the byte codes
+     */
+    public ByteBuffer getSub(int index)
+    {
+        if (index < 0 || index >= mySubs) throw new IndexOutOfBoundsException("No sub "+index);
+        return getFragment(myTasks + index);
+    }
+    /**
+     * Get the text kept with the program.
+     *
+     * @return String the metadata, or "" if none
+     */
+    public String getMetadata()
+    {
+        byte [] meta = new byte[getMetadataLength()];
+        ByteBuffer b = myBuffer.duplicate();
+        b.position(HEADERSIZE + (myTasks + mySubs)*ENTRYSIZE);
+        b.get(meta);
+        try {
+            return new String(meta, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // Every Java platform has UTF-8
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+    /**
+     * Make a program from the image.  The byte codes are copied.
+     *
+     * @param prog the program number (0..4)
+     * @return RCXProgram the program
+     */
+    public RCXProgram toProgram(byte prog)
+    {
+        RCXProgram res = new RCXProgram(prog);
+        for(int i=0; i < myTasks; i++) res.addTask(new RCXTask(toBytes(getTask(i))));
+        for(int i=0; i < mySubs; i++) res.addSub(new RCXSub(toBytes(getSub(i))));
+        return res;
+    }
+
+    public RCXProgram toProgram()
+    {
+        return toProgram((byte) myProgram);
+    }
+
+    public String toString()
+    {
+        return "RCXProgramImage[program "+myProgram+", "+myTasks+" tasks, "+mySubs+" subs]";
+    }
+
+    private ByteBuffer getFragment(int i)
+    {
+        int entry = HEADERSIZE + i*ENTRYSIZE;
+        int offset = myBuffer.getInt(entry);
+        int length = myBuffer.getShort(entry + 4) & 0xffff;
+        ByteBuffer b = myBuffer.asReadOnlyBuffer();
+        b.position(offset);
+        b.limit(offset + length);
+        return b.slice();
+    }
+
+    private int getMetadataLength()
+    {
+        return myBuffer.getShort(8) & 0xffff;
+    }
+
+    private static byte [] toBytes(ByteBuffer b)
+    {
+        byte [] res = new byte[b.remaining()];
+        b.get(res);
+        return res;
+    }
+
+    private static byte [] getBytes(String s)
+    {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+}
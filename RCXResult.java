@@ -20,9 +20,15 @@ import java.io.InputStream;
 /**
  * Holds result information in response to a an RCXPacket.  
  * This class gets
- * the raw bytes from the InputStream provided in the constructor, reads 
- * them in and checks them as dictated by the 
+ * the raw bytes from the InputStream provided to read(), and checks 
+ * them as they arrive as dictated by the 
  * {@link <a href="http://www.crynwr.com/lego-robotics/">RCX Internals</a>} web page.
+ * <p>
+ * An RCXPort owns a single RCXResult and reuses it for every command.  The result
+ * bytes are read in place from the receive buffer with getResultLength() and 
+ * getResultByte(), so that result is only valid while the port is held (see
+ * RCXPort.sendDataInPlace).  RCXPort.sendData returns a copy instead, and
+ * getResult() and getFullPacket() return copies that stay valid.
  *
  * @author Scott B. Lewis, slewis@teleport.com
  */
@@ -30,82 +36,190 @@ class RCXResult
 {
     public static final int BUFFSIZE = 4096;
     
-    private byte [] myBuffer = new byte[BUFFSIZE];
+    // Reasons a read can fail, as given by getError()
+    public static final int ERROR_NONE = 0;
+    public static final int ERROR_TIMEOUT = 1;
+    public static final int ERROR_ECHO = 2;
+    public static final int ERROR_HEADER = 3;
+    public static final int ERROR_CORRUPT = 4;
+    public static final int ERROR_CHECKSUM = 5;
+    // The packet could not be sent
+    public static final int ERROR_IO = 6;
+    
+    private byte [] myBuffer;
     private int myNumRead;
-    private byte [] myReturnBuffer = new byte[BUFFSIZE];
-    private int myReturnBufferLength;
+    // Position in myBuffer of first result byte.  Result bytes are followed by their 
+    // complements, so they are every other byte from here.
+    private int myResultStart;
+    private int myResultLength;
+    private int myError;
+    
+    // Decode state: bytes checked so far, sum of the result bytes, and the number
+    // of result bytes expected (or RCXCmd.REPLY_UNKNOWN)
+    private int myDecoded;
+    private int mySum;
+    private int myExpected;
+    
+    private static final byte [] HEADER = { RCXPacket.PACKETHEADER1, 
+        RCXPacket.PACKETHEADER2, RCXPacket.PACKETHEADER3 };
     
     /**
      * Protected constructor so instances can only be made by RCXPort class.
+     */
+    protected RCXResult()
+    {
+        this(BUFFSIZE);
+    }
+    
+    private RCXResult(int size)
+    {
+        myBuffer = new byte[size];
+    }
+    /**
+     * Make a copy of this result that stays valid after the port that read it sends
+     * its next command.
+     *
+     * @return RCXResult the copy
+     */
+    protected RCXResult copy()
+    {
+        RCXResult res = new RCXResult(myNumRead);
+        System.arraycopy(myBuffer, 0, res.myBuffer, 0, myNumRead);
+        res.myNumRead = myNumRead;
+        res.myResultStart = myResultStart;
+        res.myResultLength = myResultLength;
+        return res;
+    }
+    /**
+     * Read the result for a packet that has just been sent.  Bytes are decoded as 
+     * they arrive: the echo, header and each byte/complement pair are checked once, 
+     * the read fails on the first bad byte, and it returns as soon as the checksum 
+     * closes the reply.  Each call to ins.read() returns whatever bytes have arrived, 
+     * so no time is spent waiting for a fixed number of bytes.
+     * <p>
+     * The number of result bytes is known for most commands (see 
+     * RCXCmd.getReplyLength()).  For the others the reply is taken to be complete when
+     * a pair matches the checksum of the bytes before it and no more bytes have 
+     * arrived behind it.
      *
      * @param ins the InputStream to read the result data from
      * @param aPacket the RCXPacket sent (so validity checks can be performed
      * on the response data.
+     * @exception IOException thrown if there is no response, or the response is
+     * not valid
      */
-    protected RCXResult(InputStream ins, RCXPacket aPacket) throws IOException
+    protected void read(InputStream ins, RCXPacket aPacket) throws IOException
     {
-        while (true) {
+        clear();
+        myExpected = RCXCmd.getReplyLength(aPacket.myData, aPacket.myOffset, aPacket.myLength);
+        while (!decode(aPacket)) {
+            if (myNumRead == BUFFSIZE) {
+                myError = ERROR_CORRUPT;
+                throw new IOException("RCX response too long.  Packet: "+this);
+            }
             int read = ins.read(myBuffer, myNumRead, BUFFSIZE - myNumRead);
-            if (read == 0) throw new IOException("No response. Packet: "+this);
-            myNumRead += read;
-            if (checkData(aPacket)) {
-                //System.out.println("Got result "+this);
-                break;
+            if (read <= 0) {
+                // A response of unknown length that never checked out has a bad checksum
+                myError = (myExpected == RCXCmd.REPLY_UNKNOWN && myResultLength > 0)?ERROR_CHECKSUM:ERROR_TIMEOUT;
+                throw new IOException("No response. Packet: "+this);
             }
+            myNumRead += read;
         }
+        // Anything after the end of the reply is not part of it
+        myNumRead = myDecoded;
+        //System.out.println("Got result "+this);
     }
     /**
-     * Check the result data for validity against the packet sent.  This does 
-     * basic checksum checks and throws an IOException if problems are found.  
-     * This is 
+     * Clear out any previous result.
+     */
+    protected void clear()
+    {
+        myNumRead = 0;
+        myDecoded = 0;
+        mySum = 0;
+        myResultStart = 0;
+        myResultLength = 0;
+        myError = ERROR_NONE;
+    }
+    /**
+     * Check the bytes read since the last call against the packet sent.  The 
+     * minimum response is the echo, plus 3 header bytes, plus the reply opcode and 
+     * its complement, and the checksum and its complement.
      *
      * @param packet the RCXPacket sent to the RCX
-     * @exception IOException thrown if there are problems with the result
-     * data
+     * @return boolean true if the response is complete
+     * @exception IOException thrown at the first byte that is not valid
      */
-    private boolean checkData(RCXPacket packet) throws IOException
+    private boolean decode(RCXPacket packet) throws IOException
     {
-        // check that we've received enough bytes.  The minimum number is
-        // the echo length, plus 3 header bytes, plus 1 response/echo, and the checksum 
-        // and checksum echo = 7.
-        int rcvLength = packet.mySendData.length + 7;
-        if (myNumRead < rcvLength) {
-            // If not, then return false and read some more
-            return false;
-        }
-        // Read enough bytes, now check echo for validity
-        int i=0;
-        for(; i < packet.mySendData.length; i++) {
-            if (packet.mySendData[i] != myBuffer[i]) {
-                throw new IOException("RCX echo not valid.  Packet: "+this);
+        int echo = packet.mySendLength;
+        while (myDecoded < myNumRead) {
+            int i = myDecoded++;
+            byte b = myBuffer[i];
+            if (i < echo) {
+                if (b != packet.mySendData[i]) {
+                    myError = ERROR_ECHO;
+                    throw new IOException("RCX echo not valid.  Packet: "+this);
+                }
+                if (myDecoded == echo && myExpected == RCXCmd.REPLY_NONE) return true;
+                continue;
             }
-        }
-        
-        // Check headers
-        if (myBuffer[i++]!= RCXPacket.PACKETHEADER1 ||
-            myBuffer[i++]!= RCXPacket.PACKETHEADER2 ||
-            myBuffer[i++]!= RCXPacket.PACKETHEADER3) throw new IOException("RCX response had bad header.  Packet: "+this);
-        
-        int retPos = 0;
-        int sum = 0;
-        myReturnBufferLength = 0;
-        // Check for shadow and get checksum
-        for(; i < myNumRead - 2; i+=2) {
-            if (myBuffer[i] != (~myBuffer[i+1]&(byte)0xff)) {
+            int j = i - echo;
+            if (j < HEADER.length) {
+                if (b != HEADER[j]) {
+                    myError = ERROR_HEADER;
+                    throw new IOException("RCX response had bad header.  Packet: "+this);
+                }
+                myResultStart = i + 1;
+                continue;
+            }
+            boolean checksum = (myResultLength == myExpected);
+            // First byte of a pair.  Its complement is checked when it arrives.
+            if (((j - HEADER.length) & 1) == 0) {
+                if (checksum && b != (byte) mySum) {
+                    myError = ERROR_CHECKSUM;
+                    throw new IOException("RCX bad checksum.  Packet: "+this);
+                }
+                continue;
+            }
+            byte v = myBuffer[i-1];
+            if (v != (byte) ~b) {
+                myError = (checksum)?ERROR_CHECKSUM:ERROR_CORRUPT;
                 throw new IOException("RCX corrupt response.  Packet: "+this);
             }
-            sum+=myBuffer[i];
-            if (retPos < BUFFSIZE) {
-                myReturnBuffer[retPos++] = myBuffer[i];
-                myReturnBufferLength++;
+            if (checksum) return true;
+            // Without a known length, a pair matching the sum so far closes the reply 
+            // if nothing has arrived after it.
+            if (myExpected == RCXCmd.REPLY_UNKNOWN && myResultLength > 0 && 
+                v == (byte) mySum && myDecoded == myNumRead) return true;
+            // The reply opcode is the complement of the opcode sent.  Anything else is
+            // not a reply to this packet.
+            if (myResultLength == 0 && v != (byte) ~packet.mySendData[3]) {
+                myError = ERROR_HEADER;
+                throw new IOException("RCX response is not for this command.  Packet: "+this);
             }
+            mySum += v;
+            myResultLength++;
         }
-        // Verify length and checksum shadow
-        if (i != myNumRead -2) throw new IOException("RCX bad response.  Packet: "+this);
-        if (myBuffer[i] != (~myBuffer[i+1]&((byte)0xff))) throw new IOException("RCX bad sum/checksum compare.  Packet: "+this);
-        // Verify checksum
-        if (sum != myBuffer[i]) throw new IOException("RCX bad checksum.  Packet: "+this);
-        return true;
+        return false;
+    }
+    /**
+     * Gets the reason the last read failed.
+     *
+     * @return int ERROR_NONE if the last read succeeded, otherwise ERROR_TIMEOUT, 
+     * ERROR_ECHO, ERROR_HEADER, ERROR_CORRUPT or ERROR_CHECKSUM.  RCXPort reports 
+     * ERROR_IO when the packet could not be sent at all.
+     */
+    public int getError()
+    {
+        return myError;
+    }
+    /**
+     * Gets the number of bytes read, including the echo of the packet sent.
+     */
+    public int getNumRead()
+    {
+        return myNumRead;
     }
     /**
      * Gets the entire packet received from the RCX.  This includes all of the
@@ -116,7 +230,7 @@ class RCXResult
      */
     public byte[] getFullPacket()
     {
-        return copyBytes(myBuffer, myNumRead);
+        return copyBytes(myBuffer, 0, 1, myNumRead);
     }
     /**
      * Gets the actual result from packet received from RCX.  These are just the
@@ -126,19 +240,41 @@ class RCXResult
      */
     public byte[] getResult()
     {
-        return copyBytes(myReturnBuffer, myReturnBufferLength);
+        return copyBytes(myBuffer, myResultStart, 2, myResultLength);
+    }
+    /**
+     * Gets the number of result bytes, without copying them.
+     *
+     * @return int the number of bytes getResult() would return
+     */
+    public int getResultLength()
+    {
+        return myResultLength;
+    }
+    /**
+     * Gets a single result byte, without copying the result.
+     *
+     * @param index the index of the result byte (0 is the reply opcode).  Must be less
+     * than getResultLength().
+     * @return byte the result byte
+     */
+    public byte getResultByte(int index)
+    {
+        return myBuffer[myResultStart + index*2];
     }
     /**
-     * Create a copy of the first num bytes from given byte array.
+     * Create a copy of num bytes from given byte array.
      *
      * @param arr the src array
-     * @param num the number of elements to copy (starting from 0).
+     * @param start the index of the first element to copy
+     * @param stride the distance between elements to copy
+     * @param num the number of elements to copy
      * @return byte[] the new bytes
      */
-    private byte [] copyBytes(byte [] arr, int num)
+    private byte [] copyBytes(byte [] arr, int start, int stride, int num)
     {
         byte [] retBytes = new byte[num];
-        System.arraycopy(arr, 0, retBytes, 0, num);
+        for(int i=0; i < num; i++) retBytes[i] = arr[start + i*stride];
         return retBytes;
     }
     
@@ -149,11 +285,11 @@ class RCXResult
             sb.append(RCXCmd.makeString(myBuffer[i])).append(" ");
         }
         sb.append("return(");
-        for(int i=0; i < myReturnBufferLength; i++) {
+        for(int i=0; i < myResultLength; i++) {
             if (i > 0) sb.append(" ");
-            sb.append(RCXCmd.makeString(myReturnBuffer[i]));
+            sb.append(RCXCmd.makeString(getResultByte(i)));
         }
         sb.append(")]");
         return sb.toString();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,222 @@
+/**
+ * @(#) RCXRetryPolicy.java 0.1 98/03/12
+ *
+ *  Copyright (C) 1998, Scott B. Lewis.  All Rights Reserved.
+ *
+ *  License to copy, use, and modify this software is granted provided that
+ *  this notice is retained in any copies of any part of this software.
+ *
+ *  The author makes no guarantee that this software will compile or
+ *  function correctly.  Also, if you use this software, you do so at your
+ *  own risk.
+ *
+ *  Scott B. Lewis.  slewis@teleport.com  http://www.slewis.com
+ */
+package rcxport;
+
+import java.util.Random;
+
+/**
+ * Timeouts and retries for the commands sent on one RCXPort.
+ * <p>
+ * The time a reply takes beyond the time its bytes spend on the wire (tower and
+ * driver latency, and the RCX's turnaround) is measured for every command that
+ * succeeds first time, and a smoothed round trip time and its mean deviation are kept
+ * as TCP does (Jacobson/Karels).  The read timeout for a command is the wire time of
+ * its packet and reply plus srtt + 4*rttvar, so a lost packet on a good link is
+ * noticed in tens of milliseconds while a slow link is given longer.  Until the
+ * first measurement the timeout is RCXPort.PORTREADTIMEOUT.  Each timeout doubles
+ * the allowance until the next good reply.
+ * <p>
+ * Before a retry the port waits a random time up to an exponentially growing limit,
+ * so towers sharing the same IR space do not keep retrying in step.  The number of
+ * attempts may be set for each opcode; by default it is RCXPort.DEFAULTRETRYCOUNT.
+ * Commands the RCX takes a long time to carry out may be given extra time to reply.
+ * <p>
+ * A policy keeps the measurements of the link it is used on, so each port should
+ * have its own.
+ */
+public class RCXRetryPolicy
+{
+    public static final int BAUDRATE = 2400;
+    // Bits sent for each byte: start, 8 data, parity and stop
+    public static final int BITSPERBYTE = 11;
+    // Limits on srtt + 4*rttvar, in milliseconds
+    public static final int MINTIMEOUT = 50;
+    public static final int MAXTIMEOUT = 4000;
+    // Limits on the random wait before a retry, in milliseconds
+    public static final int BACKOFFBASE = 20;
+    public static final int BACKOFFMAX = 500;
+    // Time the RCX takes to check and start new firmware before replying to unlock
+    public static final int UNLOCKTIME = 2000;
+
+    private int [] myRetries = new int[256];
+    private int [] myTurnaround = new int[256];
+    private int myMinTimeout = MINTIMEOUT;
+    private int myMaxTimeout = MAXTIMEOUT;
+    private int myBackoffBase = BACKOFFBASE;
+    private int myBackoffMax = BACKOFFMAX;
+    private Random myRandom = new Random();
+
+    // Smoothed round trip time and mean deviation in microseconds, or -1 before the
+    // first measurement, and the number of timeouts since the last good reply
+    private long mySrtt = -1;
+    private long myRttvar;
+    private int myTimeouts;
+
+    /**
+     * Create a policy with RCXPort.DEFAULTRETRYCOUNT attempts for every opcode.
+     */
+    public RCXRetryPolicy()
+    {
+        setRetries(RCXPort.DEFAULTRETRYCOUNT);
+        setTurnaround(RCXCmd.EndFirmware, UNLOCKTIME);
+    }
+    /**
+     * Set the number of attempts made for every opcode.
+     *
+     * @param retries the number of attempts, at least 1
+     */
+    public synchronized void setRetries(int retries)
+    {
+        for(int i=0; i < myRetries.length; i++) myRetries[i] = Math.max(retries, 1);
+    }
+    /**
+     * Set the number of attempts made for one opcode (both toggle bit variants).
+     *
+     * @param op the opcode
+     * @param retries the number of attempts, at least 1
+     */
+    public synchronized void setRetries(byte op, int retries)
+    {
+        myRetries[op & 0xf7] = Math.max(retries, 1);
+    }
+    /**
+     * Get the number of attempts made for an opcode.
+     */
+    public synchronized int getRetries(byte op)
+    {
+        return myRetries[op & 0xf7];
+    }
+    /**
+     * Set extra time allowed for the RCX to reply to one opcode (both toggle bit
+     * variants).  Replies to such commands are not used to measure the link.
+     *
+     * @param op the opcode
+     * @param millis the extra time in milliseconds
+     */
+    public synchronized void setTurnaround(byte op, int millis)
+    {
+        myTurnaround[op & 0xf7] = millis;
+    }
+    /**
+     * Set the limits on the time allowed beyond the wire time of a command.
+     *
+     * @param min the shortest allowance in milliseconds
+     * @param max the longest allowance in milliseconds
+     */
+    public synchronized void setTimeoutLimits(int min, int max)
+    {
+        myMinTimeout = min;
+        myMaxTimeout = max;
+    }
+    /**
+     * Set the limits on the random wait before a retry.  The wait before retry n is up
+     * to base*2^(n-1) milliseconds, but never more than max.  A base of 0 retries at once.
+     *
+     * @param base the limit for the first retry, in milliseconds
+     * @param max the largest limit, in milliseconds
+     */
+    public synchronized void setBackoff(int base, int max)
+    {
+        myBackoffBase = base;
+        myBackoffMax = max;
+    }
+    /**
+     * Get the read timeout for a command.
+     *
+     * @param op the opcode
+     * @param bytes the number of bytes expected on the wire: the echo of the packet
+     * and the reply
+     * @return int the timeout in milliseconds
+     */
+    public synchronized int getTimeout(byte op, int bytes)
+    {
+        long allowance;
+        if (mySrtt < 0) allowance = RCXPort.PORTREADTIMEOUT;
+        else {
+            allowance = (mySrtt + 4*myRttvar + 999)/1000;
+            allowance = Math.max(myMinTimeout, Math.min(myMaxTimeout, allowance));
+        }
+        allowance = Math.min((long) myMaxTimeout, allowance << Math.min(myTimeouts, 16));
+        return (int) (getWireTime(bytes) + allowance + myTurnaround[op & 0xf7]);
+    }
+    /**
+     * Record a command that got a good reply on its first attempt.  Replies to retried
+     * commands are not measured, as it is not known which attempt they answer.
+     *
+     * @param op the opcode
+     * @param nanos the time from sending the packet to the end of the reply
+     * @param bytes the number of bytes read, including the echo
+     */
+    public synchronized void sample(byte op, long nanos, int bytes)
+    {
+        if (myTurnaround[op & 0xf7] > 0) return;
+        long rtt = Math.max(0, nanos/1000 - (long) bytes*BITSPERBYTE*1000000/BAUDRATE);
+        if (mySrtt < 0) {
+            mySrtt = rtt;
+            myRttvar = rtt/2;
+        } else {
+            myRttvar += (Math.abs(mySrtt - rtt) - myRttvar)/4;
+            mySrtt += (rtt - mySrtt)/8;
+        }
+        myTimeouts = 0;
+    }
+    /**
+     * Record a command attempt that got no reply in time.
+     */
+    public synchronized void timedOut()
+    {
+        myTimeouts++;
+    }
+    /**
+     * Get the time to wait before retrying.
+     *
+     * @param attempt the number of attempts made so far
+     * @return long the time to wait in milliseconds
+     */
+    public synchronized long getBackoff(int attempt)
+    {
+        if (myBackoffBase <= 0) return 0;
+        long limit = Math.min((long) myBackoffMax, (long) myBackoffBase << Math.min(attempt - 1, 16));
+        return (long) (myRandom.nextDouble() * limit);
+    }
+    /**
+     * Get the smoothed round trip time beyond the wire time.
+     *
+     * @return long the time in microseconds, or -1 if nothing has been measured
+     */
+    public synchronized long getSmoothedRtt()
+    {
+        return mySrtt;
+    }
+    /**
+     * Get the mean deviation of the round trip time.
+     *
+     * @return long the deviation in microseconds
+     */
+    public synchronized long getRttVariance()
+    {
+        return myRttvar;
+    }
+    /**
+     * Get the time bytes take to send over the IR link.
+     *
+     * @param bytes the number of bytes
+     * @return long the time in milliseconds, rounded up
+     */
+    public static long getWireTime(int bytes)
+    {
+        return ((long) bytes*BITSPERBYTE*1000 + BAUDRATE - 1)/BAUDRATE;
+    }
+}
@@ -0,0 +1,164 @@
+/**
+ * @(#) RCXSampleRing.java 0.1 98/03/12
+ *
+ *  Copyright (C) 1998, Scott B. Lewis.  All Rights Reserved.
+ *
+ *  License to copy, use, and modify this software is granted provided that
+ *  this notice is retained in any copies of any part of this software.
+ *
+ *  The author makes no guarantee that this software will compile or
+ *  function correctly.  Also, if you use this software, you do so at your
+ *  own risk.
+ *
+ *  Scott B. Lewis.  slewis@teleport.com  http://www.slewis.com
+ */
+package rcxport;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ring buffer of timestamped samples, passed from one producer thread (an RCXPoller)
+ * to one consumer thread without locks.  Samples are kept in primitive arrays, so
+ * adding and reading them creates no objects.
+ * <p>
+ * The consumer reads samples with next() and the getters, like an iterator.  When
+ * the ring is full new samples are dropped and counted, so a slow consumer never
+ * holds up the producer.
+ */
+public class RCXSampleRing
+{
+    public static final int DEFAULTSIZE = 1024;
+
+    private int myMask;
+    private int [] myKeys;
+    private long [] myTimes;
+    private int [] myValues;
+
+    // Number of samples ever added and ever taken.  Only the producer sets myTail,
+    // and only the consumer sets myHead.
+    private AtomicLong myTail = new AtomicLong();
+    private AtomicLong myHead = new AtomicLong();
+    private AtomicLong myDropped = new AtomicLong();
+
+    // Sample last taken by next()
+    private int myKey;
+    private long myTime;
+    private int myValue;
+
+    /**
+     * Create a ring holding DEFAULTSIZE samples.
+     */
+    public RCXSampleRing()
+    {
+        this(DEFAULTSIZE);
+    }
+    /**
+     * Create a ring.
+     *
+     * @param size the number of samples held, rounded up to a power of 2
+     */
+    public RCXSampleRing(int size)
+    {
+        int n = Integer.highestOneBit(Math.max(size, 2) - 1) << 1;
+        myMask = n - 1;
+        myKeys = new int[n];
+        myTimes = new long[n];
+        myValues = new int[n];
+    }
+    /**
+     * Add a sample.  Only to be called by the producer thread.
+     *
+     * @param key the value polled (as given to RCXPoller.subscribe)
+     * @param time the time of the sample, from System.nanoTime()
+     * @param value the value read
+     * @return boolean true if added, false if the ring is full
+     */
+    public boolean offer(int key, long time, int value)
+    {
+        long tail = myTail.get();
+        if (tail - myHead.get() > myMask) {
+            myDropped.incrementAndGet();
+            return false;
+        }
+        int i = (int) tail & myMask;
+        myKeys[i] = key;
+        myTimes[i] = time;
+        myValues[i] = value;
+        // Publishes the sample to the consumer
+        myTail.lazySet(tail + 1);
+        return true;
+    }
+    /**
+     * Take the next sample, which is then given by getKey(), getTime() and getValue().
+     * Only to be called by the consumer thread.
+     *
+     * @return boolean true if there was a sample, false if the ring is empty
+     */
+    public boolean next()
+    {
+        long head = myHead.get();
+        if (head == myTail.get()) return false;
+        int i = (int) head & myMask;
+        myKey = myKeys[i];
+        myTime = myTimes[i];
+        myValue = myValues[i];
+        // Frees the slot for the producer
+        myHead.lazySet(head + 1);
+        return true;
+    }
+    /**
+     * Get the value polled for the current sample.
+     *
+     * @return int the value, as given to RCXPoller.subscribe
+     */
+    public int getKey()
+    {
+        return myKey;
+    }
+    /**
+     * Get the source of the current sample (e.g. RCXCmd.SOURCE_SENSORVALUE).
+     */
+    public int getSource()
+    {
+        return myKey >>> 16;
+    }
+    /**
+     * Get the variable, timer or sensor number of the current sample.
+     */
+    public int getArg()
+    {
+        return myKey & 0xffff;
+    }
+    /**
+     * Get the time of the current sample.
+     *
+     * @return long the time the reply arrived, from System.nanoTime()
+     */
+    public long getTime()
+    {
+        return myTime;
+    }
+    /**
+     * Get the value read for the current sample.
+     *
+     * @return int the signed 16 bit value
+     */
+    public int getValue()
+    {
+        return myValue;
+    }
+    /**
+     * Get the number of samples waiting to be taken.
+     */
+    public int size()
+    {
+        return (int) (myTail.get() - myHead.get());
+    }
+    /**
+     * Get the number of samples dropped because the ring was full.
+     */
+    public long getDropped()
+    {
+        return myDropped.get();
+    }
+}
@@ -0,0 +1,209 @@
+/**
+ * @(#) RCXSerialTransport.java 0.1 98/03/12
+ *
+ *  Copyright (C) 1998, Scott B. Lewis.  All Rights Reserved.
+ *
+ *  License to copy, use, and modify this software is granted provided that
+ *  this notice is retained in any copies of any part of this software.
+ *
+ *  The author makes no guarantee that this software will compile or
+ *  function correctly.  Also, if you use this software, you do so at your
+ *  own risk.
+ * 
+ *  Scott B. Lewis.  slewis@teleport.com  http://www.slewis.com
+ */
+package rcxport;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.TooManyListenersException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Classes needed from Java Comm API for communicating over the serial port.
+import javax.comm.CommPortIdentifier;
+import javax.comm.SerialPort;
+import javax.comm.SerialPortEvent;
+import javax.comm.SerialPortEventListener;
+
+/**
+ * RCXTransport for an IR tower attached to a serial port.  Uses the Java Comm API
+ * to open the port at 2400 baud, 8 data bits, odd parity and 1 stop bit.
+ * <p>
+ * Reads are driven by the port's data available events: a read waits until the
+ * port reports bytes, then returns all the bytes that have arrived, rather than
+ * blocking in the driver until its receive timeout or threshold is reached.  If
+ * the port does not support event listeners, reads fall back to the receive timeout.
+ */
+public class RCXSerialTransport implements RCXTransport
+{
+    public static final int BAUDRATE = 2400;
+
+    private String myPortName;
+    private CommPortIdentifier myPortIdentifier;
+    private SerialPort myPort;
+    private InputStream myInputStream;
+    private OutputStream myOutputStream;
+    private EventInputStream myEventStream;
+
+    /**
+     * Open and prepare the given comm port for use.  Will throw an exception
+     * if comm port is not available.
+     *
+     * @param port the name of the system port to use.  This name will be system
+     * dependent (e.g. "COM1").
+     * @exception Exception thrown if an identifier cannot be gotten from
+     * CommPortIdentifier.getPortIdentifier(), or if other comm port 
+     * problems occur during initialization.
+     */
+    public RCXSerialTransport(String port) throws Exception
+    {
+        myPortName = port;
+        myPortIdentifier = CommPortIdentifier.getPortIdentifier(myPortName);
+        try {
+            myPort = (SerialPort) myPortIdentifier.open(RCXPort.RCXPORTNAME, RCXPort.PORTOPENTIMEOUT);
+            myPort.setSerialPortParams(BAUDRATE,SerialPort.DATABITS_8,SerialPort.STOPBITS_1,
+                                        SerialPort.PARITY_ODD);
+            myPort.enableReceiveTimeout(RCXPort.PORTREADTIMEOUT);
+            //myPort.enableReceiveThreshold(1);
+            myOutputStream = myPort.getOutputStream();
+            myInputStream = myPort.getInputStream();
+            try {
+                EventInputStream ins = new EventInputStream(myInputStream);
+                myPort.addEventListener(ins);
+                myPort.notifyOnDataAvailable(true);
+                myInputStream = myEventStream = ins;
+            } catch (TooManyListenersException e) {
+                // Use blocking reads
+            }
+        } catch (Exception e) {
+            // problem so close
+            close();
+            throw e;
+        }
+    }
+    
+    public InputStream getInputStream()
+    {
+        return myInputStream;
+    }
+    
+    public OutputStream getOutputStream()
+    {
+        return myOutputStream;
+    }
+    
+    public String getName()
+    {
+        return myPortName;
+    }
+    
+    public synchronized void setReadTimeout(int millis) throws IOException
+    {
+        if (myPort == null) throw new IOException("Port closed");
+        if (myEventStream != null) {
+            myEventStream.setReadTimeout(millis);
+            return;
+        }
+        try {
+            myPort.enableReceiveTimeout(millis);
+        } catch (Exception e) {
+            throw new IOException("Cannot set read timeout: "+e.getMessage());
+        }
+    }
+    
+    public synchronized void close()
+    {
+        if (myPort != null) {
+            if (myEventStream != null) myPort.removeEventListener();
+            myPort.close();
+            myPort = null;
+        }
+    }
+    
+    /**
+     * InputStream that waits for data available events instead of blocking in the
+     * port's read.
+     */
+    static class EventInputStream extends InputStream implements SerialPortEventListener
+    {
+        private InputStream myInputStream;
+        private volatile int myReadTimeout = RCXPort.PORTREADTIMEOUT;
+        // Readers wait on myAvailable for data available events.  A lock rather than
+        // wait(), which pins a virtual thread to its carrier.
+        private final ReentrantLock myLock = new ReentrantLock();
+        private final Condition myAvailable = myLock.newCondition();
+        
+        EventInputStream(InputStream ins)
+        {
+            myInputStream = ins;
+        }
+        
+        void setReadTimeout(int millis)
+        {
+            myReadTimeout = millis;
+        }
+        
+        public void serialEvent(SerialPortEvent e)
+        {
+            if (e.getEventType() != SerialPortEvent.DATA_AVAILABLE) return;
+            myLock.lock();
+            try {
+                myAvailable.signalAll();
+            } finally {
+                myLock.unlock();
+            }
+        }
+        /**
+         * Read the bytes that have arrived, waiting up to the read timeout for the
+         * first one.
+         *
+         * @return int the number of bytes read, or 0 on timeout
+         */
+        public int read(byte [] b, int off, int len) throws IOException
+        {
+            if (len == 0) return 0;
+            int n = waitForData();
+            if (n == 0) return 0;
+            return myInputStream.read(b, off, Math.min(n, len));
+        }
+        
+        public int read() throws IOException
+        {
+            // Like the port with a receive timeout, -1 when nothing arrives
+            if (waitForData() == 0) return -1;
+            return myInputStream.read();
+        }
+        
+        public int available() throws IOException
+        {
+            return myInputStream.available();
+        }
+        
+        private int waitForData() throws IOException
+        {
+            long deadline = System.currentTimeMillis() + myReadTimeout;
+            int n;
+            myLock.lock();
+            try {
+                // Check before each wait, as events may come before we wait for them
+                while ((n = myInputStream.available()) == 0) {
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) return 0;
+                    try {
+                        myAvailable.await(wait, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted");
+                    }
+                }
+            } finally {
+                myLock.unlock();
+            }
+            return n;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+/**
+ * @(#) RCXSession.java 0.1 98/03/12
+ *
+ *  Copyright (C) 1998, Scott B. Lewis.  All Rights Reserved.
+ *
+ *  License to copy, use, and modify this software is granted provided that
+ *  this notice is retained in any copies of any part of this software.
+ *
+ *  The author makes no guarantee that this software will compile or
+ *  function correctly.  Also, if you use this software, you do so at your
+ *  own risk.
+ *
+ *  Scott B. Lewis.  slewis@teleport.com  http://www.slewis.com
+ */
+package rcxport;
+
+/**
+ * What is done with one brick, run by an RCXSessionFactory on the brick's own
+ * thread.  A session is written as plain sequential code (download, then poll,
+ * and so on) that blocks on the port as it goes.  The same session object is run
+ * for every brick, so calls for different bricks may happen at the same time.
+ */
+public interface RCXSession<T>
+{
+    /**
+     * Work with a brick.
+     *
+     * @param port the open port to the brick.  It is closed when this returns.
+     * @return T the outcome, as returned by the session's Future
+     * @exception Exception thrown if the session fails
+     */
+    public T run(RCXPort port) throws Exception;
+}
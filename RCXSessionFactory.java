@@ -0,0 +1,148 @@
+/**
+ * @(#) RCXSessionFactory.java 0.1 98/03/12
+ *
+ *  Copyright (C) 1998, Scott B. Lewis.  All Rights Reserved.
+ *
+ *  License to copy, use, and modify this software is granted provided that
+ *  this notice is retained in any copies of any part of this software.
+ *
+ *  The author makes no guarantee that this software will compile or
+ *  function correctly.  Also, if you use this software, you do so at your
+ *  own risk.
+ *
+ *  Scott B. Lewis.  slewis@teleport.com  http://www.slewis.com
+ */
+package rcxport;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs an RCXSession with each of many bricks, each on its own thread with its own
+ * RCXPort.  On a JVM with virtual threads (Java 21 on) each session gets a virtual
+ * thread, so hundreds of bricks blocked waiting for replies cost little more than
+ * their buffers.  Elsewhere sessions run on a cached pool of platform threads.
+ * <p>
+ * RCXPort, RCXAsyncPort, RCXPoller, RCXSimulatedTower and the serial transports wait
+ * with locks rather than synchronized, so a session blocked on a reply doesn't pin its
+ * carrier thread.
+ * <p>
+ * A session is stopped by cancelling its Future with cancel(true).  The port call it
+ * is blocked in then throws an InterruptedIOException, and the thread is left
+ * interrupted, so later waits for replies on the port fail too.
+ */
+public class RCXSessionFactory
+{
+    private RCXTransportFactory myFactory;
+    private ExecutorService myExecutor;
+    private boolean myOwnExecutor;
+
+    /**
+     * Create a factory that runs each session on a new virtual thread where the JVM
+     * has them.
+     *
+     * @param factory the factory to open a transport for each port name
+     */
+    public RCXSessionFactory(RCXTransportFactory factory)
+    {
+        this(factory, newExecutor());
+        myOwnExecutor = true;
+    }
+    /**
+     * Create a factory that runs sessions on the given executor.
+     *
+     * @param factory the factory to open a transport for each port name
+     * @param executor the executor to run each session on.  Not shut down by close().
+     */
+    public RCXSessionFactory(RCXTransportFactory factory, ExecutorService executor)
+    {
+        myFactory = factory;
+        myExecutor = executor;
+    }
+    /**
+     * Make an executor that starts a virtual thread for each task, or if the JVM has
+     * no virtual threads, a cached thread pool.  Also suits RCXFleet.
+     *
+     * @return ExecutorService the executor
+     */
+    public static ExecutorService newExecutor()
+    {
+        // Found by reflection so this builds and runs on JVMs before Java 21
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (Exception e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+    /**
+     * Find whether this JVM has virtual threads.
+     */
+    public static boolean hasVirtualThreads()
+    {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+    /**
+     * Start a session with the brick on a port.  The port is opened on the session's
+     * thread, and closed when the session ends.
+     *
+     * @param port the name of the port
+     * @param session the session
+     * @return Future the outcome of the session.  get() throws an ExecutionException
+     * holding the exception if the port can't be opened or the session fails.
+     */
+    public <T> Future<T> submit(final String port, final RCXSession<T> session)
+    {
+        return myExecutor.submit(new Callable<T>() {
+            public T call() throws Exception
+            {
+                RCXPort aPort = new RCXPort(myFactory.open(port));
+                try {
+                    return session.run(aPort);
+                } finally {
+                    aPort.close();
+                }
+            }
+        });
+    }
+    /**
+     * Run a session with the bricks on the given ports, and wait for all of them to
+     * finish.
+     *
+     * @param ports the names of the ports, one per brick
+     * @param session the session to run with each brick
+     * @return List the outcome for each brick, in the same order as ports.  All are done.
+     * @exception InterruptedException thrown if interrupted while waiting
+     */
+    public <T> List<Future<T>> runAll(String [] ports, RCXSession<T> session) throws InterruptedException
+    {
+        List<Future<T>> res = new ArrayList<Future<T>>(ports.length);
+        for(int i=0; i < ports.length; i++) res.add(submit(ports[i], session));
+        for(int i=0; i < ports.length; i++) {
+            try {
+                res.get(i).get();
+            } catch (ExecutionException e) {
+                // Left for the caller to get from the Future
+            }
+        }
+        return res;
+    }
+    /**
+     * Shut down the executor if this factory created it.
+     */
+    public void close()
+    {
+        if (myOwnExecutor) myExecutor.shutdown();
+    }
+}
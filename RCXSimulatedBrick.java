@@ -0,0 +1,498 @@
+/**
+ * @(#) RCXSimulatedBrick.java 0.1 98/03/12
+ *
+ *  Copyright (C) 1998, Scott B. Lewis.  All Rights Reserved.
+ *
+ *  License to copy, use, and modify this software is granted provided that
+ *  this notice is retained in any copies of any part of this software.
+ *
+ *  The author makes no guarantee that this software will compile or
+ *  function correctly.  Also, if you use this software, you do so at your
+ *  own risk.
+ * 
+ *  Scott B. Lewis.  slewis@teleport.com  http://www.slewis.com
+ */
+package rcxport;
+
+/**
+ * Model of the RCX used behind an RCXSimulatedTower.  Answers direct commands with
+ * the replies the RCX firmware gives (the complemented opcode followed by any
+ * result bytes), and stores downloaded tasks and subroutines for each program slot
+ * so they can be inspected afterwards.  Byte codes are only stored, not run.
+ * Firmware can be deleted and downloaded, and is checked as the ROM checks it.
+ * The datalog can be set up, added to and uploaded.
+ */
+public class RCXSimulatedBrick
+{
+    public static final int MAX_SUBS = RCXProgram.MAX_SUBS;
+    // Bytes available for program code in all program slots
+    public static final int MEMORY = 6000;
+    public static final int BATTERY_LEVEL = 9000;
+    // Versions given in reply to Unlock, as major and minor words
+    public static final int ROM_VERSION = 0x00030001;
+    public static final int FIRMWARE_VERSION = 0x00030009;
+    // Sources and source numbers that values can be set for
+    public static final int SOURCES = 16;
+    public static final int SOURCEARGS = 32;
+    
+    // Download status codes
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_NOMEMORY = 1;
+    public static final byte STATUS_BADINDEX = 2;
+    public static final byte STATUS_BLOCKCHECKSUM = RCXCmd.TRANSFER_BLOCKCHECKSUM;
+    public static final byte STATUS_FIRMWARECHECKSUM = RCXCmd.TRANSFER_FIRMWARECHECKSUM;
+    public static final byte STATUS_NOSTART = RCXCmd.TRANSFER_NOSTART;
+    
+    private byte [][][] myTasks = new byte[RCXProgram.MAX_PROGS][RCXProgram.MAX_TASKS][];
+    private byte [][][] mySubs = new byte[RCXProgram.MAX_PROGS][MAX_SUBS][];
+    private boolean [] myRunning = new boolean[RCXProgram.MAX_TASKS];
+    private int myProgram;
+    private int mySound = -1;
+    private int [] myCommandCounts = new int[256];
+    
+    private int myMaxBlock = RCXPort.MAXDOWNLOADCHUNK;
+    
+    // Firmware, and whether it is running (rather than the ROM)
+    private byte [] myFirmware;
+    private boolean myFirmwareRunning = true;
+    
+    // Values given by Read for each source and source number
+    private int [][] mySourceValues = new int[SOURCES][SOURCEARGS];
+    
+    // Datalog entries (type and value), and the number of entries allowed
+    private byte [] myLogTypes = new byte[0];
+    private short [] myLogValues = new short[0];
+    private int myLogCount;
+    
+    // State of fragment or firmware download in progress
+    private byte [] myDownload;
+    private boolean myDownloadFirmware;
+    private int myFirmwareChecksum;
+    private boolean myDownloadTask;
+    private int myDownloadIndex;
+    private int myDownloadPos;
+    private int myDownloadSeq;
+    
+    /**
+     * Execute a direct command and get the reply.
+     *
+     * @param msg the command bytes, starting with the opcode
+     * @param len the number of command bytes in msg
+     * @return byte[] the reply bytes (complemented opcode first), or null if the RCX
+     * does not reply to this command
+     */
+    public synchronized byte [] execute(byte [] msg, int len)
+    {
+        myCommandCounts[msg[0] & 0xff]++;
+        return perform(msg, len);
+    }
+    /**
+     * Carry out a command, whether sent directly or (in a subclass that runs programs)
+     * from a program.
+     *
+     * @param msg the command bytes, starting with the opcode
+     * @param len the number of command bytes in msg
+     * @return byte[] the reply bytes, or null if the RCX does not reply to this command
+     */
+    protected byte [] perform(byte [] msg, int len)
+    {
+        byte op = msg[0];
+        switch (base(op)) {
+            case RCXCmd.Message & 0xf7:
+                return null;
+            case RCXCmd.StopAll & 0xf7:
+                for(int i=0; i < myRunning.length; i++) myRunning[i] = false;
+                break;
+            case RCXCmd.SelectProgram & 0xf7:
+                if (len < 2 || msg[1] < 0 || msg[1] >= RCXProgram.MAX_PROGS) return null;
+                myProgram = msg[1];
+                break;
+            case RCXCmd.DeleteTasks & 0xf7:
+                clear(myTasks[myProgram]);
+                break;
+            case RCXCmd.DeleteSubs & 0xf7:
+                clear(mySubs[myProgram]);
+                break;
+            case RCXCmd.BeginTask & 0xf7:
+                return reply(op, beginDownload(true, msg, len));
+            case RCXCmd.BeginSub & 0xf7:
+                return reply(op, beginDownload(false, msg, len));
+            case RCXCmd.Download & 0xf7:
+                return reply(op, download(msg, len));
+            case RCXCmd.PlaySound & 0xf7:
+                if (len > 1) mySound = msg[1];
+                break;
+            case RCXCmd.StartTask & 0xf7:
+                if (len > 1 && msg[1] >= 0 && msg[1] < myRunning.length) myRunning[msg[1]] = true;
+                break;
+            case RCXCmd.StopTask & 0xf7:
+                if (len > 1 && msg[1] >= 0 && msg[1] < myRunning.length) myRunning[msg[1]] = false;
+                break;
+            case RCXCmd.BatteryLevel & 0xf7:
+                return reply(op, RCXCmd.lobyte(BATTERY_LEVEL), RCXCmd.hibyte(BATTERY_LEVEL));
+            case RCXCmd.Unlock & 0xf7:
+                return versions(op);
+            case RCXCmd.SetDatalog & 0xf7:
+                return reply(op, setDatalog(msg, len));
+            case RCXCmd.Datalog & 0xf7:
+                if (len > 2) log(msg[1], msg[2]);
+                break;
+            case RCXCmd.UploadDatalog & 0xf7:
+                return uploadDatalog(op, msg, len);
+            case RCXCmd.BootMode & 0xf7:
+                if (isKey(msg, len, RCXCmd.makeDeleteFirmware())) deleteFirmware();
+                break;
+            case RCXCmd.BeginFirmware & 0xf7:
+                return reply(op, beginFirmware(msg, len));
+            case RCXCmd.EndFirmware & 0xf7:
+                return unlockFirmware(op, msg, len);
+            case RCXCmd.Read & 0xf7:
+                if (len < 3) return null;
+                int value = getSourceValue(msg[1], msg[2] & 0xff);
+                return reply(op, RCXCmd.lobyte(value), RCXCmd.hibyte(value));
+            default:
+                break;
+        }
+        return reply(op);
+    }
+    
+    private byte beginDownload(boolean task, byte [] msg, int len)
+    {
+        myDownload = null;
+        myDownloadFirmware = false;
+        if (len < 6) return STATUS_BADINDEX;
+        int index = msg[2];
+        int size = (msg[4] & 0xff) | ((msg[5] & 0xff) << 8);
+        if (index < 0 || index >= ((task)?RCXProgram.MAX_TASKS:MAX_SUBS)) return STATUS_BADINDEX;
+        // Fragment being replaced does not count against memory
+        byte [] old = (task)?myTasks[myProgram][index]:mySubs[myProgram][index];
+        int used = getMemoryUsed() - ((old == null)?0:old.length);
+        if (used + size > MEMORY) return STATUS_NOMEMORY;
+        myDownload = new byte[size];
+        myDownloadTask = task;
+        myDownloadIndex = index;
+        myDownloadPos = 0;
+        myDownloadSeq = 1;
+        return STATUS_OK;
+    }
+    
+    private byte download(byte [] msg, int len)
+    {
+        if (myDownload == null || len < 6) return STATUS_NOSTART;
+        int seq = (msg[1] & 0xff) | ((msg[2] & 0xff) << 8);
+        int n = (msg[3] & 0xff) | ((msg[4] & 0xff) << 8);
+        // Blocks too big for the receive buffer are corrupted
+        if (len != n + 6 || n > myMaxBlock) return STATUS_BLOCKCHECKSUM;
+        byte sum = 0;
+        for(int i=0; i < n; i++) sum += msg[5+i];
+        if (sum != msg[5+n]) return STATUS_BLOCKCHECKSUM;
+        if (seq != 0 && seq != myDownloadSeq) return STATUS_NOSTART;
+        if (myDownloadPos + n > myDownload.length) return STATUS_NOSTART;
+        System.arraycopy(msg, 5, myDownload, myDownloadPos, n);
+        myDownloadPos += n;
+        myDownloadSeq++;
+        if (seq == 0 && myDownloadFirmware) {
+            byte [] fw = new byte[myDownloadPos];
+            System.arraycopy(myDownload, 0, fw, 0, myDownloadPos);
+            myDownload = null;
+            if (RCXFirmware.getChecksum(fw, 0, fw.length) != myFirmwareChecksum) return STATUS_FIRMWARECHECKSUM;
+            myFirmware = fw;
+            return STATUS_OK;
+        }
+        if (seq == 0) {
+            if (myDownloadPos != myDownload.length) return STATUS_NOSTART;
+            if (myDownloadTask) myTasks[myProgram][myDownloadIndex] = myDownload;
+            else mySubs[myProgram][myDownloadIndex] = myDownload;
+            myDownload = null;
+        }
+        return STATUS_OK;
+    }
+    
+    /**
+     * Set the largest Download block this brick accepts.  Larger blocks get a block
+     * checksum failure, as on an RCX whose receive buffer is overrun.
+     *
+     * @param size the largest block size accepted
+     */
+    public synchronized void setMaxDownloadBlock(int size)
+    {
+        myMaxBlock = size;
+    }
+    
+    /**
+     * Get the bytes of a downloaded task.
+     *
+     * @param prog the program slot (0..4)
+     * @param task the task number
+     * @return byte[] the task byte codes, or null if no such task has been downloaded
+     */
+    public synchronized byte [] getTask(int prog, int task)
+    {
+        return myTasks[prog][task];
+    }
+    
+    /**
+     * Get the bytes of a downloaded subroutine.
+     *
+     * @param prog the program slot (0..4)
+     * @param sub the subroutine number
+     * @return byte[] the subroutine byte codes, or null if no such subroutine has been downloaded
+     */
+    public synchronized byte [] getSub(int prog, int sub)
+    {
+        return mySubs[prog][sub];
+    }
+    
+    public synchronized int getSelectedProgram()
+    {
+        return myProgram;
+    }
+    
+    public synchronized boolean isRunning(int task)
+    {
+        return myRunning[task];
+    }
+    
+    /**
+     * Get the last sound played.
+     *
+     * @return int the last sound played, or -1 if none
+     */
+    public synchronized int getSound()
+    {
+        return mySound;
+    }
+    
+    /**
+     * Get number of times an opcode has been received.  Both toggle bit variants
+     * are counted together.
+     *
+     * @param op the opcode
+     * @return int the number of commands received with this opcode
+     */
+    public synchronized int getCommandCount(byte op)
+    {
+        return myCommandCounts[op & 0xf7] + myCommandCounts[(op & 0xf7) | 8];
+    }
+    
+    public synchronized int getMemoryUsed()
+    {
+        int used = 0;
+        for(int p=0; p < RCXProgram.MAX_PROGS; p++) {
+            used += getSize(myTasks[p]);
+            used += getSize(mySubs[p]);
+        }
+        return used + myLogTypes.length*3;
+    }
+    
+    /**
+     * Build reply for given command opcode.
+     *
+     * @param op the opcode as received
+     * @return byte[] the reply
+     */
+    protected byte [] reply(byte op)
+    {
+        return RCXCmd.set((byte) ~op);
+    }
+    
+    protected byte [] reply(byte op, byte one)
+    {
+        return RCXCmd.set((byte) ~op, one);
+    }
+    
+    protected byte [] reply(byte op, byte one, byte two)
+    {
+        return RCXCmd.set((byte) ~op, one, two);
+    }
+    
+    private byte beginFirmware(byte [] msg, int len)
+    {
+        myDownload = null;
+        if (len < 6 || myFirmwareRunning) return STATUS_NOSTART;
+        myFirmwareChecksum = (msg[3] & 0xff) | ((msg[4] & 0xff) << 8);
+        // Firmware is loaded from RCXFirmware.START to the top of memory
+        myDownload = new byte[RCXFirmware.MAXADDRESS + 1 - RCXFirmware.START];
+        myDownloadFirmware = true;
+        myDownloadPos = 0;
+        myDownloadSeq = 1;
+        return STATUS_OK;
+    }
+    
+    private byte [] unlockFirmware(byte op, byte [] msg, int len)
+    {
+        // The ROM ignores unlock until firmware has been downloaded
+        if (myFirmwareRunning || myFirmware == null || !isKey(msg, len, RCXCmd.makeUnlockFirmware())) return null;
+        myFirmwareRunning = true;
+        String s = RCXCmd.UNLOCK_REPLY;
+        byte [] res = new byte[s.length() + 1];
+        res[0] = (byte) ~op;
+        for(int i=0; i < s.length(); i++) res[i+1] = (byte) s.charAt(i);
+        return res;
+    }
+    
+    private void deleteFirmware()
+    {
+        myFirmwareRunning = false;
+        myFirmware = null;
+        for(int i=0; i < RCXProgram.MAX_PROGS; i++) {
+            clear(myTasks[i]);
+            clear(mySubs[i]);
+        }
+        for(int i=0; i < myRunning.length; i++) myRunning[i] = false;
+    }
+    /**
+     * Check the arguments of a command against those of a keyed command (e.g. delete
+     * firmware), ignoring the toggle bit of the opcode.
+     */
+    private static boolean isKey(byte [] msg, int len, byte [] key)
+    {
+        if (len != key.length) return false;
+        for(int i=1; i < len; i++) if (msg[i] != key[i]) return false;
+        return true;
+    }
+    
+    /**
+     * Get the firmware downloaded.
+     *
+     * @return byte[] the firmware image, or null if none has been downloaded
+     */
+    public synchronized byte [] getFirmware()
+    {
+        return myFirmware;
+    }
+    /**
+     * Get whether firmware is running.  Firmware is running until it is deleted, and
+     * again once new firmware has been downloaded and unlocked.
+     */
+    public synchronized boolean isFirmwareRunning()
+    {
+        return myFirmwareRunning;
+    }
+    
+    private byte setDatalog(byte [] msg, int len)
+    {
+        if (len < 3) return STATUS_NOMEMORY;
+        int size = (msg[1] & 0xff) | ((msg[2] & 0xff) << 8);
+        myLogTypes = new byte[0];
+        myLogValues = new short[0];
+        myLogCount = 0;
+        // Each entry takes 3 bytes of program memory
+        if (getMemoryUsed() + size*3 > MEMORY) return STATUS_NOMEMORY;
+        myLogTypes = new byte[size];
+        myLogValues = new short[size];
+        return STATUS_OK;
+    }
+    
+    private void log(byte source, byte arg)
+    {
+        int type;
+        switch (source) {
+            case RCXCmd.SOURCE_VARIABLE: type = RCXDatalogReader.TYPE_VARIABLE | (arg & 0x1f); break;
+            case RCXCmd.SOURCE_TIMER: type = RCXDatalogReader.TYPE_TIMER | (arg & 0x03); break;
+            case RCXCmd.SOURCE_SENSORVALUE: type = RCXDatalogReader.TYPE_SENSOR | (arg & 0x03); break;
+            case RCXCmd.SOURCE_WATCH: type = RCXDatalogReader.TYPE_WATCH; break;
+            default: return;
+        }
+        addDatalogEntry(type, getSourceValue(source, arg));
+    }
+    /**
+     * Get the value of a source for the Read and Datalog commands.  Values are those
+     * set with setSourceValue(), except that constants are their argument.
+     *
+     * @param source the source (e.g. RCXCmd.SOURCE_VARIABLE)
+     * @param arg the source number
+     * @return int the value
+     */
+    protected int getSourceValue(int source, int arg)
+    {
+        if (source == RCXCmd.SOURCE_CONSTANT) return arg;
+        if (source < 0 || source >= SOURCES || arg < 0 || arg >= SOURCEARGS) return 0;
+        return mySourceValues[source][arg];
+    }
+    /**
+     * Set the value the Read and Datalog commands give for a source.
+     *
+     * @param source the source (e.g. RCXCmd.SOURCE_SENSORVALUE)
+     * @param arg the source number (0..31)
+     * @param value the value
+     */
+    public synchronized void setSourceValue(int source, int arg, int value)
+    {
+        mySourceValues[source][arg] = value;
+    }
+    /**
+     * Add an entry to the datalog, as the Datalog command does.
+     *
+     * @param type the entry type, one of the RCXDatalogReader TYPE_ values with the 
+     * source number in the low bits
+     * @param value the value
+     * @return boolean true if added, false if the datalog is full
+     */
+    public synchronized boolean addDatalogEntry(int type, int value)
+    {
+        if (myLogCount == myLogTypes.length) return false;
+        myLogTypes[myLogCount] = (byte) type;
+        myLogValues[myLogCount] = (short) value;
+        myLogCount++;
+        return true;
+    }
+    
+    private byte [] uploadDatalog(byte op, byte [] msg, int len)
+    {
+        if (len < 5) return null;
+        int first = (msg[1] & 0xff) | ((msg[2] & 0xff) << 8);
+        int count = (msg[3] & 0xff) | ((msg[4] & 0xff) << 8);
+        byte [] res = new byte[1 + count*3];
+        res[0] = (byte) ~op;
+        for(int i=0; i < count; i++) {
+            int entry = first + i;
+            int type = 0;
+            int value = 0;
+            if (entry == 0) {
+                // Entry 0 gives the number of entries, counting itself
+                type = RCXDatalogReader.TYPE_SIZE;
+                value = myLogCount + 1;
+            } else if (entry <= myLogCount) {
+                type = myLogTypes[entry-1];
+                value = myLogValues[entry-1];
+            }
+            res[1 + i*3] = (byte) type;
+            res[2 + i*3] = RCXCmd.lobyte(value);
+            res[3 + i*3] = RCXCmd.hibyte(value);
+        }
+        return res;
+    }
+    
+    private byte [] versions(byte op)
+    {
+        byte [] res = new byte[9];
+        res[0] = (byte) ~op;
+        // Each version is sent high byte first
+        for(int i=0; i < 4; i++) {
+            res[1+i] = (byte) (ROM_VERSION >> (24 - i*8));
+            res[5+i] = (byte) ((myFirmwareRunning)?FIRMWARE_VERSION >> (24 - i*8):0);
+        }
+        return res;
+    }
+    
+    /**
+     * Get opcode with the toggle bit cleared.
+     */
+    protected static int base(byte op)
+    {
+        return op & 0xf7;
+    }
+    
+    private static void clear(byte [][] frags)
+    {
+        for(int i=0; i < frags.length; i++) frags[i] = null;
+    }
+    
+    private static int getSize(byte [][] frags)
+    {
+        int size = 0;
+        for(int i=0; i < frags.length; i++) if (frags[i] != null) size += frags[i].length;
+        return size;
+    }
+}
@@ -0,0 +1,399 @@
+/**
+ * @(#) RCXSimulatedTower.java 0.1 98/03/12
+ *
+ *  Copyright (C) 1998, Scott B. Lewis.  All Rights Reserved.
+ *
+ *  License to copy, use, and modify this software is granted provided that
+ *  this notice is retained in any copies of any part of this software.
+ *
+ *  The author makes no guarantee that this software will compile or
+ *  function correctly.  Also, if you use this software, you do so at your
+ *  own risk.
+ *
+ *  Scott B. Lewis.  slewis@teleport.com  http://www.slewis.com
+ */
+package rcxport;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * In-process RCXTransport that behaves like an IR tower with an RCX in front of it.
+ * Every packet written is echoed back (as the tower hears its own transmission),
+ * handed to an RCXSimulatedBrick, and the brick's reply is returned as a
+ * complete RCX packet.  Packets are processed when the output stream is flushed.
+ * <p>
+ * With wire timing on, each byte becomes readable only after the time it takes
+ * to send it at 2400 baud (11 bits per byte: start, 8 data, parity and stop), so
+ * download times measured against the simulated tower are close to those of a real
+ * tower.  With wire timing off, replies are available immediately.
+ * <p>
+ * As on the real half duplex IR link, the bytes of a flush are sent back to back,
+ * and the tower doesn't wait for the brick.  With wire timing on, if the tower sends
+ * while the brick is replying, the two collide.  The part of the reply not yet
+ * received is lost, and the brick doesn't hear the packet.  So a packet written
+ * before the reply to the last one has arrived gets no reply, and loses that one.
+ */
+public class RCXSimulatedTower implements RCXTransport
+{
+    public static final String TOWERNAME = "SimulatedTower";
+    public static final int BAUDRATE = 2400;
+    public static final int BITSPERBYTE = 11;
+    // Wire time for one byte, in nanoseconds
+    public static final long BYTETIME = 1000000000L * BITSPERBYTE / BAUDRATE;
+    // Time the RCX takes to start replying after a packet, in nanoseconds
+    public static final long TURNAROUND = 2000000L;
+    public static final int BUFFSIZE = 4096;
+    // Number of received bytes that makes them readable before the end of a burst
+    public static final int FIFOTRIGGER = 14;
+
+    private RCXSimulatedBrick myBrick;
+    private String myName;
+    private long myByteTime;
+    private long myTurnaround;
+    private int myReadTimeout = RCXPort.PORTREADTIMEOUT;
+    private boolean myClosed;
+    // Guards the tower's state.  Readers wait on myArrived for bytes to arrive.
+    private final ReentrantLock myLock = new ReentrantLock();
+    private final Condition myArrived = myLock.newCondition();
+
+    // Bytes written but not yet flushed
+    private byte [] myTxBuffer = new byte[BUFFSIZE];
+    private int myTxLength;
+
+    // Bytes on their way back to the host, with the time each can be read
+    private byte [] myRxBuffer = new byte[BUFFSIZE];
+    private long [] myRxTimes = new long[BUFFSIZE];
+    private int myRxStart;
+    private int myRxCount;
+    // Time at which the tower has sent all bytes flushed so far
+    private long myWireFree;
+    // Time the brick's last reply takes on the link
+    private long myReplyStart;
+    private long myReplyEnd;
+
+    private InputStream myInputStream = new TowerInputStream();
+    private OutputStream myOutputStream = new TowerOutputStream();
+
+    /**
+     * Create a simulated tower with a new RCXSimulatedBrick and 2400 baud wire timing.
+     */
+    public RCXSimulatedTower()
+    {
+        this(new RCXSimulatedBrick(), true);
+    }
+    /**
+     * Create a simulated tower.
+     *
+     * @param brick the simulated RCX that answers packets.  Must not be null.
+     * @param wireTiming if true, model the time taken to send bytes at 2400 baud.  If
+     * false, echo and reply bytes are available immediately.
+     */
+    public RCXSimulatedTower(RCXSimulatedBrick brick, boolean wireTiming)
+    {
+        myBrick = brick;
+        myName = TOWERNAME;
+        myByteTime = (wireTiming)?BYTETIME:0;
+        myTurnaround = (wireTiming)?TURNAROUND:0;
+    }
+
+    public InputStream getInputStream()
+    {
+        return myInputStream;
+    }
+
+    public OutputStream getOutputStream()
+    {
+        return myOutputStream;
+    }
+
+    public String getName()
+    {
+        return myName;
+    }
+
+    public void close()
+    {
+        myLock.lock();
+        try {
+            myClosed = true;
+            myArrived.signalAll();
+        } finally {
+            myLock.unlock();
+        }
+    }
+
+    public RCXSimulatedBrick getBrick()
+    {
+        return myBrick;
+    }
+    /**
+     * Set the time to wait for bytes before a read returns 0.
+     *
+     * @param millis the read timeout in milliseconds
+     */
+    public void setReadTimeout(int millis)
+    {
+        myLock.lock();
+        try {
+            myReadTimeout = millis;
+        } finally {
+            myLock.unlock();
+        }
+    }
+
+    private void write(byte [] b, int off, int len) throws IOException
+    {
+        myLock.lock();
+        try {
+            if (myClosed) throw new IOException("Tower closed");
+            if (myTxLength + len > myTxBuffer.length) {
+                byte [] nb = new byte[Math.max(myTxBuffer.length*2, myTxLength + len)];
+                System.arraycopy(myTxBuffer, 0, nb, 0, myTxLength);
+                myTxBuffer = nb;
+            }
+            System.arraycopy(b, off, myTxBuffer, myTxLength, len);
+            myTxLength += len;
+        } finally {
+            myLock.unlock();
+        }
+    }
+    /**
+     * Transmit all written bytes, back to back.  Splits them into packets at each
+     * packet header, echoes each packet and queues the brick's reply behind it.  A
+     * packet sent while the brick is replying collides with the reply.
+     */
+    private void transmit() throws IOException
+    {
+        myLock.lock();
+        try {
+            if (myClosed) throw new IOException("Tower closed");
+            long t = Math.max(System.nanoTime(), myWireFree);
+            int start = 0;
+            while (start < myTxLength) {
+                int end = start + 3;
+                // A data byte is always followed by its complement, so a header inside
+                // a packet can only be the start of the next packet.
+                while (end < myTxLength && !isHeader(end)) end += 2;
+                if (end > myTxLength) end = myTxLength;
+                long packetStart = t;
+                long packetEnd = t + (end - start)*myByteTime;
+                boolean collided = myReplyStart < packetEnd && myReplyEnd > packetStart;
+                // The rest of the reply is garbled.  Only bytes already in are kept.
+                if (collided) dropAfter(packetStart);
+                for(int i=start; i < end; i++) {
+                    t += myByteTime;
+                    receive(myTxBuffer[i], t);
+                }
+                // The brick can't hear a packet while it is replying
+                byte [] reply = (collided)?null:process(start, end);
+                if (reply != null) {
+                    myReplyStart = t + myTurnaround;
+                    myReplyEnd = sendReply(reply, myReplyStart);
+                }
+                start = end;
+            }
+            myTxLength = 0;
+            myWireFree = t;
+            myArrived.signalAll();
+        } finally {
+            myLock.unlock();
+        }
+    }
+
+    private boolean isHeader(int i)
+    {
+        return i + 2 < myTxLength &&
+            myTxBuffer[i] == RCXPacket.PACKETHEADER1 &&
+            myTxBuffer[i+1] == RCXPacket.PACKETHEADER2 &&
+            myTxBuffer[i+2] == RCXPacket.PACKETHEADER3;
+    }
+    /**
+     * Check a packet as the RCX would and execute it.
+     *
+     * @return byte[] reply from the brick, or null if the packet is bad or gets no reply
+     */
+    private byte [] process(int start, int end)
+    {
+        if (!isHeader(start)) return null;
+        int n = (end - start - 5) / 2;
+        if (n < 1 || start + 5 + n*2 != end) return null;
+        byte [] msg = new byte[n];
+        int sum = 0;
+        int i = start + 3;
+        for(int j=0; j < n; j++, i+=2) {
+            if (myTxBuffer[i] != (byte) ~myTxBuffer[i+1]) return null;
+            msg[j] = myTxBuffer[i];
+            sum += msg[j];
+        }
+        if (myTxBuffer[i] != (byte) sum || myTxBuffer[i+1] != (byte) ~sum) return null;
+        return myBrick.execute(msg, n);
+    }
+
+    private long sendReply(byte [] reply, long t)
+    {
+        t += myByteTime;
+        receive(RCXPacket.PACKETHEADER1, t);
+        t += myByteTime;
+        receive(RCXPacket.PACKETHEADER2, t);
+        t += myByteTime;
+        receive(RCXPacket.PACKETHEADER3, t);
+        int sum = 0;
+        for(int i=0; i < reply.length; i++) {
+            sum += reply[i];
+            t += myByteTime;
+            receive(reply[i], t);
+            t += myByteTime;
+            receive((byte) ~reply[i], t);
+        }
+        t += myByteTime;
+        receive((byte) sum, t);
+        t += myByteTime;
+        receive((byte) ~sum, t);
+        return t;
+    }
+    /**
+     * Drop the bytes on their way to the host that arrive after a time.
+     */
+    private void dropAfter(long time)
+    {
+        while (myRxCount > 0 && myRxTimes[(myRxStart + myRxCount - 1) % myRxBuffer.length] > time) myRxCount--;
+    }
+    /**
+     * Queue a byte for the host.  Like a serial port, bytes are lost on overrun.
+     */
+    private void receive(byte b, long time)
+    {
+        if (myRxCount == myRxBuffer.length) return;
+        int pos = (myRxStart + myRxCount) % myRxBuffer.length;
+        myRxBuffer[pos] = b;
+        myRxTimes[pos] = time;
+        myRxCount++;
+    }
+    /**
+     * Read bytes that have arrived, waiting up to the read timeout for the first one.
+     *
+     * @return int the number of bytes read, 0 on timeout or -1 if closed
+     */
+    private int read(byte [] b, int off, int len) throws IOException
+    {
+        myLock.lock();
+        try {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(myReadTimeout);
+            while (true) {
+                if (myClosed) return -1;
+                long now = System.nanoTime();
+                int n = available(now);
+                if (n > 0) {
+                    if (n > len) n = len;
+                    for(int i=0; i < n; i++) b[off + i] = myRxBuffer[(myRxStart + i) % myRxBuffer.length];
+                    myRxStart = (myRxStart + n) % myRxBuffer.length;
+                    myRxCount -= n;
+                    return n;
+                }
+                long wait = deadline - now;
+                if (wait <= 0) return 0;
+                if (myRxCount > 0) wait = Math.min(wait, Math.max(getReadableTime() - now, 1));
+                try {
+                    myArrived.awaitNanos(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted");
+                }
+            }
+        } finally {
+            myLock.unlock();
+        }
+    }
+
+    /**
+     * Get number of bytes that can be read.  Like a UART with a receive FIFO, bytes are
+     * handed over when FIFOTRIGGER of them have arrived or the burst they belong to has
+     * ended.
+     */
+    private int available(long now)
+    {
+        int n = 0;
+        while (n < myRxCount && myRxTimes[(myRxStart + n) % myRxBuffer.length] <= now) n++;
+        if (n < FIFOTRIGGER && (n == 0 || getBurstEnd() > now)) return 0;
+        return n;
+    }
+    /**
+     * Get time at which bytes at the head of the receive buffer become readable.
+     */
+    private long getReadableTime()
+    {
+        if (myRxCount >= FIFOTRIGGER) {
+            return Math.min(getBurstEnd(), myRxTimes[(myRxStart + FIFOTRIGGER - 1) % myRxBuffer.length]);
+        }
+        return getBurstEnd();
+    }
+    /**
+     * Get time at which the burst of bytes at the head of the receive buffer has arrived.
+     */
+    private long getBurstEnd()
+    {
+        long t = myRxTimes[myRxStart];
+        for(int i=1; i < myRxCount; i++) {
+            long next = myRxTimes[(myRxStart + i) % myRxBuffer.length];
+            if (next - t > 2*myByteTime) break;
+            t = next;
+        }
+        return t;
+    }
+
+    private int available()
+    {
+        myLock.lock();
+        try {
+            return available(System.nanoTime());
+        } finally {
+            myLock.unlock();
+        }
+    }
+
+    class TowerInputStream extends InputStream
+    {
+        public int read() throws IOException
+        {
+            byte [] b = new byte[1];
+            // Like a serial port with a receive timeout, -1 when nothing arrives
+            if (RCXSimulatedTower.this.read(b, 0, 1) <= 0) return -1;
+            return b[0] & 0xff;
+        }
+
+        public int read(byte [] b, int off, int len) throws IOException
+        {
+            return RCXSimulatedTower.this.read(b, off, len);
+        }
+
+        public int available()
+        {
+            return RCXSimulatedTower.this.available();
+        }
+    }
+
+    class TowerOutputStream extends OutputStream
+    {
+        public void write(int b) throws IOException
+        {
+            byte [] one = { (byte) b };
+            RCXSimulatedTower.this.write(one, 0, 1);
+        }
+
+        public void write(byte [] b, int off, int len) throws IOException
+        {
+            RCXSimulatedTower.this.write(b, off, len);
+        }
+
+        public void flush() throws IOException
+        {
+            transmit();
+        }
+    }
+}
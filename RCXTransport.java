@@ -0,0 +1,64 @@
+/**
+ * @(#) RCXTransport.java 0.1 98/03/12
+ *
+ *  Copyright (C) 1998, Scott B. Lewis.  All Rights Reserved.
+ *
+ *  License to copy, use, and modify this software is granted provided that
+ *  this notice is retained in any copies of any part of this software.
+ *
+ *  The author makes no guarantee that this software will compile or
+ *  function correctly.  Also, if you use this software, you do so at your
+ *  own risk.
+ * 
+ *  Scott B. Lewis.  slewis@teleport.com  http://www.slewis.com
+ */
+package rcxport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Byte level link between an RCXPort and an IR tower.  The RCXPort encodes
+ * packets and checks results; a transport only moves the raw bytes.  
+ * RCXSerialTransport talks to a real tower through the Java Comm API, and
+ * RCXSimulatedTower provides an in-process tower and RCX for testing.
+ * <p>
+ * Reads from the InputStream should return 0 (rather than block forever) when
+ * no bytes arrive within the transport's read timeout.  RCXPort sets the read
+ * timeout for each command from its RCXRetryPolicy.
+ */
+public interface RCXTransport
+{
+    /**
+     * Get the stream that bytes from the tower (echo and RCX reply) are read from.
+     *
+     * @return InputStream the input stream for this transport
+     * @exception IOException thrown if the stream cannot be gotten
+     */
+    public InputStream getInputStream() throws IOException;
+    /**
+     * Get the stream that packet bytes are written to.
+     *
+     * @return OutputStream the output stream for this transport
+     * @exception IOException thrown if the stream cannot be gotten
+     */
+    public OutputStream getOutputStream() throws IOException;
+    /**
+     * Get the name of this transport (e.g. "COM1").
+     *
+     * @return String the name of this transport
+     */
+    public String getName();
+    /**
+     * Set the time a read waits for bytes to arrive before returning 0.
+     *
+     * @param millis the read timeout in milliseconds
+     * @exception IOException thrown if the timeout cannot be set
+     */
+    public void setReadTimeout(int millis) throws IOException;
+    /**
+     * Close this transport and release any underlying port.
+     */
+    public void close();
+}
@@ -0,0 +1,51 @@
+/**
+ * @(#) RCXTransportFactory.java 0.1 98/03/12
+ *
+ *  Copyright (C) 1998, Scott B. Lewis.  All Rights Reserved.
+ *
+ *  License to copy, use, and modify this software is granted provided that
+ *  this notice is retained in any copies of any part of this software.
+ *
+ *  The author makes no guarantee that this software will compile or
+ *  function correctly.  Also, if you use this software, you do so at your
+ *  own risk.
+ *
+ *  Scott B. Lewis.  slewis@teleport.com  http://www.slewis.com
+ */
+package rcxport;
+
+/**
+ * Opens RCXTransports by name.  Used where many ports are opened at once, so
+ * that simulated towers can be given in place of serial ports.
+ */
+public interface RCXTransportFactory
+{
+    /**
+     * Factory that opens RCXSerialTransports.
+     */
+    public static final RCXTransportFactory SERIAL = new RCXTransportFactory() {
+        public RCXTransport open(String name) throws Exception
+        {
+            return new RCXSerialTransport(name);
+        }
+    };
+
+    /**
+     * Factory that opens RCXNioTransports, for serial devices named by path.
+     */
+    public static final RCXTransportFactory NIO = new RCXTransportFactory() {
+        public RCXTransport open(String name) throws Exception
+        {
+            return new RCXNioTransport(name);
+        }
+    };
+
+    /**
+     * Open a transport.
+     *
+     * @param name the name of the port to open (e.g. "COM1")
+     * @return RCXTransport the open transport
+     * @exception Exception thrown if the port cannot be opened
+     */
+    public RCXTransport open(String name) throws Exception;
+}
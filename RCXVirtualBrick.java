@@ -0,0 +1,560 @@
+/**
+ * @(#) RCXVirtualBrick.java 0.1 98/03/12
+ *
+ *  Copyright (C) 1998, Scott B. Lewis.  All Rights Reserved.
+ *
+ *  License to copy, use, and modify this software is granted provided that
+ *  this notice is retained in any copies of any part of this software.
+ *
+ *  The author makes no guarantee that this software will compile or
+ *  function correctly.  Also, if you use this software, you do so at your
+ *  own risk.
+ *
+ *  Scott B. Lewis.  slewis@teleport.com  http://www.slewis.com
+ */
+package rcxport;
+
+import java.util.Random;
+
+/**
+ * Simulated RCX that runs the programs downloaded to it.  It answers direct commands
+ * as RCXSimulatedBrick does, so it can be put behind an RCXSimulatedTower and used
+ * through an RCXPort, and it runs the tasks of the selected program when they are
+ * started (by StartTask, sent directly or from a task).
+ * <p>
+ * Time is virtual.  Nothing runs until advance() is called, and then programs run
+ * as fast as the host allows, so a minute of RCX time usually takes a few
+ * milliseconds.  Time passes in ticks of one millisecond, and in each tick every
+ * running task runs a few instructions in turn (see setInstructionsPerTick()), as
+ * the firmware interleaves tasks.  Ticks in which every task is waiting are skipped.
+ * startClock() runs the brick on a thread of its own against the real clock.
+ * <p>
+ * Variables, timers, the watch, messages, loops, subroutines, waits and outputs
+ * are modelled.  Sensor values are set with setSourceValue(), or by a subclass in
+ * updateInputs(), which is called before each tick that runs and can model the
+ * world the outputs drive.  Bricks share no state, so many can be run at once,
+ * each on its own thread.
+ * <p>
+ * Test branches when its comparison is false, as the firmware does.  A task that
+ * runs an unknown branch or goes outside its code is stopped.
+ */
+public class RCXVirtualBrick extends RCXSimulatedBrick
+{
+    public static final int VARIABLES = 32;
+    public static final int TIMERS = 4;
+    public static final int OUTPUTS = 3;
+    public static final int SENSORS = 3;
+    // Depth of nested loops in a task
+    public static final int MAXLOOPS = 4;
+    // Instructions each task runs per millisecond tick
+    public static final int INSTRUCTIONSPERTICK = 1;
+    // Time between clock updates when running against the real clock, in milliseconds
+    public static final int CLOCKPERIOD = 10;
+
+    // Output modes and directions, as in the OutputMode and OutputDir arguments
+    public static final int MODE_FLOAT = 0x00;
+    public static final int MODE_OFF = 0x40;
+    public static final int MODE_ON = 0x80;
+    public static final int DIR_REVERSE = 0x00;
+    public static final int DIR_FLIP = 0x40;
+    public static final int DIR_FORWARD = 0x80;
+    // Test conditions, in the top bits of its first argument
+    public static final int TEST_GREATER = 0;
+    public static final int TEST_LESS = 1;
+    public static final int TEST_EQUAL = 2;
+    public static final int TEST_NOTEQUAL = 3;
+
+    private Task [] myTasks = new Task[RCXProgram.MAX_TASKS];
+    private int myInstructionsPerTick = INSTRUCTIONSPERTICK;
+    private long myInstructions;
+    // Virtual time, in milliseconds
+    private long myTime;
+
+    private int [] myVariables = new int[VARIABLES];
+    private long [] myTimerStarts = new long[TIMERS];
+    // Watch time at virtual time 0, in minutes
+    private int myWatch;
+    private int myMessage;
+    private int mySentMessage;
+    private int [] myPower = new int[OUTPUTS];
+    private int [] myDirection = new int[OUTPUTS];
+    private int [] myMode = new int[OUTPUTS];
+    private Random myRandom;
+    private byte [] myScratch = new byte[8];
+
+    private Thread myClock;
+    private volatile boolean myClockRunning;
+
+    /**
+     * Create a virtual brick with a randomly seeded Random source.
+     */
+    public RCXVirtualBrick()
+    {
+        this(new Random());
+    }
+    /**
+     * Create a virtual brick whose Random source gives the same values each run.
+     *
+     * @param seed the seed for the Random source
+     */
+    public RCXVirtualBrick(long seed)
+    {
+        this(new Random(seed));
+    }
+
+    private RCXVirtualBrick(Random random)
+    {
+        myRandom = random;
+        for(int i=0; i < OUTPUTS; i++) {
+            myDirection[i] = DIR_FORWARD;
+            myMode[i] = MODE_FLOAT;
+        }
+    }
+
+    protected byte [] perform(byte [] msg, int len)
+    {
+        byte op = msg[0];
+        switch (base(op)) {
+            case RCXCmd.DeleteTasks & 0xf7:
+            case RCXCmd.DeleteSubs & 0xf7:
+            case RCXCmd.SelectProgram & 0xf7:
+            case RCXCmd.BootMode & 0xf7:
+                // Programs can't run while being changed
+                stopAll();
+                return super.perform(msg, len);
+            default:
+                break;
+        }
+        if (len < 1 + RCXCmd.getArgLength((byte) base(op)) || !command(msg, 0)) return super.perform(msg, len);
+        return (base(op) == (RCXCmd.Message & 0xf7))?null:reply(op);
+    }
+    /**
+     * Carry out the commands that change the state modelled here.
+     *
+     * @param code the array holding the command
+     * @param pc the index of the opcode, with all its arguments following
+     * @return boolean true if done, false if not a command handled here
+     */
+    private boolean command(byte [] code, int pc)
+    {
+        byte op = code[pc];
+        int a1 = (pc+1 < code.length)?code[pc+1] & 0xff:0;
+        switch (base(op)) {
+            case RCXCmd.StartTask & 0xf7:
+                startTask(a1);
+                break;
+            case RCXCmd.StopTask & 0xf7:
+                if (a1 < myTasks.length && myTasks[a1] != null) myTasks[a1].myRunning = false;
+                break;
+            case RCXCmd.StopAll & 0xf7:
+                stopAll();
+                break;
+            case RCXCmd.ClearTimer & 0xf7:
+                myTimerStarts[a1 & 3] = myTime;
+                break;
+            case RCXCmd.SetWatch & 0xf7:
+                myWatch = a1*60 + (code[pc+2] & 0xff) - (int) (myTime/60000);
+                break;
+            case RCXCmd.Message & 0xf7:
+                myMessage = a1;
+                break;
+            case RCXCmd.ClearMsg & 0xf7:
+                myMessage = 0;
+                break;
+            case RCXCmd.SendMessage & 0xf7:
+                mySentMessage = getValue(code[pc+1], code[pc+2]);
+                break;
+            case RCXCmd.OutputPower & 0xf7:
+                int power = Math.max(0, Math.min(7, getValue(code[pc+2], code[pc+3])));
+                for(int i=0; i < OUTPUTS; i++) if ((a1 & (1 << i)) != 0) myPower[i] = power;
+                break;
+            case RCXCmd.OutputDir & 0xf7:
+                for(int i=0; i < OUTPUTS; i++) {
+                    if ((a1 & (1 << i)) == 0) continue;
+                    if ((a1 & 0xc0) == DIR_FLIP) myDirection[i] = (myDirection[i] == DIR_FORWARD)?DIR_REVERSE:DIR_FORWARD;
+                    else myDirection[i] = ((a1 & DIR_FORWARD) != 0)?DIR_FORWARD:DIR_REVERSE;
+                }
+                break;
+            case RCXCmd.OutputMode & 0xf7:
+                for(int i=0; i < OUTPUTS; i++) if ((a1 & (1 << i)) != 0) myMode[i] = a1 & 0xc0;
+                break;
+            case RCXCmd.InputType & 0xf7:
+                if (a1 < SENSORS) setSourceValue(RCXCmd.SOURCE_SENSORTYPE, a1, code[pc+2] & 0xff);
+                break;
+            case RCXCmd.InputMode & 0xf7:
+                if (a1 < SENSORS) setSourceValue(RCXCmd.SOURCE_SENSORMODE, a1, code[pc+2] & 0xff);
+                break;
+            case RCXCmd.ClearSensor & 0xf7:
+                if (a1 < SENSORS) setSourceValue(RCXCmd.SOURCE_SENSORVALUE, a1, 0);
+                break;
+            case RCXCmd.SetVar & 0xf7:
+            case RCXCmd.SumVar & 0xf7:
+            case RCXCmd.SubVar & 0xf7:
+            case RCXCmd.DivVar & 0xf7:
+            case RCXCmd.MulVar & 0xf7:
+            case RCXCmd.SgnVar & 0xf7:
+            case RCXCmd.AbsVar & 0xf7:
+            case RCXCmd.AndVar & 0xf7:
+            case RCXCmd.OrVar & 0xf7:
+                if (a1 < VARIABLES) myVariables[a1] = (short) operate(op, myVariables[a1], getValue(code[pc+2], code[pc+3], code[pc+4]));
+                break;
+            default:
+                return false;
+        }
+        return true;
+    }
+
+    private static int operate(byte op, int var, int value)
+    {
+        switch (base(op)) {
+            case RCXCmd.SumVar & 0xf7: return var + value;
+            case RCXCmd.SubVar & 0xf7: return var - value;
+            // Division by zero leaves the variable as it is
+            case RCXCmd.DivVar & 0xf7: return (value == 0)?var:var / value;
+            case RCXCmd.MulVar & 0xf7: return var * value;
+            case RCXCmd.SgnVar & 0xf7: return Integer.signum(value);
+            case RCXCmd.AbsVar & 0xf7: return Math.abs(value);
+            case RCXCmd.AndVar & 0xf7: return var & value;
+            case RCXCmd.OrVar & 0xf7: return var | value;
+            default: return value;
+        }
+    }
+    /**
+     * Run the brick for a time.  Returns once the programs have run for that much
+     * virtual time.
+     *
+     * @param millis the virtual time to run for, in milliseconds
+     */
+    public synchronized void advance(long millis)
+    {
+        long end = myTime + millis;
+        while (myTime < end) {
+            long wake = getNextWake();
+            if (wake > myTime) {
+                // Nothing can run until then
+                myTime = Math.min(wake, end);
+                continue;
+            }
+            updateInputs(myTime);
+            for(int i=0; i < myTasks.length; i++) {
+                // A task may be replaced or stopped by one of its own instructions
+                for(int n=0; n < myInstructionsPerTick; n++) {
+                    Task t = myTasks[i];
+                    if (t == null || !t.myRunning || t.myWake > myTime) break;
+                    step(t);
+                }
+            }
+            myTime++;
+        }
+    }
+    /**
+     * Called before each tick in which a task runs, to set sensor values (with
+     * setSourceValue()) from the outputs or anything else.  Does nothing unless
+     * overridden.
+     *
+     * @param time the virtual time, in milliseconds
+     */
+    protected void updateInputs(long time)
+    {
+    }
+    /**
+     * Run the brick against the real clock, on a thread of its own.
+     *
+     * @param speed the virtual time to run per unit of real time (1.0 for real time)
+     */
+    public synchronized void startClock(final double speed)
+    {
+        if (myClock != null) return;
+        myClockRunning = true;
+        myClock = new Thread(new Runnable() {
+            public void run()
+            {
+                long last = System.nanoTime();
+                double owed = 0;
+                while (myClockRunning) {
+                    try {
+                        Thread.sleep(CLOCKPERIOD);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    long now = System.nanoTime();
+                    owed += (now - last)*speed/1000000.0;
+                    last = now;
+                    long millis = (long) owed;
+                    owed -= millis;
+                    advance(millis);
+                }
+            }
+        }, "RCXVirtualBrick-clock");
+        myClock.setDaemon(true);
+        myClock.start();
+    }
+    /**
+     * Stop running against the real clock.
+     */
+    public void stopClock() throws InterruptedException
+    {
+        Thread t;
+        synchronized (this) {
+            t = myClock;
+            myClock = null;
+        }
+        if (t == null) return;
+        myClockRunning = false;
+        t.join();
+    }
+    /**
+     * Set the number of instructions each task runs per millisecond tick.
+     */
+    public synchronized void setInstructionsPerTick(int n)
+    {
+        myInstructionsPerTick = Math.max(1, n);
+    }
+    /**
+     * Get the virtual time.
+     *
+     * @return long the time run, in milliseconds
+     */
+    public synchronized long getTime()
+    {
+        return myTime;
+    }
+    /**
+     * Get the number of program instructions run.
+     */
+    public synchronized long getInstructionCount()
+    {
+        return myInstructions;
+    }
+
+    public synchronized boolean isRunning(int task)
+    {
+        return myTasks[task] != null && myTasks[task].myRunning;
+    }
+    /**
+     * Get whether any task is running.
+     */
+    public synchronized boolean isRunning()
+    {
+        for(int i=0; i < myTasks.length; i++) if (isRunning(i)) return true;
+        return false;
+    }
+
+    public synchronized int getVariable(int var)
+    {
+        return myVariables[var];
+    }
+
+    public synchronized void setVariable(int var, int value)
+    {
+        myVariables[var] = (short) value;
+    }
+    /**
+     * Get the power of an output.
+     *
+     * @param output the output (0..2)
+     * @return int the power (0..7)
+     */
+    public synchronized int getOutputPower(int output)
+    {
+        return myPower[output];
+    }
+    /**
+     * Get the direction of an output.
+     *
+     * @return int DIR_FORWARD or DIR_REVERSE
+     */
+    public synchronized int getOutputDirection(int output)
+    {
+        return myDirection[output];
+    }
+    /**
+     * Get the mode of an output.
+     *
+     * @return int MODE_ON, MODE_OFF or MODE_FLOAT
+     */
+    public synchronized int getOutputMode(int output)
+    {
+        return myMode[output];
+    }
+    /**
+     * Get the last message sent by SendMessage.
+     */
+    public synchronized int getSentMessage()
+    {
+        return mySentMessage;
+    }
+
+    protected int getSourceValue(int source, int arg)
+    {
+        switch (source) {
+            case RCXCmd.SOURCE_VARIABLE:
+                return (arg < VARIABLES)?myVariables[arg]:0;
+            case RCXCmd.SOURCE_TIMER:
+                // In tenths of a second
+                return (short) ((myTime - myTimerStarts[arg & 3])/100);
+            case RCXCmd.SOURCE_RANDOM:
+                return myRandom.nextInt(arg + 1);
+            case RCXCmd.SOURCE_PROGRAM:
+                return getSelectedProgram();
+            case RCXCmd.SOURCE_WATCH:
+                return (int) ((myWatch + myTime/60000) % (24*60));
+            case RCXCmd.SOURCE_MESSAGE:
+                return myMessage;
+            default:
+                return super.getSourceValue(source, arg);
+        }
+    }
+    /**
+     * Get a value given as source and one byte argument.
+     */
+    private int getValue(byte source, byte arg)
+    {
+        return getSourceValue(source & 0xff, arg & 0xff);
+    }
+    /**
+     * Get a value given as source and two byte argument.  Only constants use the
+     * high byte.
+     */
+    private int getValue(byte source, byte lo, byte hi)
+    {
+        if (source == RCXCmd.SOURCE_CONSTANT) return (short) ((lo & 0xff) | ((hi & 0xff) << 8));
+        return getSourceValue(source & 0xff, lo & 0xff);
+    }
+
+    private void startTask(int task)
+    {
+        if (task >= myTasks.length) return;
+        byte [] code = getTask(getSelectedProgram(), task);
+        if (code == null) return;
+        // A running task starts again from the beginning
+        myTasks[task] = new Task(code, myTime);
+    }
+
+    private void stopAll()
+    {
+        for(int i=0; i < myTasks.length; i++) {
+            if (myTasks[i] != null) myTasks[i].myRunning = false;
+        }
+    }
+
+    private long getNextWake()
+    {
+        long wake = Long.MAX_VALUE;
+        for(int i=0; i < myTasks.length; i++) {
+            Task t = myTasks[i];
+            if (t != null && t.myRunning) wake = Math.min(wake, t.myWake);
+        }
+        return wake;
+    }
+    /**
+     * Run one instruction of a task.
+     */
+    private void step(Task t)
+    {
+        byte [] code = t.myCode;
+        int pc = t.myPc;
+        if (pc == code.length) {
+            // End of a subroutine returns, and the end of a task stops it
+            if (t.myReturnCode == null) {
+                t.myRunning = false;
+            } else {
+                t.myCode = t.myReturnCode;
+                t.myPc = t.myReturnPc;
+                t.myReturnCode = null;
+            }
+            return;
+        }
+        byte op = code[pc];
+        int next = pc + 1 + RCXCmd.getArgLength(op);
+        if (next > code.length) {
+            t.myRunning = false;
+            return;
+        }
+        myInstructions++;
+        switch (op) {
+            case RCXCmd.SJump:
+                int b = code[pc+1] & 0xff;
+                next = pc + 1 + (((b & 0x80) != 0)?-(b & 0x7f):b);
+                break;
+            case RCXCmd.Jump:
+                int mag = (code[pc+1] & 0xff) | ((code[pc+2] & 0x7f) << 8);
+                next = pc + 1 + (((code[pc+2] & 0x80) != 0)?-mag:mag);
+                break;
+            case RCXCmd.Test:
+                int cond = (code[pc+1] & 0xc0) >> 6;
+                int v1 = getValue((byte) (code[pc+1] & 0x3f), code[pc+3]);
+                int v2 = getValue(code[pc+2], code[pc+4], code[pc+5]);
+                boolean holds;
+                switch (cond) {
+                    case TEST_GREATER: holds = v1 > v2; break;
+                    case TEST_LESS: holds = v1 < v2; break;
+                    case TEST_EQUAL: holds = v1 == v2; break;
+                    default: holds = v1 != v2; break;
+                }
+                if (!holds) next = pc + 6 + getOffset(code, pc+6);
+                break;
+            case RCXCmd.SetLoop:
+                if (t.myLoopDepth == MAXLOOPS) break;
+                t.myLoops[t.myLoopDepth++] = getValue(code[pc+1], code[pc+2]);
+                break;
+            case RCXCmd.CheckLoop:
+                // Branches out of the loop when its count has run out
+                if (t.myLoopDepth > 0 && t.myLoops[t.myLoopDepth-1] > 0) {
+                    t.myLoops[t.myLoopDepth-1]--;
+                } else {
+                    if (t.myLoopDepth > 0) t.myLoopDepth--;
+                    next = pc + 1 + getOffset(code, pc+1);
+                }
+                break;
+            case RCXCmd.GoSub:
+                byte [] sub = (code[pc+1] >= 0 && code[pc+1] < MAX_SUBS)?getSub(getSelectedProgram(), code[pc+1]):null;
+                // Subroutines can't call subroutines
+                if (sub == null || t.myReturnCode != null) break;
+                t.myReturnCode = code;
+                t.myReturnPc = next;
+                t.myCode = sub;
+                next = 0;
+                break;
+            case RCXCmd.Delay:
+                // In hundredths of a second
+                t.myWake = myTime + 10L*Math.max(0, getValue(code[pc+1], code[pc+2], code[pc+3]));
+                break;
+            default:
+                if (!command(code, pc)) {
+                    System.arraycopy(code, pc, myScratch, 0, next - pc);
+                    super.perform(myScratch, next - pc);
+                }
+                break;
+        }
+        if (next < 0 || next > t.myCode.length) t.myRunning = false;
+        else t.myPc = next;
+    }
+
+    private static int getOffset(byte [] code, int pos)
+    {
+        return (short) ((code[pos] & 0xff) | ((code[pos+1] & 0xff) << 8));
+    }
+    /**
+     * State of a running task.
+     */
+    static class Task
+    {
+        byte [] myCode;
+        int myPc;
+        boolean myRunning = true;
+        // Virtual time to wait until before running again
+        long myWake;
+        // Caller of the subroutine being run, or null
+        byte [] myReturnCode;
+        int myReturnPc;
+        int [] myLoops = new int[MAXLOOPS];
+        int myLoopDepth;
+
+        Task(byte [] code, long time)
+        {
+            myCode = code;
+            myWake = time;
+        }
+    }
+}